@@ -0,0 +1,21 @@
+package org.doouding.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs JMH with its usual options. Results are written as JSON to
+ * jmh-result.json unless -rf or -rff say otherwise, so runs of two
+ * commits can be compared.
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+
+        if (!options.contains("-rf")) options.addAll(Arrays.asList("-rf", "json"));
+        if (!options.contains("-rff")) options.addAll(Arrays.asList("-rff", "jmh-result.json"));
+
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
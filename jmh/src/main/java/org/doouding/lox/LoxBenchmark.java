@@ -0,0 +1,97 @@
+package org.doouding.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Each stage of running a script, on the workloads under
+ * src/main/resources/workloads. The benchmarks live in the interpreter's
+ * package to reach its package-private classes.
+ *
+ * Every stage starts from the output of the ones before it, prepared once
+ * per trial: resolve re-resolves a parsed tree (the Resolver only
+ * overwrites what it computed before) and interprete runs the resolved
+ * and optimized statements, as the tree engine does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoxBenchmark {
+    @Param({ "fib", "loops", "strings", "classes", "fields" })
+    public String workload;
+
+    private String source;
+    private List<Stmt> parsed;
+    private List<Stmt> program;
+    private Interpreter interpreter;
+
+    @Setup
+    public void setup() throws IOException {
+        source = read("/workloads/" + workload + ".lox");
+
+        parsed = new Parser(new Scanner(source)).parse();
+
+        List<Stmt> statements = new Parser(new Scanner(source)).parse();
+        new Resolver().resolve(statements);
+        program = Lox.optimizer().optimize(statements);
+
+        if (Lox.hadError) throw new IllegalStateException(workload + " has errors.");
+        interpreter = new Interpreter();
+    }
+
+    private static String read(String resource) throws IOException {
+        try (InputStream in = LoxBenchmark.class.getResourceAsStream(resource)) {
+            if (in == null) throw new IOException("No resource " + resource);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) bytes.write(buffer, 0, read);
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public int scan() {
+        Scanner scanner = new Scanner(source);
+        int count = 0;
+        while (scanner.nextToken().type != TokenType.EOF) count++;
+        return count;
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(new Scanner(source)).parse();
+    }
+
+    @Benchmark
+    public List<Stmt> resolve() {
+        new Resolver().resolve(parsed);
+        return parsed;
+    }
+
+    @Benchmark
+    public Object interprete() {
+        interpreter.interprete(program);
+        return interpreter.globals.global("result").value;
+    }
+}
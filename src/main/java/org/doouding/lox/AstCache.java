@@ -0,0 +1,840 @@
+package org.doouding.lox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * On-disk cache of resolved scripts, enabled with --cache=<dir>.
+ *
+ * A script's resolved AST (before the optimizer, with the depths, slots
+ * and frame sizes the Resolver computed) is written to a file named after
+ * a 64-bit hash of the build fingerprint and the source. A later run of
+ * the same source by the same build loads it instead of scanning, parsing
+ * and resolving again. Scripts with errors are not cached.
+ *
+ * The file starts with a magic number, FORMAT_VERSION and the fingerprint
+ * of the build that wrote it, followed by the source, a file written by
+ * another version or build or for another source with the same hash is
+ * ignored and replaced. The hash is not a cryptographic one, whose
+ * provider takes longer to start than a small script takes to parse. FORMAT_VERSION has to change whenever the AST
+ * nodes or the Resolver's output change, the fingerprint catches the
+ * builds where that was forgotten.
+ */
+class AstCache {
+    private static final int MAGIC = 0x4c4f5841;
+    private static final int FORMAT_VERSION = 4;
+
+    private static final int NULL = 0;
+
+    /**
+     * 当前构建的指纹, 第一次用到时计算
+     */
+    private static String fingerprint;
+
+    private final Path directory;
+
+    AstCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the cached statements of the source, null if there are none
+     */
+    List<Stmt> load(byte[] source) {
+        Path file = file(source);
+        if (!Files.isRegularFile(file)) return null;
+
+        try {
+            return new Reader(Files.readAllBytes(file)).read(source);
+        } catch (IOException | RuntimeException e) {
+            // A damaged or foreign file is just a miss, it gets written again.
+            return null;
+        }
+    }
+
+    /**
+     * Write the resolved statements of the source. The cache is only an
+     * optimisation, a failure to write it is ignored.
+     */
+    void store(byte[] source, List<Stmt> statements) {
+        Path file = file(source);
+
+        try {
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, "ast", ".tmp");
+            Files.write(temporary, new Writer().write(source, statements));
+
+            // Runs of the same script may race, each one replaces the file whole.
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            return;
+        }
+    }
+
+    private Path file(byte[] source) {
+        // 64-bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (byte[] part : new byte[][] { fingerprint().getBytes(StandardCharsets.UTF_8), source }) {
+            for (byte b : part) {
+                hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+            }
+        }
+
+        // Long.toHexString rather than String.format, which loads the whole Formatter.
+        String name = Long.toHexString(hash);
+        return directory.resolve("0000000000000000".substring(name.length()) + name + ".ast");
+    }
+
+    /**
+     * Identify the build of jlox that is running by the id Maven writes to
+     * build.properties each time it builds the classes. Classes built
+     * another way have no id, the SHA-256 of their class files (or jar)
+     * stands in for it, which takes a while to compute. When that fails
+     * too the id is random: nothing this run writes is loaded by another.
+     */
+    static synchronized String fingerprint() {
+        if (fingerprint != null) return fingerprint;
+
+        fingerprint = buildId();
+        if (fingerprint == null) fingerprint = hashClasses();
+        if (fingerprint == null) fingerprint = "random " + UUID.randomUUID();
+
+        return fingerprint;
+    }
+
+    /**
+     * @return the build id in build.properties, null if there is none
+     */
+    private static String buildId() {
+        try (InputStream in = AstCache.class.getResourceAsStream("build.properties")) {
+            if (in == null) return null;
+
+            Properties properties = new Properties();
+            properties.load(in);
+            String id = properties.getProperty("id");
+
+            // The file was copied without Maven filling it in.
+            if (id == null || id.isEmpty() || id.startsWith("${")) return null;
+            return "build " + id;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the SHA-256 of the running jar or class files, null if they can't be read
+     */
+    private static String hashClasses() {
+        try {
+            CodeSource codeSource = AstCache.class.getProtectionDomain().getCodeSource();
+            Path location = Paths.get(codeSource.getLocation().toURI());
+            MessageDigest digest = sha256();
+
+            if (Files.isDirectory(location)) {
+                List<Path> files;
+                try (Stream<Path> walk = Files.walk(location)) {
+                    files = walk.collect(Collectors.<Path>toList());
+                }
+
+                // The order of a directory listing is not fixed.
+                Collections.sort(files);
+                for (Path file : files) {
+                    if (!file.toString().endsWith(".class")) continue;
+                    digest.update(location.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                    digest.update(Files.readAllBytes(file));
+                }
+            } else {
+                digest.update(Files.readAllBytes(location));
+            }
+
+            return "sha256 " + hex(digest.digest());
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder text = new StringBuilder();
+        for (byte b : bytes) {
+            text.append(String.format("%02x", b & 0xff));
+        }
+
+        return text.toString();
+    }
+
+    /**
+     * Node tags, NULL (0) stands for a missing node
+     */
+    private static final int ASSIGN = 1;
+    private static final int BINARY = 2;
+    private static final int CALL = 3;
+    private static final int GET = 4;
+    private static final int SET = 5;
+    private static final int THIS = 6;
+    private static final int GROUPING = 7;
+    private static final int LITERAL = 8;
+    private static final int UNARY = 9;
+    private static final int CONDITIONAL = 10;
+    private static final int SELF_OP = 11;
+    private static final int VARIABLE = 12;
+    private static final int LOGICAL = 13;
+    private static final int INLINE = 14;
+
+    private static final int BLOCK = 1;
+    private static final int EXPRESSION = 2;
+    private static final int RETURN = 3;
+    private static final int IF = 4;
+    private static final int PRINT = 5;
+    private static final int VAR = 6;
+    private static final int WHILE = 7;
+    private static final int TERMINATE = 8;
+    private static final int FUNCTION = 9;
+    private static final int CLASS = 10;
+
+    /**
+     * Literal value tags
+     */
+    private static final int NIL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int NUMBER = 3;
+    private static final int STRING = 4;
+
+    /**
+     * Writes statements as tagged nodes. Strings (lexemes and string
+     * literals) are kept once in a table written before the nodes and
+     * referred to by index, numbers are written as variable length ints.
+     * Snapshot writes its values with the same primitives.
+     *
+     * The name token of a function is shared with the inlined call sites
+     * whose guard compares it by identity, it is written whole the first
+     * time and by index afterwards.
+     */
+    static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> stringIndexes = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+
+        /**
+         * 已经写过的函数名 token, Expr.Inline 的 target 和函数声明共用
+         */
+        private final Map<Token, Integer> names = new IdentityHashMap<>();
+
+        byte[] write(byte[] source, List<Stmt> statements) throws IOException {
+            number(source.length);
+            bytes.write(source);
+            statements(statements);
+            return finish(MAGIC, FORMAT_VERSION);
+        }
+
+        /**
+         * @return the file: the header, the string table and what was written
+         */
+        byte[] finish(int magic, int version) throws IOException {
+            ByteArrayOutputStream file = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(file);
+            header.writeInt(magic);
+            header.writeInt(version);
+            header.writeUTF(fingerprint());
+
+            number(file, strings.size());
+            for (String string : strings) {
+                byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+                number(file, utf8.length);
+                file.write(utf8);
+            }
+
+            bytes.writeTo(file);
+            return file.toByteArray();
+        }
+
+        void tag(int tag) {
+            bytes.write(tag);
+        }
+
+        void number(int value) {
+            number(bytes, value);
+        }
+
+        private static void number(ByteArrayOutputStream bytes, int value) {
+            while ((value & ~0x7f) != 0) {
+                bytes.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes.write(value);
+        }
+
+        void string(String value) {
+            Integer index = stringIndexes.get(value);
+            if (index == null) {
+                index = strings.size();
+                strings.add(value);
+                stringIndexes.put(value, index);
+            }
+
+            number(index);
+        }
+
+        private void token(Token token) {
+            number(token.type.ordinal());
+            string(token.lexeme);
+            number(token.line);
+        }
+
+        private void tokens(List<Token> tokens) {
+            number(tokens.size());
+            for (Token token : tokens) token(token);
+        }
+
+        /**
+         * Write a function name, 0 and the token the first time, its
+         * index + 1 after that.
+         */
+        private void name(Token name) {
+            Integer index = names.get(name);
+            if (index != null) {
+                number(index + 1);
+                return;
+            }
+
+            names.put(name, names.size());
+            number(0);
+            token(name);
+        }
+
+        /**
+         * Resolver depths start at -1 for globals.
+         */
+        private void depth(int depth) {
+            number(depth + 1);
+        }
+
+        private void expr(Expr expr) {
+            if (expr == null) {
+                tag(NULL);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        private void exprs(List<? extends Expr> exprs) {
+            number(exprs.size());
+            for (Expr expr : exprs) expr(expr);
+        }
+
+        void stmt(Stmt stmt) {
+            if (stmt == null) {
+                tag(NULL);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        private void statements(List<? extends Stmt> statements) {
+            number(statements.size());
+            for (Stmt stmt : statements) stmt(stmt);
+        }
+
+        void literal(Object value) {
+            if (value == null) {
+                tag(NIL);
+            } else if (value instanceof Boolean) {
+                tag((Boolean)value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                tag(NUMBER);
+                try {
+                    out.writeDouble((Double)value);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            } else {
+                tag(STRING);
+                string(value.toString());
+            }
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            tag(ASSIGN);
+            token(expr.name);
+            expr(expr.value);
+            depth(expr.depth);
+            number(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            tag(BINARY);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            tag(CALL);
+            expr(expr.callee);
+            token(expr.paren);
+            exprs(expr.arguments);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            tag(GET);
+            expr(expr.object);
+            token(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            tag(SET);
+            expr(expr.object);
+            token(expr.name);
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            tag(THIS);
+            token(expr.keyword);
+            depth(expr.depth);
+            number(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            tag(GROUPING);
+            expr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            tag(LITERAL);
+            literal(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            tag(UNARY);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitConditionalExpr(Expr.Conditional expr) {
+            tag(CONDITIONAL);
+            expr(expr.condition);
+            expr(expr.stat1);
+            expr(expr.stat2);
+            return null;
+        }
+
+        @Override
+        public Void visitSelfOpExpr(Expr.SelfOp expr) {
+            tag(SELF_OP);
+            token(expr.name);
+            token(expr.operator);
+            literal(expr.left);
+            depth(expr.depth);
+            number(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            tag(VARIABLE);
+            token(expr.name);
+            depth(expr.depth);
+            number(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            tag(LOGICAL);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitInlineExpr(Expr.Inline expr) {
+            tag(INLINE);
+            expr(expr.call);
+            expr(expr.body);
+            name(expr.target);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            tag(BLOCK);
+            statements(stmt.statements);
+            number(stmt.locals);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            tag(EXPRESSION);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            tag(RETURN);
+            token(stmt.keyword);
+            expr(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            tag(IF);
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            tag(PRINT);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            tag(VAR);
+            token(stmt.name);
+            expr(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            tag(WHILE);
+            expr(stmt.condition);
+            stmt(stmt.loopStatement);
+            return null;
+        }
+
+        @Override
+        public Void visitTerminateStmt(Stmt.Terminate stmt) {
+            tag(TERMINATE);
+            token(stmt.identifier);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            tag(FUNCTION);
+            name(stmt.name);
+            tokens(stmt.params);
+            statements(stmt.body);
+            number(stmt.locals);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            tag(CLASS);
+            token(stmt.name);
+            statements(stmt.methods);
+            statements(stmt.staticMethods);
+            statements(stmt.privateMethods);
+            exprs(stmt.fields);
+            exprs(stmt.privateFields);
+            return null;
+        }
+    }
+
+    /**
+     * Reads what Writer wrote.
+     */
+    static class Reader {
+        private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+        private final DataInputStream in;
+        private String[] strings;
+        private final List<Token> names = new ArrayList<>();
+
+        Reader(byte[] bytes) {
+            this.in = new DataInputStream(new ByteArrayInputStream(bytes));
+        }
+
+        /**
+         * @param source the source the statements have to be of
+         */
+        List<Stmt> read(byte[] source) throws IOException {
+            header(MAGIC, FORMAT_VERSION);
+
+            byte[] written = new byte[number()];
+            in.readFully(written);
+            if (!Arrays.equals(written, source)) {
+                throw new IOException("Written for another source.");
+            }
+
+            return statements();
+        }
+
+        /**
+         * Check the header and read the string table.
+         */
+        void header(int magic, int version) throws IOException {
+            if (in.readInt() != magic || in.readInt() != version) {
+                throw new IOException("Not a file of this version.");
+            }
+            if (!in.readUTF().equals(fingerprint())) {
+                throw new IOException("Written by another build of jlox.");
+            }
+
+            strings = new String[number()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] utf8 = new byte[number()];
+                in.readFully(utf8);
+                strings[i] = new String(utf8, StandardCharsets.UTF_8);
+            }
+        }
+
+        int number() throws IOException {
+            int value = 0;
+            int shift = 0;
+
+            for (;;) {
+                int b = in.readUnsignedByte();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+                shift += 7;
+            }
+        }
+
+        String string() throws IOException {
+            return strings[number()];
+        }
+
+        private Token token() throws IOException {
+            TokenType type = TOKEN_TYPES[number()];
+            String lexeme = string();
+            int line = number();
+
+            // Identifiers get their Symbol back, as the Scanner gives them.
+            if (type == TokenType.IDENTIFIER) {
+                Symbol symbol = Symbol.intern(lexeme);
+                return new Token(type, symbol.name, null, line, symbol);
+            }
+
+            return new Token(type, lexeme, null, line);
+        }
+
+        private List<Token> tokens() throws IOException {
+            int count = number();
+            List<Token> tokens = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) tokens.add(token());
+            return tokens;
+        }
+
+        /**
+         * Read a function name, the same Token for every node that shared it.
+         */
+        private Token name() throws IOException {
+            int index = number();
+            if (index != 0) return names.get(index - 1);
+
+            Token name = token();
+            names.add(name);
+            return name;
+        }
+
+        private int depth() throws IOException {
+            return number() - 1;
+        }
+
+        private List<Expr> exprs() throws IOException {
+            int count = number();
+            List<Expr> exprs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) exprs.add(expr());
+            return exprs;
+        }
+
+        private List<Expr.Variable> variables() throws IOException {
+            int count = number();
+            List<Expr.Variable> variables = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) variables.add((Expr.Variable)expr());
+            return variables;
+        }
+
+        private List<Stmt> statements() throws IOException {
+            int count = number();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) statements.add(stmt());
+            return statements;
+        }
+
+        private List<Stmt.Function> functions() throws IOException {
+            int count = number();
+            List<Stmt.Function> functions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) functions.add((Stmt.Function)stmt());
+            return functions;
+        }
+
+        int tag() throws IOException {
+            return in.readUnsignedByte();
+        }
+
+        private Object literal() throws IOException {
+            return literal(tag());
+        }
+
+        /**
+         * @param tag a literal tag that was already read
+         */
+        Object literal(int tag) throws IOException {
+            switch (tag) {
+                case NIL: return null;
+                case TRUE: return true;
+                case FALSE: return false;
+                case NUMBER: return in.readDouble();
+                case STRING: return string();
+                default: throw new IOException("Unknown literal tag " + tag);
+            }
+        }
+
+        private Expr expr() throws IOException {
+            int tag = in.readUnsignedByte();
+
+            switch (tag) {
+                case NULL:
+                    return null;
+                case ASSIGN: {
+                    Expr.Assign expr = new Expr.Assign(token(), expr());
+                    expr.depth = depth();
+                    expr.slot = number();
+                    return expr;
+                }
+                case BINARY:
+                    return new Expr.Binary(expr(), token(), expr());
+                case CALL:
+                    return new Expr.Call(expr(), token(), exprs());
+                case GET:
+                    return new Expr.Get(expr(), token());
+                case SET:
+                    return new Expr.Set(expr(), token(), expr());
+                case THIS: {
+                    Expr.This expr = new Expr.This(token());
+                    expr.depth = depth();
+                    expr.slot = number();
+                    return expr;
+                }
+                case GROUPING:
+                    return new Expr.Grouping(expr());
+                case LITERAL:
+                    return new Expr.Literal(literal());
+                case UNARY:
+                    return new Expr.Unary(token(), expr());
+                case CONDITIONAL:
+                    return new Expr.Conditional(expr(), expr(), expr());
+                case SELF_OP: {
+                    Expr.SelfOp expr = new Expr.SelfOp(token(), token(), literal() == Boolean.TRUE);
+                    expr.depth = depth();
+                    expr.slot = number();
+                    return expr;
+                }
+                case VARIABLE: {
+                    Expr.Variable expr = new Expr.Variable(token());
+                    expr.depth = depth();
+                    expr.slot = number();
+                    return expr;
+                }
+                case LOGICAL:
+                    return new Expr.Logical(expr(), token(), expr());
+                case INLINE:
+                    return new Expr.Inline((Expr.Call)expr(), expr(), name());
+                default:
+                    throw new IOException("Unknown expression tag " + tag);
+            }
+        }
+
+        Stmt stmt() throws IOException {
+            int tag = in.readUnsignedByte();
+
+            switch (tag) {
+                case NULL:
+                    return null;
+                case BLOCK: {
+                    Stmt.Block stmt = new Stmt.Block(statements());
+                    stmt.locals = number();
+                    return stmt;
+                }
+                case EXPRESSION:
+                    return new Stmt.Expression(expr());
+                case RETURN:
+                    return new Stmt.Return(token(), expr());
+                case IF:
+                    return new Stmt.If(expr(), stmt(), stmt());
+                case PRINT:
+                    return new Stmt.Print(expr());
+                case VAR:
+                    return new Stmt.Var(token(), expr());
+                case WHILE:
+                    return new Stmt.While(expr(), stmt());
+                case TERMINATE:
+                    return new Stmt.Terminate(token());
+                case FUNCTION: {
+                    Stmt.Function stmt = new Stmt.Function(name(), tokens(), statements());
+                    stmt.locals = number();
+                    return stmt;
+                }
+                case CLASS:
+                    return new Stmt.Class(token(), functions(), functions(), functions(), variables(), variables());
+                default:
+                    throw new IOException("Unknown statement tag " + tag);
+            }
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package org.doouding.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base of the optimisation passes. It walks a resolved tree and rebuilds a
+ * node only when one of its children was rewritten, so untouched parts of
+ * the tree keep their identity. What the Resolver stored on a node (depth,
+ * slot, locals) is copied to its replacement.
+ *
+ * Subclasses override the visit methods of the nodes they rewrite and
+ * call the one here for the children.
+ */
+abstract class AstRewriter implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    Expr rewrite(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    Stmt rewrite(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    /**
+     * Rewrite a statement list. Statements rewritten into an empty block
+     * are dropped.
+     * @return the same list if nothing changed
+     */
+    List<Stmt> rewrite(List<Stmt> statements) {
+        List<Stmt> result = null;
+
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt statement = statements.get(i);
+            Stmt rewritten = rewrite(statement);
+
+            if (rewritten != statement && result == null) {
+                result = new ArrayList<>(statements.subList(0, i));
+            }
+
+            if (result != null && !isEmpty(rewritten)) {
+                result.add(rewritten);
+            }
+        }
+
+        return result == null ? statements : result;
+    }
+
+    private List<Expr> rewriteExpressions(List<Expr> expressions) {
+        List<Expr> result = null;
+
+        for (int i = 0; i < expressions.size(); i++) {
+            Expr expr = expressions.get(i);
+            Expr rewritten = rewrite(expr);
+
+            if (rewritten != expr && result == null) {
+                result = new ArrayList<>(expressions.subList(0, i));
+            }
+
+            if (result != null) {
+                result.add(rewritten);
+            }
+        }
+
+        return result == null ? expressions : result;
+    }
+
+    /**
+     * An empty statement, for a statement that was removed where a
+     * statement is still required (e.g. the branch of an if).
+     */
+    static Stmt empty() {
+        return new Stmt.Block(new ArrayList<Stmt>());
+    }
+
+    static boolean isEmpty(Stmt stmt) {
+        return stmt instanceof Stmt.Block && ((Stmt.Block)stmt).statements.isEmpty();
+    }
+
+    static boolean isLiteral(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    static Object value(Expr expr) {
+        return ((Expr.Literal)expr).value;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = rewrite(expr.value);
+        if (value == expr.value) return expr;
+
+        Expr.Assign result = new Expr.Assign(expr.name, value);
+        result.depth = expr.depth;
+        result.slot = expr.slot;
+        return result;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = rewrite(expr.callee);
+        List<Expr> arguments = rewriteExpressions(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments) return expr;
+
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = rewrite(expr.object);
+        if (object == expr.object) return expr;
+
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = rewrite(expr.object);
+        Expr value = rewrite(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = rewrite(expr.expression);
+        if (expression == expr.expression) return expr;
+
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+        if (right == expr.right) return expr;
+
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitConditionalExpr(Expr.Conditional expr) {
+        Expr condition = rewrite(expr.condition);
+        Expr stat1 = rewrite(expr.stat1);
+        Expr stat2 = rewrite(expr.stat2);
+        if (condition == expr.condition && stat1 == expr.stat1 && stat2 == expr.stat2) return expr;
+
+        return new Expr.Conditional(condition, stat1, stat2);
+    }
+
+    @Override
+    public Expr visitSelfOpExpr(Expr.SelfOp expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitInlineExpr(Expr.Inline expr) {
+        Expr call = rewrite(expr.call);
+        Expr body = rewrite(expr.body);
+        if (call == expr.call && body == expr.body) return expr;
+
+        // A call rewritten into something else is no longer a call to guard.
+        if (!(call instanceof Expr.Call)) return call;
+        return new Expr.Inline((Expr.Call)call, body, expr.target);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = rewrite(stmt.statements);
+        if (statements == stmt.statements) return stmt;
+
+        Stmt.Block result = new Stmt.Block(statements);
+        result.locals = stmt.locals;
+        return result;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        Expr value = rewrite(stmt.value);
+        if (value == stmt.value) return stmt;
+
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt thenBranch = rewrite(stmt.thenBranch);
+        Stmt elseBranch = rewrite(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) return stmt;
+
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = rewrite(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt loopStatement = rewrite(stmt.loopStatement);
+        if (condition == stmt.condition && loopStatement == stmt.loopStatement) return stmt;
+
+        return new Stmt.While(condition, loopStatement);
+    }
+
+    @Override
+    public Stmt visitTerminateStmt(Stmt.Terminate stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        List<Stmt> body = rewrite(stmt.body);
+        if (body == stmt.body) return stmt;
+
+        Stmt.Function result = new Stmt.Function(stmt.name, stmt.params, body);
+        result.locals = stmt.locals;
+        return result;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = rewriteMethods(stmt.methods);
+        List<Stmt.Function> staticMethods = rewriteMethods(stmt.staticMethods);
+        List<Stmt.Function> privateMethods = rewriteMethods(stmt.privateMethods);
+        if (methods == stmt.methods && staticMethods == stmt.staticMethods && privateMethods == stmt.privateMethods) {
+            return stmt;
+        }
+
+        return new Stmt.Class(stmt.name, methods, staticMethods, privateMethods, stmt.fields, stmt.privateFields);
+    }
+
+    private List<Stmt.Function> rewriteMethods(List<Stmt.Function> methods) {
+        List<Stmt.Function> result = null;
+
+        for (int i = 0; i < methods.size(); i++) {
+            Stmt.Function method = methods.get(i);
+            Stmt.Function rewritten = (Stmt.Function)rewrite(method);
+
+            if (rewritten != method && result == null) {
+                result = new ArrayList<>(methods.subList(0, i));
+            }
+
+            if (result != null) {
+                result.add(rewritten);
+            }
+        }
+
+        return result == null ? methods : result;
+    }
+}
@@ -0,0 +1,151 @@
+package org.doouding.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A block of bytecode for the Vm together with its constant pool.
+ *
+ * Every instruction is a one byte opcode followed by its operands.
+ * Constant indexes and jump offsets are two bytes (big endian), local,
+ * upvalue and argument counts are one byte. The token each instruction
+ * was compiled from is kept at the opcode offset so runtime errors are
+ * reported the same way as the tree-walk Interpreter does.
+ *
+ * Property instructions name their property by the token and use their
+ * constant for a VmPropertyCache of their own.
+ */
+class Chunk {
+    static final byte OP_CONSTANT = 0;
+    static final byte OP_NIL = 1;
+    static final byte OP_TRUE = 2;
+    static final byte OP_FALSE = 3;
+    static final byte OP_POP = 4;
+    static final byte OP_DUP = 5;
+    static final byte OP_GET_LOCAL = 6;
+    static final byte OP_SET_LOCAL = 7;
+    static final byte OP_GET_UPVALUE = 8;
+    static final byte OP_SET_UPVALUE = 9;
+    static final byte OP_GET_GLOBAL = 10;
+    static final byte OP_SET_GLOBAL = 11;
+    static final byte OP_DEFINE_GLOBAL = 12;
+    static final byte OP_GET_PROPERTY = 13;
+    static final byte OP_SET_PROPERTY = 14;
+    static final byte OP_EQUAL = 15;
+    static final byte OP_NOT_EQUAL = 16;
+    static final byte OP_GREATER = 17;
+    static final byte OP_GREATER_EQUAL = 18;
+    static final byte OP_LESS = 19;
+    static final byte OP_LESS_EQUAL = 20;
+    static final byte OP_ADD = 21;
+    static final byte OP_SUBTRACT = 22;
+    static final byte OP_MULTIPLY = 23;
+    static final byte OP_DIVIDE = 24;
+    static final byte OP_NOT = 25;
+    static final byte OP_NEGATE = 26;
+    static final byte OP_INCREMENT = 27;
+    static final byte OP_DECREMENT = 28;
+    static final byte OP_PRINT = 29;
+    static final byte OP_JUMP = 30;
+    static final byte OP_JUMP_IF_FALSE = 31;
+    static final byte OP_LOOP = 32;
+    static final byte OP_CALL = 33;
+    static final byte OP_CLOSURE = 34;
+    static final byte OP_CLOSE_UPVALUE = 35;
+    static final byte OP_RETURN = 36;
+    static final byte OP_CLASS = 37;
+    static final byte OP_METHOD = 38;
+    static final byte OP_FIELD = 39;
+
+    /**
+     * obj.method(args) in one instruction: the method is called with the
+     * instance as receiver without a VmBoundMethod in between
+     */
+    static final byte OP_INVOKE = 40;
+
+    /**
+     * OP_JUMP_IF_FALSE that also pops the condition, for if and while
+     * whose branches would start with OP_POP
+     */
+    static final byte OP_POP_JUMP_IF_FALSE = 41;
+
+    /**
+     * Comparisons of an if or while condition fused with the jump taken
+     * when the comparison is false
+     */
+    static final byte OP_JUMP_IF_NOT_GREATER = 42;
+    static final byte OP_JUMP_IF_NOT_GREATER_EQUAL = 43;
+    static final byte OP_JUMP_IF_NOT_LESS = 44;
+    static final byte OP_JUMP_IF_NOT_LESS_EQUAL = 45;
+
+    /**
+     * Add or subtract a number constant from the value on the stack
+     */
+    static final byte OP_ADD_CONSTANT = 46;
+    static final byte OP_SUBTRACT_CONSTANT = 47;
+
+    /**
+     * Operand of OP_METHOD and OP_FIELD telling which kind of member it is
+     */
+    static final byte MEMBER_PUBLIC = 0;
+    static final byte MEMBER_PRIVATE = 1;
+    static final byte MEMBER_STATIC = 2;
+
+    byte[] code = new byte[64];
+    Token[] tokens = new Token[64];
+    int count = 0;
+
+    Object[] constants = new Object[16];
+    private int constantCount = 0;
+    private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+    /**
+     * Storage of the globals named by string constants, filled in by the Vm
+     * as the global instructions run
+     */
+    Enviroment.Global[] globals;
+
+    void write(byte value, Token token) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+            tokens = Arrays.copyOf(tokens, tokens.length * 2);
+        }
+
+        code[count] = value;
+        tokens[count] = token;
+        count++;
+    }
+
+    void writeShort(int value, Token token) {
+        write((byte)((value >> 8) & 0xff), token);
+        write((byte)(value & 0xff), token);
+    }
+
+    /**
+     * Add a value to the constant pool. Numbers and strings are shared so
+     * a name used many times only takes one entry.
+     * @return index of the constant
+     */
+    int addConstant(Object value) {
+        boolean shareable = value instanceof Double || value instanceof String;
+
+        if (shareable) {
+            Integer index = constantIndexes.get(value);
+            if (index != null) return index;
+        }
+
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constants.length * 2);
+        }
+
+        constants[constantCount] = value;
+        if (shareable) constantIndexes.put(value, constantCount);
+
+        return constantCount++;
+    }
+
+    int constantCount() {
+        return constantCount;
+    }
+}
@@ -0,0 +1,34 @@
+package org.doouding.lox;
+
+/**
+ * A LoxFunction whose body has been compiled into StmtNode executors
+ * by the NodeCompiler.
+ */
+class CompiledFunction extends LoxFunction {
+    private final StmtNode[] body;
+
+    CompiledFunction(Stmt.Function declaration, StmtNode[] body, Enviroment enviroment, boolean isInitializer) {
+        this(declaration, body, enviroment, isInitializer, null);
+    }
+
+    private CompiledFunction(Stmt.Function declaration, StmtNode[] body, Enviroment enviroment, boolean isInitializer, LoxInstanceProxy instance) {
+        super(declaration, enviroment, isInitializer, instance);
+        this.body = body;
+    }
+
+    @Override
+    LoxFunction bind(LoxInstanceProxy instance) {
+        if (RuntimeStats.ENABLED) RuntimeStats.binds++;
+        return new CompiledFunction(declaration, body, cloure, isInitializer, instance);
+    }
+
+    @Override
+    Completion run(Interpreter interpreter, Enviroment frame) {
+        for (StmtNode statement : body) {
+            Completion completion = statement.execute(frame);
+            if (completion != Completion.NORMAL) return completion;
+        }
+
+        return Completion.NORMAL;
+    }
+}
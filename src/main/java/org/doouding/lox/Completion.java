@@ -0,0 +1,14 @@
+package org.doouding.lox;
+
+/**
+ * How a statement finished. Statements return it instead of throwing, so
+ * return, break and continue unwind through blocks and loops as plain
+ * returns. The value of a return waits in the Interpreter until the
+ * function call that is being left picks it up.
+ */
+enum Completion {
+    NORMAL,
+    RETURN,
+    BREAK,
+    CONTINUE
+}
@@ -0,0 +1,103 @@
+package org.doouding.lox;
+
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Evaluate operators whose operands are literals: arithmetic, string
+ * concatenation, comparisons, negation and `!`. Operations that would be
+ * a runtime error (e.g. `1 + "a"`) are left alone so the error is still
+ * reported when the code runs.
+ */
+class ConstantFolder extends AstRewriter implements OptimizationPass {
+    /**
+     * fold 返回它表示不能折叠
+     */
+    private static final Object NOT_CONSTANT = new Object();
+
+    private int folded = 0;
+
+    @Override
+    public List<Stmt> run(List<Stmt> statements) {
+        return rewrite(statements);
+    }
+
+    @Override
+    public void report(PrintStream out) {
+        out.println("  constant folding: " + folded + " expressions folded");
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr rewritten = super.visitBinaryExpr(expr);
+        Expr.Binary binary = (Expr.Binary)rewritten;
+        if (!isLiteral(binary.left) || !isLiteral(binary.right)) return rewritten;
+
+        Object value = fold(binary.operator.type, value(binary.left), value(binary.right));
+        if (value == NOT_CONSTANT) return rewritten;
+
+        folded++;
+        return new Expr.Literal(value);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr rewritten = super.visitUnaryExpr(expr);
+        Expr.Unary unary = (Expr.Unary)rewritten;
+        if (!isLiteral(unary.right)) return rewritten;
+
+        Object right = value(unary.right);
+        switch (unary.operator.type) {
+            case MINUS:
+                if (!(right instanceof Double)) return rewritten;
+                folded++;
+                return new Expr.Literal(-(double)right);
+            case BANG:
+                folded++;
+                return new Expr.Literal(!Interpreter.isTruthy(right));
+            default:
+                return rewritten;
+        }
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr rewritten = super.visitGroupingExpr(expr);
+        Expr.Grouping grouping = (Expr.Grouping)rewritten;
+
+        // Parentheses around a literal are only in the way of the operator around them.
+        if (isLiteral(grouping.expression)) return grouping.expression;
+        return rewritten;
+    }
+
+    private static Object fold(TokenType operator, Object left, Object right) {
+        boolean numbers = left instanceof Double && right instanceof Double;
+
+        switch (operator) {
+            case PLUS:
+                if (numbers) return (double)left + (double)right;
+                if (left instanceof String && right instanceof String) return (String)left + (String)right;
+                return NOT_CONSTANT;
+            case MINUS:
+                return numbers ? (Object)((double)left - (double)right) : NOT_CONSTANT;
+            case STAR:
+                return numbers ? (Object)((double)left * (double)right) : NOT_CONSTANT;
+            case SLASH:
+                return numbers ? (Object)((double)left / (double)right) : NOT_CONSTANT;
+            case GREATER:
+                return numbers ? (Object)((double)left > (double)right) : NOT_CONSTANT;
+            case GREATER_EQUAL:
+                return numbers ? (Object)((double)left >= (double)right) : NOT_CONSTANT;
+            case LESS:
+                return numbers ? (Object)((double)left < (double)right) : NOT_CONSTANT;
+            case LESS_EQUAL:
+                return numbers ? (Object)((double)left <= (double)right) : NOT_CONSTANT;
+            case EQUAL_EQUAL:
+                return Interpreter.isEqual(left, right);
+            case BANG_EQUAL:
+                return !Interpreter.isEqual(left, right);
+            default:
+                return NOT_CONSTANT;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.doouding.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Remove code that can never run: the untaken side of an if, ?: or
+ * and/or whose condition is a literal, `while` loops with a false
+ * literal condition and statements after a return, break or continue.
+ */
+class DeadCodeEliminator extends AstRewriter implements OptimizationPass {
+    private int branches = 0;
+    private int loops = 0;
+    private int unreachable = 0;
+
+    @Override
+    public List<Stmt> run(List<Stmt> statements) {
+        return rewrite(statements);
+    }
+
+    @Override
+    public void report(PrintStream out) {
+        out.println("  dead code: " + branches + " branches, " + loops + " loops, "
+            + unreachable + " unreachable statements removed");
+    }
+
+    @Override
+    List<Stmt> rewrite(List<Stmt> statements) {
+        List<Stmt> result = super.rewrite(statements);
+
+        for (int i = 0; i < result.size() - 1; i++) {
+            Stmt statement = result.get(i);
+
+            if (statement instanceof Stmt.Return || statement instanceof Stmt.Terminate) {
+                unreachable += result.size() - 1 - i;
+                return new ArrayList<>(result.subList(0, i + 1));
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Stmt rewritten = super.visitIfStmt(stmt);
+        Stmt.If branch = (Stmt.If)rewritten;
+        if (!isLiteral(branch.condition)) return rewritten;
+
+        branches++;
+        if (Interpreter.isTruthy(value(branch.condition))) return branch.thenBranch;
+        return branch.elseBranch == null ? empty() : branch.elseBranch;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Stmt rewritten = super.visitWhileStmt(stmt);
+        Stmt.While loop = (Stmt.While)rewritten;
+        if (!isLiteral(loop.condition) || Interpreter.isTruthy(value(loop.condition))) return rewritten;
+
+        loops++;
+        return empty();
+    }
+
+    @Override
+    public Expr visitConditionalExpr(Expr.Conditional expr) {
+        Expr rewritten = super.visitConditionalExpr(expr);
+        Expr.Conditional conditional = (Expr.Conditional)rewritten;
+        if (!isLiteral(conditional.condition)) return rewritten;
+
+        branches++;
+        return Interpreter.isTruthy(value(conditional.condition)) ? conditional.stat1 : conditional.stat2;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr rewritten = super.visitLogicalExpr(expr);
+        Expr.Logical logical = (Expr.Logical)rewritten;
+        if (!isLiteral(logical.left)) return rewritten;
+
+        // and/or give the left operand when it decides the result, the right one otherwise.
+        boolean truthy = Interpreter.isTruthy(value(logical.left));
+        boolean decided = logical.operator.type == TokenType.AND ? !truthy : truthy;
+
+        branches++;
+        return decided ? logical.left : logical.right;
+    }
+}
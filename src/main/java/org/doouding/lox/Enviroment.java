@@ -1,18 +1,75 @@
 package org.doouding.lox;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class Enviroment {
+    private static final Object[] EMPTY_SLOTS = new Object[0];
+
+    /**
+     * 标记 slot 中的值是存放在 numbers 里的未装箱数字
+     */
+    private static final Object UNBOXED = new Object();
+
+    /**
+     * 标记还没有定义的全局变量
+     */
+    static final Object UNDEFINED = new Object();
+
+    /**
+     * The storage of one global variable. A name gets its Global the first
+     * time it is looked up and keeps it for good, defining the name again
+     * only changes the value, so an access site can hold on to the Global
+     * instead of hashing the name every time.
+     */
+    static final class Global {
+        final Enviroment owner;
+        final String name;
+        Object value = UNDEFINED;
+
+        private Global(Enviroment owner, String name) {
+            this.owner = owner;
+            this.name = name;
+        }
+    }
+
     final Enviroment enclosing;
-    private final Map<String, Object> values = new HashMap<String, Object>();
+
+    /**
+     * 全局变量，按名字找到存储单元，只有全局 Enviroment 才会创建
+     */
+    private final Map<String, Global> values;
+
+    /**
+     * 局部变量，按 Resolver 分配的 slot 顺序存放
+     */
+    private Object[] slots;
+    private int count = 0;
+
+    /**
+     * 未装箱的数字局部变量，与 slots 按下标对应，第一次写入数字时才创建
+     */
+    private double[] numbers;
 
     Enviroment() {
         enclosing = null;
+        values = new HashMap<String, Global>();
+        slots = EMPTY_SLOTS;
     }
 
     Enviroment(Enviroment enclosing) {
+        this(enclosing, 0);
+    }
+
+    Enviroment(Enviroment enclosing, int size) {
+        if (RuntimeStats.ENABLED) RuntimeStats.environments++;
+
         this.enclosing = enclosing;
+        this.values = null;
+        this.slots = size == 0 ? EMPTY_SLOTS : new Object[size];
     }
 
     Enviroment ancestor(int distance) {
@@ -25,40 +82,140 @@ public class Enviroment {
         return enviroment;
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
+    }
+
+    Object getAt(int distance, int slot) {
+        Enviroment enviroment = ancestor(distance);
+        Object value = enviroment.slots[slot];
+
+        // Numbers kept unboxed are only boxed when read as a value.
+        if (value == UNBOXED) return enviroment.numbers[slot];
+        return value;
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    /**
+     * Read a local that is expected to hold a number without boxing it.
+     * @throws UnexpectedValue if the variable holds something else
+     */
+    double getNumberAt(int distance, int slot) {
+        Enviroment enviroment = ancestor(distance);
+        Object value = enviroment.slots[slot];
+
+        if (value == UNBOXED) return enviroment.numbers[slot];
+        if (value instanceof Double) return (double)value;
+        throw new UnexpectedValue(value);
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+    void assignNumberAt(int distance, int slot, double value) {
+        ancestor(distance).storeNumber(slot, value);
+    }
+
+    private void storeNumber(int slot, double value) {
+        if (numbers == null || numbers.length < slots.length) {
+            numbers = numbers == null ? new double[slots.length] : Arrays.copyOf(numbers, slots.length);
         }
 
-        if (enclosing != null) return enclosing.get(name);
+        numbers[slot] = value;
+        slots[slot] = UNBOXED;
+    }
 
-        throw new RuntimeError(name,
-            "Undefined variable '" + name.lexeme + "'.");
+    /**
+     * Define a local variable in the next slot. Locals are defined in the
+     * same order as the Resolver declares them, so the slot index matches.
+     * @param value the initial value
+     */
+    void define(Object value) {
+        if (count == slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(4, slots.length * 2));
+        }
+
+        slots[count++] = value;
     }
 
-    void define(String name, Object value) {
-        values.put(name, value);
+    /**
+     * Define a local holding a number, kept unboxed.
+     */
+    void defineNumber(double value) {
+        define(UNBOXED);
+        storeNumber(count - 1, value);
     }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
+    /**
+     * @return number of locals defined so far
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * @return the slots the frame was made with
+     */
+    int size() {
+        return slots.length;
+    }
+
+    /**
+     * @return the names of the defined globals
+     */
+    List<String> globalNames() {
+        List<String> names = new ArrayList<>();
+        for (Global global : values.values()) {
+            if (global.value != UNDEFINED) names.add(global.name);
+        }
+
+        return names;
+    }
+
+    /**
+     * @return the storage of a global, created undefined if the name has not been seen yet
+     */
+    Global global(String name) {
+        Global global = values.get(name);
+
+        if (global == null) {
+            global = new Global(this, name);
+            values.put(name, global);
         }
 
-        if(enclosing != null) {
-            enclosing.assign(name, value);
+        return global;
+    }
+
+    /**
+     * The Global an access site cached, or the one for the name if the
+     * site has none yet or cached it from another Enviroment.
+     */
+    Global global(Global cached, String name) {
+        return cached != null && cached.owner == this ? cached : global(name);
+    }
+
+    Object get(Global global, Token name) {
+        Object value = global.value;
+        if (value != UNDEFINED) return value;
+
+        throw new RuntimeError(name,
+            "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    void assign(Global global, Token name, Object value) {
+        if (global.value != UNDEFINED) {
+            global.value = value;
             return;
         }
 
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + ".");
     }
+
+    Object get(Token name) {
+        return get(global(name.lexeme), name);
+    }
+
+    void define(String name, Object value) {
+        global(name).value = value;
+    }
+
+    void assign(Token name, Object value) {
+        assign(global(name.lexeme), name, value);
+    }
 }
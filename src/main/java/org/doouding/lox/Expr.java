@@ -17,6 +17,7 @@ abstract class Expr {
     R visitSelfOpExpr(SelfOp expr);
     R visitVariableExpr(Variable expr);
     R visitLogicalExpr(Logical expr);
+    R visitInlineExpr(Inline expr);
   }
 
   static class Assign extends Expr {
@@ -32,6 +33,9 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+    int depth = -1;
+    int slot;
+    Enviroment.Global global;
   }
   static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
@@ -48,6 +52,7 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+    boolean generic;
   }
   static class Call extends Expr {
     Call(Expr callee, Token paren, List<Expr> arguments) {
@@ -64,6 +69,7 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+    MethodCache methodCache = new MethodCache();
   }
   static class Get extends Expr {
     Get(Expr object, Token name) {
@@ -78,6 +84,7 @@ abstract class Expr {
 
     final Expr object;
     final Token name;
+    FieldCache cache = new FieldCache();
   }
   static class Set extends Expr {
     Set(Expr object, Token name, Expr value) {
@@ -94,6 +101,7 @@ abstract class Expr {
     final Expr object;
     final Token name;
     final Expr value;
+    FieldCache cache = new FieldCache();
   }
   static class This extends Expr {
     This(Token keyword) {
@@ -106,6 +114,8 @@ abstract class Expr {
     }
 
     final Token keyword;
+    int depth = -1;
+    int slot;
   }
   static class Grouping extends Expr {
     Grouping(Expr expression) {
@@ -176,6 +186,9 @@ abstract class Expr {
     final Token name;
     final Token operator;
     final Boolean left;
+    int depth = -1;
+    int slot;
+    Enviroment.Global global;
   }
   static class Variable extends Expr {
     Variable(Token name) {
@@ -188,6 +201,9 @@ abstract class Expr {
     }
 
     final Token name;
+    int depth = -1;
+    int slot;
+    Enviroment.Global global;
   }
   static class Logical extends Expr {
     Logical(Expr left, Token operator, Expr right) {
@@ -205,6 +221,22 @@ abstract class Expr {
     final Token operator;
     final Expr right;
   }
+  static class Inline extends Expr {
+    Inline(Expr.Call call, Expr body, Token target) {
+      this.call = call;
+      this.body = body;
+      this.target = target;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitInlineExpr(this);
+    }
+
+    final Expr.Call call;
+    final Expr body;
+    final Token target;
+  }
 
   abstract <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,1501 @@
+package org.doouding.lox;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Executable form of an Expr produced by the NodeCompiler. Each node is
+ * linked to its children when it is compiled, and every operator gets its
+ * own class so evaluation never switches on the token type. Operator nodes
+ * later replace themselves in their parent with a class specialised on
+ * the operand types they see, see SpecializingNode.
+ */
+abstract class ExprNode {
+    /**
+     * 持有这个节点的节点, 特化的节点通过它替换自己
+     */
+    Parent parent;
+
+    abstract Object evaluate(Enviroment env);
+
+    /**
+     * A node holding ExprNode children, any of which may replace itself.
+     */
+    interface Parent {
+        /**
+         * Put node in the place of child.
+         * @return false if child is no longer a child, it was replaced already
+         */
+        boolean replace(ExprNode child, ExprNode node);
+    }
+
+    /**
+     * Make a node the parent of its child.
+     * @return the child
+     */
+    static <T extends ExprNode> T adopt(Parent parent, T child) {
+        if (child != null) child.parent = parent;
+        return child;
+    }
+
+    static class Constant extends ExprNode {
+        private final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            return value;
+        }
+    }
+
+    static class LocalVariable extends ExprNode {
+        private final int depth;
+        private final int slot;
+
+        LocalVariable(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            if (RuntimeStats.ENABLED) RuntimeStats.localReads++;
+            return env.getAt(depth, slot);
+        }
+    }
+
+    static class GlobalVariable extends ExprNode {
+        private final Enviroment globals;
+        private final Enviroment.Global global;
+        private final Token name;
+
+        GlobalVariable(Enviroment globals, Token name) {
+            this.globals = globals;
+            this.global = globals.global(name.lexeme);
+            this.name = name;
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            if (RuntimeStats.ENABLED) RuntimeStats.globalReads++;
+            return globals.get(global, name);
+        }
+    }
+
+    static class AssignLocal extends ExprNode implements Parent {
+        private final int depth;
+        private final int slot;
+        private ExprNode value;
+
+        AssignLocal(int depth, int slot, ExprNode value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.value = adopt(this, value);
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            Object result = value.evaluate(env);
+            env.assignAt(depth, slot, result);
+            return result;
+        }
+
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (value != child) return false;
+            value = node;
+            return true;
+        }
+    }
+
+    static class AssignGlobal extends ExprNode implements Parent {
+        private final Enviroment globals;
+        private final Enviroment.Global global;
+        private final Token name;
+        private ExprNode value;
+
+        AssignGlobal(Enviroment globals, Token name, ExprNode value) {
+            this.globals = globals;
+            this.global = globals.global(name.lexeme);
+            this.name = name;
+            this.value = adopt(this, value);
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            Object result = value.evaluate(env);
+            globals.assign(global, name, result);
+            return result;
+        }
+
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (value != child) return false;
+            value = node;
+            return true;
+        }
+    }
+
+    /**
+     * A node that specialises itself on the operand types it sees.
+     *
+     * The NodeCompiler makes every operator node UNINITIALIZED. Its first
+     * evaluation replaces it in its parent with the form of the operator
+     * for the operands it got: a class that only handles numbers (strings,
+     * booleans) and checks nothing but the operand classes, or the GENERIC
+     * form when the operands fit none. A specialised form that gets other
+     * operands replaces itself with the GENERIC one for good, which checks
+     * the operands and reports errors the way the Interpreter does.
+     *
+     * A node keeps evaluating after it replaced itself, to finish the
+     * evaluation it is in. A recursive call may have reached the same node
+     * and replaced it in the meantime; then the parent no longer holds it
+     * and nothing changes.
+     */
+    abstract static class SpecializingNode extends ExprNode {
+        static final int UNINITIALIZED = 0;
+        static final int NUMBER = 1;
+        static final int STRING = 2;
+        static final int BOOLEAN = 3;
+        static final int GENERIC = 4;
+
+        private static final String[] STATE_NAMES = { "uninitialized", "number", "string", "boolean", "generic" };
+
+        /**
+         * Number of nodes in each state, reported by --stats
+         */
+        private static final int[] sites = new int[STATE_NAMES.length];
+
+        /**
+         * 节点的状态, 每种特化状态是单独的节点类
+         */
+        final int state;
+
+        SpecializingNode(int state) {
+            this.state = state;
+            if (state == UNINITIALIZED) sites[UNINITIALIZED]++;
+        }
+
+        /**
+         * Put a node for another state in this one's place.
+         */
+        void specialize(SpecializingNode node) {
+            if (parent == null || !parent.replace(this, node)) return;
+
+            node.parent = parent;
+            node.adoptChildren();
+            sites[state]--;
+            sites[node.state]++;
+        }
+
+        /**
+         * Become the parent of the children. An uninitialized node does it
+         * when it is made, a specialised one once it is in the tree.
+         */
+        void adoptChildren() {
+        }
+
+        /**
+         * Forget the nodes counted so far, for a new script.
+         */
+        static void reset() {
+            Arrays.fill(sites, 0);
+        }
+
+        static void report(PrintStream out) {
+            out.println("specialised nodes:");
+            for (int i = 0; i < STATE_NAMES.length; i++) {
+                out.println("  " + STATE_NAMES[i] + ": " + sites[i]);
+            }
+        }
+    }
+
+    static class SelfOpLocal extends SpecializingNode {
+        final Token operator;
+        final int depth;
+        final int slot;
+        final double delta;
+        final boolean prefix;
+
+        SelfOpLocal(Token operator, int depth, int slot, boolean prefix) {
+            this(operator, depth, slot, prefix, UNINITIALIZED);
+        }
+
+        SelfOpLocal(Token operator, int depth, int slot, boolean prefix, int state) {
+            super(state);
+            this.operator = operator;
+            this.depth = depth;
+            this.slot = slot;
+            this.delta = operator.type == TokenType.DECREMENT ? -1 : 1;
+            this.prefix = prefix;
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+            Object variable = env.getAt(depth, slot);
+
+            if (state == UNINITIALIZED) {
+                specialize(variable instanceof Double ? new Numbers(this) : in(GENERIC));
+            }
+
+            return update(env, variable);
+        }
+
+        Object update(Enviroment env, Object variable) {
+            Interpreter.checkNumberOperand(operator, variable);
+
+            Double calculatedValue = (double)variable + delta;
+            env.assignAt(depth, slot, calculatedValue);
+
+            return prefix ? calculatedValue : variable;
+        }
+
+        SelfOpLocal in(int state) {
+            return new SelfOpLocal(operator, depth, slot, prefix, state);
+        }
+
+        static class Numbers extends SelfOpLocal {
+            Numbers(SelfOpLocal node) {
+                super(node.operator, node.depth, node.slot, node.prefix, NUMBER);
+            }
+
+            @Override
+            Object evaluate(Enviroment env) {
+                if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+                Object variable = env.getAt(depth, slot);
+
+                if (variable instanceof Double) {
+                    Double calculatedValue = (double)variable + delta;
+                    env.assignAt(depth, slot, calculatedValue);
+                    return prefix ? calculatedValue : variable;
+                }
+
+                specialize(in(GENERIC));
+                return update(env, variable);
+            }
+        }
+    }
+
+    static class SelfOpGlobal extends SpecializingNode {
+        final Enviroment globals;
+        final Enviroment.Global global;
+        final Token name;
+        final Token operator;
+        final double delta;
+        final boolean prefix;
+
+        SelfOpGlobal(Enviroment globals, Token name, Token operator, boolean prefix) {
+            this(globals, globals.global(name.lexeme), name, operator, prefix, UNINITIALIZED);
+        }
+
+        SelfOpGlobal(Enviroment globals, Enviroment.Global global, Token name, Token operator, boolean prefix, int state) {
+            super(state);
+            this.globals = globals;
+            this.global = global;
+            this.name = name;
+            this.operator = operator;
+            this.delta = operator.type == TokenType.DECREMENT ? -1 : 1;
+            this.prefix = prefix;
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+            Object variable = globals.get(global, name);
+
+            if (state == UNINITIALIZED) {
+                specialize(variable instanceof Double ? new Numbers(this) : in(GENERIC));
+            }
+
+            return update(variable);
+        }
+
+        Object update(Object variable) {
+            Interpreter.checkNumberOperand(operator, variable);
+
+            Double calculatedValue = (double)variable + delta;
+            globals.assign(global, name, calculatedValue);
+
+            return prefix ? calculatedValue : variable;
+        }
+
+        SelfOpGlobal in(int state) {
+            return new SelfOpGlobal(globals, global, name, operator, prefix, state);
+        }
+
+        static class Numbers extends SelfOpGlobal {
+            Numbers(SelfOpGlobal node) {
+                super(node.globals, node.global, node.name, node.operator, node.prefix, NUMBER);
+            }
+
+            @Override
+            Object evaluate(Enviroment env) {
+                if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+                Object variable = globals.get(global, name);
+
+                if (variable instanceof Double) {
+                    Double calculatedValue = (double)variable + delta;
+                    globals.assign(global, name, calculatedValue);
+                    return prefix ? calculatedValue : variable;
+                }
+
+                specialize(in(GENERIC));
+                return update(variable);
+            }
+        }
+    }
+
+    /**
+     * Operator with one operand.
+     */
+    abstract static class UnaryNode extends SpecializingNode implements Parent {
+        ExprNode right;
+
+        UnaryNode(ExprNode right, int state) {
+            super(state);
+            this.right = right;
+            if (state == UNINITIALIZED) adoptChildren();
+        }
+
+        @Override
+        void adoptChildren() {
+            adopt(this, right);
+        }
+
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (right != child) return false;
+            right = node;
+            return true;
+        }
+    }
+
+    static class Negate extends UnaryNode {
+        final Token operator;
+
+        Negate(Token operator, ExprNode right) {
+            this(operator, right, UNINITIALIZED);
+        }
+
+        Negate(Token operator, ExprNode right, int state) {
+            super(right, state);
+            this.operator = operator;
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+            Object value = right.evaluate(env);
+
+            if (state == UNINITIALIZED) {
+                specialize(value instanceof Double ? new Numbers(this) : in(GENERIC));
+            }
+
+            Interpreter.checkNumberOperand(operator, value);
+            return -(double)value;
+        }
+
+        Negate in(int state) {
+            return new Negate(operator, right, state);
+        }
+
+        static class Numbers extends Negate {
+            Numbers(Negate node) {
+                super(node.operator, node.right, NUMBER);
+            }
+
+            @Override
+            Object evaluate(Enviroment env) {
+                if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+                Object value = right.evaluate(env);
+                if (value instanceof Double) return -(double)value;
+
+                specialize(in(GENERIC));
+                Interpreter.checkNumberOperand(operator, value);
+                return -(double)value;
+            }
+        }
+    }
+
+    static class Not extends UnaryNode {
+        Not(ExprNode right) {
+            this(right, UNINITIALIZED);
+        }
+
+        Not(ExprNode right, int state) {
+            super(right, state);
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            if (RuntimeStats.ENABLED) RuntimeStats.operator(TokenType.BANG);
+            Object value = right.evaluate(env);
+
+            if (state == UNINITIALIZED) {
+                specialize(value instanceof Boolean ? new Booleans(this) : new Not(right, GENERIC));
+            }
+
+            return !Interpreter.isTruthy(value);
+        }
+
+        static class Booleans extends Not {
+            Booleans(Not node) {
+                super(node.right, BOOLEAN);
+            }
+
+            @Override
+            Object evaluate(Enviroment env) {
+                if (RuntimeStats.ENABLED) RuntimeStats.operator(TokenType.BANG);
+                Object value = right.evaluate(env);
+                if (value instanceof Boolean) return !(boolean)value;
+
+                specialize(new Not(right, GENERIC));
+                return !Interpreter.isTruthy(value);
+            }
+        }
+    }
+
+    /**
+     * Operator with two operands, both are evaluated before it looks at them.
+     */
+    abstract static class BinaryNode extends SpecializingNode implements Parent {
+        final Token operator;
+        ExprNode left;
+        ExprNode right;
+
+        BinaryNode(Token operator, ExprNode left, ExprNode right, int state) {
+            super(state);
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            if (state == UNINITIALIZED) adoptChildren();
+        }
+
+        @Override
+        void adoptChildren() {
+            adopt(this, left);
+            adopt(this, right);
+        }
+
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (left == child) {
+                left = node;
+            } else if (right == child) {
+                right = node;
+            } else {
+                return false;
+            }
+
+            return true;
+        }
+    }
+
+    static class Add extends BinaryNode {
+        Add(Token operator, ExprNode left, ExprNode right) {
+            this(operator, left, right, UNINITIALIZED);
+        }
+
+        Add(Token operator, ExprNode left, ExprNode right, int state) {
+            super(operator, left, right, state);
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+            return add(left.evaluate(env), right.evaluate(env));
+        }
+
+        private Object add(Object l, Object r) {
+            if (l instanceof Double && r instanceof Double) {
+                if (state == UNINITIALIZED) specialize(new Numbers(this));
+                return (double)l + (double)r;
+            }
+
+            if (Rope.isString(l) && Rope.isString(r)) {
+                if (state == UNINITIALIZED) specialize(new Strings(this));
+                return Rope.concat(l, r);
+            }
+
+            if (state == UNINITIALIZED) specialize(new Add(operator, left, right, GENERIC));
+            throw new RuntimeError(operator, "Operands must be two numbers or two strings");
+        }
+
+        /**
+         * Leave a specialised form for operands it doesn't take.
+         */
+        Object generalize(Object l, Object r) {
+            specialize(new Add(operator, left, right, GENERIC));
+            return add(l, r);
+        }
+
+        static class Numbers extends Add {
+            Numbers(Add node) {
+                super(node.operator, node.left, node.right, NUMBER);
+            }
+
+            @Override
+            Object evaluate(Enviroment env) {
+                if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+                Object l = left.evaluate(env);
+                Object r = right.evaluate(env);
+                if (l instanceof Double && r instanceof Double) return (double)l + (double)r;
+                return generalize(l, r);
+            }
+        }
+
+        static class Strings extends Add {
+            Strings(Add node) {
+                super(node.operator, node.left, node.right, STRING);
+            }
+
+            @Override
+            Object evaluate(Enviroment env) {
+                if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+                Object l = left.evaluate(env);
+                Object r = right.evaluate(env);
+                if (Rope.isString(l) && Rope.isString(r)) return Rope.concat(l, r);
+                return generalize(l, r);
+            }
+        }
+    }
+
+    /**
+     * Operator that only takes numbers: the arithmetic other than + and
+     * the comparisons. Its GENERIC form checks the operands on every
+     * evaluation, its Numbers form only their classes.
+     */
+    abstract static class NumberOperator extends BinaryNode {
+        NumberOperator(Token operator, ExprNode left, ExprNode right, int state) {
+            super(operator, left, right, state);
+        }
+
+        /**
+         * @return the operator in another state, on the same operands
+         */
+        abstract NumberOperator in(int state);
+
+        abstract Object apply(double l, double r);
+
+        @Override
+        Object evaluate(Enviroment env) {
+            if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+            Object l = left.evaluate(env);
+            Object r = right.evaluate(env);
+
+            if (state == UNINITIALIZED) {
+                specialize(in(l instanceof Double && r instanceof Double ? NUMBER : GENERIC));
+            }
+
+            Interpreter.checkNumberOperands(operator, l, r);
+            return apply((double)l, (double)r);
+        }
+
+        /**
+         * Leave the Numbers form for operands that are not two numbers.
+         */
+        Object generalize(Object l, Object r) {
+            specialize(in(GENERIC));
+            Interpreter.checkNumberOperands(operator, l, r);
+            return apply((double)l, (double)r);
+        }
+    }
+
+    static class Subtract extends NumberOperator {
+        Subtract(Token operator, ExprNode left, ExprNode right) {
+            this(operator, left, right, UNINITIALIZED);
+        }
+
+        Subtract(Token operator, ExprNode left, ExprNode right, int state) {
+            super(operator, left, right, state);
+        }
+
+        @Override
+        NumberOperator in(int state) {
+            return state == NUMBER ? new Numbers(this) : new Subtract(operator, left, right, state);
+        }
+
+        @Override
+        Object apply(double l, double r) {
+            return l - r;
+        }
+
+        static class Numbers extends Subtract {
+            Numbers(Subtract node) {
+                super(node.operator, node.left, node.right, NUMBER);
+            }
+
+            @Override
+            Object evaluate(Enviroment env) {
+                if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+                Object l = left.evaluate(env);
+                Object r = right.evaluate(env);
+                if (l instanceof Double && r instanceof Double) return (double)l - (double)r;
+                return generalize(l, r);
+            }
+        }
+    }
+
+    static class Multiply extends NumberOperator {
+        Multiply(Token operator, ExprNode left, ExprNode right) {
+            this(operator, left, right, UNINITIALIZED);
+        }
+
+        Multiply(Token operator, ExprNode left, ExprNode right, int state) {
+            super(operator, left, right, state);
+        }
+
+        @Override
+        NumberOperator in(int state) {
+            return state == NUMBER ? new Numbers(this) : new Multiply(operator, left, right, state);
+        }
+
+        @Override
+        Object apply(double l, double r) {
+            return l * r;
+        }
+
+        static class Numbers extends Multiply {
+            Numbers(Multiply node) {
+                super(node.operator, node.left, node.right, NUMBER);
+            }
+
+            @Override
+            Object evaluate(Enviroment env) {
+                if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+                Object l = left.evaluate(env);
+                Object r = right.evaluate(env);
+                if (l instanceof Double && r instanceof Double) return (double)l * (double)r;
+                return generalize(l, r);
+            }
+        }
+    }
+
+    static class Divide extends NumberOperator {
+        Divide(Token operator, ExprNode left, ExprNode right) {
+            this(operator, left, right, UNINITIALIZED);
+        }
+
+        Divide(Token operator, ExprNode left, ExprNode right, int state) {
+            super(operator, left, right, state);
+        }
+
+        @Override
+        NumberOperator in(int state) {
+            return state == NUMBER ? new Numbers(this) : new Divide(operator, left, right, state);
+        }
+
+        @Override
+        Object apply(double l, double r) {
+            return l / r;
+        }
+
+        static class Numbers extends Divide {
+            Numbers(Divide node) {
+                super(node.operator, node.left, node.right, NUMBER);
+            }
+
+            @Override
+            Object evaluate(Enviroment env) {
+                if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+                Object l = left.evaluate(env);
+                Object r = right.evaluate(env);
+                if (l instanceof Double && r instanceof Double) return (double)l / (double)r;
+                return generalize(l, r);
+            }
+        }
+    }
+
+    static class Greater extends NumberOperator {
+        Greater(Token operator, ExprNode left, ExprNode right) {
+            this(operator, left, right, UNINITIALIZED);
+        }
+
+        Greater(Token operator, ExprNode left, ExprNode right, int state) {
+            super(operator, left, right, state);
+        }
+
+        @Override
+        NumberOperator in(int state) {
+            return state == NUMBER ? new Numbers(this) : new Greater(operator, left, right, state);
+        }
+
+        @Override
+        Object apply(double l, double r) {
+            return l > r;
+        }
+
+        static class Numbers extends Greater {
+            Numbers(Greater node) {
+                super(node.operator, node.left, node.right, NUMBER);
+            }
+
+            @Override
+            Object evaluate(Enviroment env) {
+                if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+                Object l = left.evaluate(env);
+                Object r = right.evaluate(env);
+                if (l instanceof Double && r instanceof Double) return (double)l > (double)r;
+                return generalize(l, r);
+            }
+        }
+    }
+
+    static class GreaterEqual extends NumberOperator {
+        GreaterEqual(Token operator, ExprNode left, ExprNode right) {
+            this(operator, left, right, UNINITIALIZED);
+        }
+
+        GreaterEqual(Token operator, ExprNode left, ExprNode right, int state) {
+            super(operator, left, right, state);
+        }
+
+        @Override
+        NumberOperator in(int state) {
+            return state == NUMBER ? new Numbers(this) : new GreaterEqual(operator, left, right, state);
+        }
+
+        @Override
+        Object apply(double l, double r) {
+            return l >= r;
+        }
+
+        static class Numbers extends GreaterEqual {
+            Numbers(GreaterEqual node) {
+                super(node.operator, node.left, node.right, NUMBER);
+            }
+
+            @Override
+            Object evaluate(Enviroment env) {
+                if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+                Object l = left.evaluate(env);
+                Object r = right.evaluate(env);
+                if (l instanceof Double && r instanceof Double) return (double)l >= (double)r;
+                return generalize(l, r);
+            }
+        }
+    }
+
+    static class Less extends NumberOperator {
+        Less(Token operator, ExprNode left, ExprNode right) {
+            this(operator, left, right, UNINITIALIZED);
+        }
+
+        Less(Token operator, ExprNode left, ExprNode right, int state) {
+            super(operator, left, right, state);
+        }
+
+        @Override
+        NumberOperator in(int state) {
+            return state == NUMBER ? new Numbers(this) : new Less(operator, left, right, state);
+        }
+
+        @Override
+        Object apply(double l, double r) {
+            return l < r;
+        }
+
+        static class Numbers extends Less {
+            Numbers(Less node) {
+                super(node.operator, node.left, node.right, NUMBER);
+            }
+
+            @Override
+            Object evaluate(Enviroment env) {
+                if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+                Object l = left.evaluate(env);
+                Object r = right.evaluate(env);
+                if (l instanceof Double && r instanceof Double) return (double)l < (double)r;
+                return generalize(l, r);
+            }
+        }
+    }
+
+    static class LessEqual extends NumberOperator {
+        LessEqual(Token operator, ExprNode left, ExprNode right) {
+            this(operator, left, right, UNINITIALIZED);
+        }
+
+        LessEqual(Token operator, ExprNode left, ExprNode right, int state) {
+            super(operator, left, right, state);
+        }
+
+        @Override
+        NumberOperator in(int state) {
+            return state == NUMBER ? new Numbers(this) : new LessEqual(operator, left, right, state);
+        }
+
+        @Override
+        Object apply(double l, double r) {
+            return l <= r;
+        }
+
+        static class Numbers extends LessEqual {
+            Numbers(LessEqual node) {
+                super(node.operator, node.left, node.right, NUMBER);
+            }
+
+            @Override
+            Object evaluate(Enviroment env) {
+                if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+                Object l = left.evaluate(env);
+                Object r = right.evaluate(env);
+                if (l instanceof Double && r instanceof Double) return (double)l <= (double)r;
+                return generalize(l, r);
+            }
+        }
+    }
+
+    static class Equal extends BinaryNode {
+        Equal(Token operator, ExprNode left, ExprNode right) {
+            this(operator, left, right, UNINITIALIZED);
+        }
+
+        Equal(Token operator, ExprNode left, ExprNode right, int state) {
+            super(operator, left, right, state);
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+            return equal(left.evaluate(env), right.evaluate(env));
+        }
+
+        /**
+         * Same result as Interpreter.isEqual, numbers compare like Double.equals.
+         */
+        boolean equal(Object l, Object r) {
+            if (l instanceof Double && r instanceof Double) {
+                if (state == UNINITIALIZED) specialize(in(NUMBER));
+                return Double.doubleToLongBits((double)l) == Double.doubleToLongBits((double)r);
+            }
+
+            if (state == UNINITIALIZED) specialize(in(GENERIC));
+            return Interpreter.isEqual(l, r);
+        }
+
+        Equal in(int state) {
+            return state == NUMBER ? new Numbers(this) : new Equal(operator, left, right, state);
+        }
+
+        /**
+         * Leave the Numbers form for operands that are not two numbers.
+         */
+        boolean generalize(Object l, Object r) {
+            specialize(in(GENERIC));
+            return equal(l, r);
+        }
+
+        static class Numbers extends Equal {
+            Numbers(Equal node) {
+                super(node.operator, node.left, node.right, NUMBER);
+            }
+
+            @Override
+            Object evaluate(Enviroment env) {
+                if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+                Object l = left.evaluate(env);
+                Object r = right.evaluate(env);
+
+                if (l instanceof Double && r instanceof Double) {
+                    return Double.doubleToLongBits((double)l) == Double.doubleToLongBits((double)r);
+                }
+
+                return generalize(l, r);
+            }
+        }
+    }
+
+    static class NotEqual extends Equal {
+        NotEqual(Token operator, ExprNode left, ExprNode right) {
+            this(operator, left, right, UNINITIALIZED);
+        }
+
+        NotEqual(Token operator, ExprNode left, ExprNode right, int state) {
+            super(operator, left, right, state);
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+            return !equal(left.evaluate(env), right.evaluate(env));
+        }
+
+        @Override
+        Equal in(int state) {
+            return state == NUMBER ? new Numbers(this) : new NotEqual(operator, left, right, state);
+        }
+
+        static class Numbers extends NotEqual {
+            Numbers(NotEqual node) {
+                super(node.operator, node.left, node.right, NUMBER);
+            }
+
+            @Override
+            Object evaluate(Enviroment env) {
+                if (RuntimeStats.ENABLED) RuntimeStats.operator(operator.type);
+                Object l = left.evaluate(env);
+                Object r = right.evaluate(env);
+
+                if (l instanceof Double && r instanceof Double) {
+                    return Double.doubleToLongBits((double)l) != Double.doubleToLongBits((double)r);
+                }
+
+                return !generalize(l, r);
+            }
+        }
+    }
+
+    static class And extends BinaryNode {
+        And(Token operator, ExprNode left, ExprNode right) {
+            this(operator, left, right, UNINITIALIZED);
+        }
+
+        And(Token operator, ExprNode left, ExprNode right, int state) {
+            super(operator, left, right, state);
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            if (RuntimeStats.ENABLED) RuntimeStats.operator(TokenType.AND);
+            Object value = left.evaluate(env);
+
+            if (state == UNINITIALIZED) {
+                specialize(value instanceof Boolean ? new Booleans(this) : new And(operator, left, right, GENERIC));
+            }
+
+            if (!Interpreter.isTruthy(value)) return value;
+            return right.evaluate(env);
+        }
+
+        static class Booleans extends And {
+            Booleans(And node) {
+                super(node.operator, node.left, node.right, BOOLEAN);
+            }
+
+            @Override
+            Object evaluate(Enviroment env) {
+                if (RuntimeStats.ENABLED) RuntimeStats.operator(TokenType.AND);
+                Object value = left.evaluate(env);
+
+                if (value instanceof Boolean) {
+                    if (!(boolean)value) return value;
+                    return right.evaluate(env);
+                }
+
+                specialize(new And(operator, left, right, GENERIC));
+                if (!Interpreter.isTruthy(value)) return value;
+                return right.evaluate(env);
+            }
+        }
+    }
+
+    static class Or extends BinaryNode {
+        Or(Token operator, ExprNode left, ExprNode right) {
+            this(operator, left, right, UNINITIALIZED);
+        }
+
+        Or(Token operator, ExprNode left, ExprNode right, int state) {
+            super(operator, left, right, state);
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            if (RuntimeStats.ENABLED) RuntimeStats.operator(TokenType.OR);
+            Object value = left.evaluate(env);
+
+            if (state == UNINITIALIZED) {
+                specialize(value instanceof Boolean ? new Booleans(this) : new Or(operator, left, right, GENERIC));
+            }
+
+            if (Interpreter.isTruthy(value)) return value;
+            return right.evaluate(env);
+        }
+
+        static class Booleans extends Or {
+            Booleans(Or node) {
+                super(node.operator, node.left, node.right, BOOLEAN);
+            }
+
+            @Override
+            Object evaluate(Enviroment env) {
+                if (RuntimeStats.ENABLED) RuntimeStats.operator(TokenType.OR);
+                Object value = left.evaluate(env);
+
+                if (value instanceof Boolean) {
+                    if ((boolean)value) return value;
+                    return right.evaluate(env);
+                }
+
+                specialize(new Or(operator, left, right, GENERIC));
+                if (Interpreter.isTruthy(value)) return value;
+                return right.evaluate(env);
+            }
+        }
+    }
+
+    static class Conditional extends ExprNode implements Parent {
+        private ExprNode condition;
+        private ExprNode thenValue;
+        private ExprNode elseValue;
+
+        Conditional(ExprNode condition, ExprNode thenValue, ExprNode elseValue) {
+            this.condition = adopt(this, condition);
+            this.thenValue = adopt(this, thenValue);
+            this.elseValue = adopt(this, elseValue);
+        }
+
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (condition == child) {
+                condition = node;
+            } else if (thenValue == child) {
+                thenValue = node;
+            } else if (elseValue == child) {
+                elseValue = node;
+            } else {
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            if (Interpreter.isTruthy(condition.evaluate(env))) {
+                return thenValue.evaluate(env);
+            }
+
+            return elseValue.evaluate(env);
+        }
+    }
+
+    static class Get extends ExprNode implements Parent {
+        private ExprNode object;
+        private final Token name;
+        private final FieldCache cache = new FieldCache();
+
+        Get(ExprNode object, Token name) {
+            this.object = adopt(this, object);
+            this.name = name;
+        }
+
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (object != child) return false;
+            object = node;
+            return true;
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            Object value = object.evaluate(env);
+
+            if (value instanceof LoxInstanceProxy) {
+                return cache.get((LoxInstanceProxy) value, name);
+            }
+
+            if (value instanceof LoxClass) {
+                return ((LoxClass) value).getStatic(name);
+            }
+
+            throw new RuntimeError(name, "Only instances have properties.");
+        }
+    }
+
+    static class Set extends ExprNode implements Parent {
+        private ExprNode object;
+        private final Token name;
+        private ExprNode value;
+        private final FieldCache cache = new FieldCache();
+
+        Set(ExprNode object, Token name, ExprNode value) {
+            this.object = adopt(this, object);
+            this.name = name;
+            this.value = adopt(this, value);
+        }
+
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (object == child) {
+                object = node;
+            } else if (value == child) {
+                value = node;
+            } else {
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            Object target = object.evaluate(env);
+
+            if (!(target instanceof LoxInstanceProxy)) {
+                throw new RuntimeError(name, "Only instances have fields");
+            }
+
+            cache.set((LoxInstanceProxy)target, name, value.evaluate(env));
+            return null;
+        }
+    }
+
+    /**
+     * Calls are specialised by argument count so the common small arities
+     * avoid the argument loop.
+     */
+    abstract static class CallNode extends ExprNode implements Parent {
+        final Interpreter interpreter;
+        ExprNode callee;
+        final Token paren;
+        final ExprNode[] arguments;
+
+        CallNode(Interpreter interpreter, ExprNode callee, Token paren, ExprNode[] arguments) {
+            this.interpreter = interpreter;
+            this.callee = adopt(this, callee);
+            this.paren = paren;
+            this.arguments = arguments;
+            for (ExprNode argument : arguments) adopt(this, argument);
+        }
+
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (callee == child) {
+                callee = node;
+                return true;
+            }
+
+            for (int i = 0; i < arguments.length; i++) {
+                if (arguments[i] == child) {
+                    arguments[i] = node;
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        LoxCallable callable(Object value, int count) {
+            if (interpreter.profiler != null) interpreter.profiler.line(paren.line);
+
+            if (!(value instanceof LoxCallable)) {
+                throw new RuntimeError(paren, "Can only call functions and classes.");
+            }
+
+            LoxCallable function = (LoxCallable)value;
+            if (count != function.arity()) {
+                throw new RuntimeError(paren, "Expected " +
+                    function.arity() + " arguments but got " +
+                    count + ".");
+            }
+
+            return function;
+        }
+
+        /**
+         * Evaluate the call as the value of a return statement. A Lox
+         * function of the right arity is not called but left in the
+         * Interpreter as the tail call, see LoxFunction.execute.
+         */
+        Object tailCall(Enviroment env) {
+            Object value = callee.evaluate(env);
+
+            if (value instanceof LoxFunction && ((LoxFunction)value).arity() == arguments.length) {
+                LoxFunction function = (LoxFunction)value;
+                interpreter.tailCall(function, frame(function, function.instance, env), function.instance);
+                return null;
+            }
+
+            Object[] values = values(env);
+            return callable(value, values.length).call(interpreter, values);
+        }
+
+        /**
+         * Create the callee frame and evaluate the arguments straight into it.
+         */
+        Enviroment frame(LoxFunction function, LoxInstanceProxy receiver, Enviroment env) {
+            if (interpreter.profiler != null) interpreter.profiler.line(paren.line);
+
+            Enviroment frame = function.frame(receiver);
+            for (ExprNode argument : arguments) {
+                frame.define(argument.evaluate(env));
+            }
+
+            return frame;
+        }
+
+        Object[] values(Enviroment env) {
+            Object[] values = new Object[arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                values[i] = arguments[i].evaluate(env);
+            }
+
+            return values;
+        }
+    }
+
+    static class Call0 extends CallNode {
+        Call0(Interpreter interpreter, ExprNode callee, Token paren) {
+            super(interpreter, callee, paren, new ExprNode[0]);
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            LoxCallable function = callable(callee.evaluate(env), 0);
+            return function.call0(interpreter);
+        }
+    }
+
+    static class Call1 extends CallNode {
+        private ExprNode arg0;
+
+        Call1(Interpreter interpreter, ExprNode callee, Token paren, ExprNode arg0) {
+            super(interpreter, callee, paren, new ExprNode[] { arg0 });
+            this.arg0 = arg0;
+        }
+
+        /**
+         * The argument fields repeat the arguments array, both are replaced.
+         */
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (!super.replace(child, node)) return false;
+            arg0 = arguments[0];
+            return true;
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            Object value = callee.evaluate(env);
+            Object a0 = arg0.evaluate(env);
+            return callable(value, 1).call1(interpreter, a0);
+        }
+    }
+
+    static class Call2 extends CallNode {
+        private ExprNode arg0;
+        private ExprNode arg1;
+
+        Call2(Interpreter interpreter, ExprNode callee, Token paren, ExprNode arg0, ExprNode arg1) {
+            super(interpreter, callee, paren, new ExprNode[] { arg0, arg1 });
+            this.arg0 = arg0;
+            this.arg1 = arg1;
+        }
+
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (!super.replace(child, node)) return false;
+            arg0 = arguments[0];
+            arg1 = arguments[1];
+            return true;
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            Object value = callee.evaluate(env);
+            Object a0 = arg0.evaluate(env);
+            Object a1 = arg1.evaluate(env);
+            return callable(value, 2).call2(interpreter, a0, a1);
+        }
+    }
+
+    static class Call3 extends CallNode {
+        private ExprNode arg0;
+        private ExprNode arg1;
+        private ExprNode arg2;
+
+        Call3(Interpreter interpreter, ExprNode callee, Token paren, ExprNode arg0, ExprNode arg1, ExprNode arg2) {
+            super(interpreter, callee, paren, new ExprNode[] { arg0, arg1, arg2 });
+            this.arg0 = arg0;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+        }
+
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (!super.replace(child, node)) return false;
+            arg0 = arguments[0];
+            arg1 = arguments[1];
+            arg2 = arguments[2];
+            return true;
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            Object value = callee.evaluate(env);
+            Object a0 = arg0.evaluate(env);
+            Object a1 = arg1.evaluate(env);
+            Object a2 = arg2.evaluate(env);
+            return callable(value, 3).call3(interpreter, a0, a1, a2);
+        }
+    }
+
+    static class CallN extends CallNode {
+        CallN(Interpreter interpreter, ExprNode callee, Token paren, ExprNode[] arguments) {
+            super(interpreter, callee, paren, arguments);
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            Object value = callee.evaluate(env);
+            Object[] values = values(env);
+            return callable(value, values.length).call(interpreter, values);
+        }
+    }
+
+    /**
+     * obj.method(...) call. A method found through the call site's
+     * MethodCache runs with obj as "this" without a bound method, anything
+     * else is read like a Get and called normally.
+     */
+    static class Invoke extends CallNode {
+        private final Token name;
+        private final MethodCache methods = new MethodCache();
+        private final FieldCache fields = new FieldCache();
+
+        Invoke(Interpreter interpreter, ExprNode object, Token name, Token paren, ExprNode[] arguments) {
+            super(interpreter, object, paren, arguments);
+            this.name = name;
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            return invoke(env, false);
+        }
+
+        @Override
+        Object tailCall(Enviroment env) {
+            return invoke(env, true);
+        }
+
+        private Object invoke(Enviroment env, boolean isTail) {
+            Object object = callee.evaluate(env);
+            LoxFunction method = null;
+            Object value;
+
+            if (object instanceof LoxInstanceProxy) {
+                method = methods.lookup((LoxInstanceProxy)object, name);
+                value = method != null ? method : fields.get((LoxInstanceProxy)object, name);
+            } else if (object instanceof LoxClass) {
+                value = ((LoxClass)object).getStatic(name);
+            } else {
+                throw new RuntimeError(name, "Only instances have properties.");
+            }
+
+            if (method != null && method.arity() == arguments.length) {
+                LoxInstanceProxy receiver = ((LoxInstanceProxy)object).instance.self();
+                Enviroment frame = frame(method, receiver, env);
+
+                if (isTail) {
+                    interpreter.tailCall(method, frame, receiver);
+                    return null;
+                }
+
+                return method.execute(interpreter, frame, receiver);
+            }
+
+            Object[] values = values(env);
+            return callable(value, values.length).call(interpreter, values);
+        }
+    }
+
+    /**
+     * Body of a function inlined by the Inliner, used while the callee
+     * still is that function. The guard reads the callee again in the
+     * fallback call, which is fine since it is a plain variable.
+     */
+    static class InlineFunction extends ExprNode implements Parent {
+        private ExprNode callee;
+        private final Token target;
+        private ExprNode body;
+        private ExprNode call;
+
+        InlineFunction(ExprNode callee, Token target, ExprNode body, ExprNode call) {
+            this.callee = adopt(this, callee);
+            this.target = target;
+            this.body = adopt(this, body);
+            this.call = adopt(this, call);
+        }
+
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (callee == child) {
+                callee = node;
+            } else if (body == child) {
+                body = node;
+            } else if (call == child) {
+                call = node;
+            } else {
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            Object value = callee.evaluate(env);
+
+            if (value instanceof LoxFunction && ((LoxFunction)value).declaration.name == target) {
+                return body.evaluate(env);
+            }
+
+            return call.evaluate(env);
+        }
+    }
+
+    /**
+     * Body of a method inlined by the Inliner, used while the receiver's
+     * class resolves the name to that method.
+     */
+    static class InlineMethod extends ExprNode implements Parent {
+        private ExprNode object;
+        private final Token name;
+        private final Token target;
+        private ExprNode body;
+        private ExprNode call;
+        private final MethodCache methods = new MethodCache();
+
+        InlineMethod(ExprNode object, Token name, Token target, ExprNode body, ExprNode call) {
+            this.object = adopt(this, object);
+            this.name = name;
+            this.target = target;
+            this.body = adopt(this, body);
+            this.call = adopt(this, call);
+        }
+
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (object == child) {
+                object = node;
+            } else if (body == child) {
+                body = node;
+            } else if (call == child) {
+                call = node;
+            } else {
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        Object evaluate(Enviroment env) {
+            Object value = object.evaluate(env);
+
+            if (value instanceof LoxInstanceProxy) {
+                LoxFunction method = methods.lookup((LoxInstanceProxy)value, name);
+                if (method != null && method.declaration.name == target) {
+                    return body.evaluate(env);
+                }
+            }
+
+            return call.evaluate(env);
+        }
+    }
+}
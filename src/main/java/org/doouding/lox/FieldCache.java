@@ -0,0 +1,67 @@
+package org.doouding.lox;
+
+/**
+ * Field offset cached by a single Get or Set site. It remembers the class
+ * the site last saw and where the field lives in its layout, so while
+ * instances of that class keep coming the access is an array read or
+ * write. Methods and errors always take the LoxInstance path.
+ */
+class FieldCache {
+    private LoxClass klass;
+    private int offset;
+    private boolean isPrivate;
+
+    Object get(LoxInstanceProxy proxy, Token name) {
+        LoxInstance instance = proxy.instance;
+
+        if (instance.klass == klass && (!isPrivate || proxy.allowPrivate)) {
+            return instance.values[offset];
+        }
+
+        // Public fields are looked up before private ones, as in LoxInstance.get.
+        int found = instance.klass.fieldOffset(name.symbol);
+        boolean foundPrivate = false;
+        if (found == -1) {
+            found = instance.klass.privateFieldOffset(name.symbol);
+            foundPrivate = true;
+        }
+
+        if (found == -1 || (foundPrivate && !proxy.allowPrivate)) {
+            return proxy.get(name);
+        }
+
+        remember(instance.klass, found, foundPrivate);
+        return instance.values[found];
+    }
+
+    void set(LoxInstanceProxy proxy, Token name, Object value) {
+        LoxInstance instance = proxy.instance;
+
+        if (instance.klass == klass && (!isPrivate || proxy.allowPrivate)) {
+            instance.values[offset] = value;
+            return;
+        }
+
+        // Private fields are looked up before public ones, as in LoxInstance.set.
+        int found = instance.klass.privateFieldOffset(name.symbol);
+        boolean foundPrivate = true;
+        if (found == -1) {
+            found = instance.klass.fieldOffset(name.symbol);
+            foundPrivate = false;
+        }
+
+        if (found == -1 || (foundPrivate && !proxy.allowPrivate)) {
+            proxy.set(name, value);
+            return;
+        }
+
+        remember(instance.klass, found, foundPrivate);
+        instance.values[found] = value;
+    }
+
+    private void remember(LoxClass klass, int offset, boolean isPrivate) {
+        this.klass = klass;
+        this.offset = offset;
+        this.isPrivate = isPrivate;
+    }
+}
@@ -0,0 +1,219 @@
+package org.doouding.lox;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replace calls of small functions and methods by their bodies.
+ *
+ * A top-level function or a method (not init, not static) is inlinable
+ * when its body is a single `return expr;` of at most maxSize nodes that
+ * only reads its parameters, globals, literals and public fields of
+ * `this`. Such a body has no calls, so it is not recursive, and cannot
+ * fail in a way the call wouldn't.
+ *
+ * A call site is inlined when its arguments (and the receiver of a method
+ * call) are literals or locals, so substituting them for the parameters
+ * neither repeats nor skips a side effect. The result is an Expr.Inline
+ * that checks at runtime that the callee still is the inlined function,
+ * since globals can be reassigned and a method name can belong to another
+ * class, and makes the call if it is not.
+ */
+class Inliner extends AstRewriter implements OptimizationPass {
+    private final int maxSize;
+    private int inlined = 0;
+
+    /**
+     * 可内联的函数和方法, 按名字. 同名的有多个时为 null
+     */
+    private final Map<String, Stmt.Function> functions = new HashMap<>();
+    private final Map<String, Stmt.Function> methods = new HashMap<>();
+
+    /**
+     * @param maxSize largest body, in expression nodes, that is inlined. 0 turns inlining off
+     */
+    Inliner(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public List<Stmt> run(List<Stmt> statements) {
+        if (maxSize <= 0) return statements;
+
+        functions.clear();
+        methods.clear();
+
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Function) {
+                Stmt.Function function = (Stmt.Function)statement;
+                candidate(functions, function, inlinable(function, null));
+            } else if (statement instanceof Stmt.Class) {
+                Stmt.Class klass = (Stmt.Class)statement;
+                Set<String> fields = new HashSet<>();
+                for (Expr.Variable field : klass.fields) {
+                    fields.add(field.name.lexeme);
+                }
+
+                for (Stmt.Function method : klass.methods) {
+                    boolean isInitializer = method.name.lexeme.equals("init");
+                    candidate(methods, method, !isInitializer && inlinable(method, fields));
+                }
+                for (Stmt.Function method : klass.privateMethods) {
+                    candidate(methods, method, inlinable(method, fields));
+                }
+            }
+        }
+
+        return rewrite(statements);
+    }
+
+    @Override
+    public void report(PrintStream out) {
+        out.println("  inlining: " + inlined + " call sites inlined");
+    }
+
+    private static void candidate(Map<String, Stmt.Function> candidates, Stmt.Function function, boolean inlinable) {
+        String name = function.name.lexeme;
+
+        // Another declaration of the name makes the call ambiguous.
+        if (candidates.containsKey(name) || !inlinable) {
+            candidates.put(name, null);
+        } else {
+            candidates.put(name, function);
+        }
+    }
+
+    /**
+     * @param fields public fields of the class for a method, null for a function
+     */
+    private boolean inlinable(Stmt.Function function, Set<String> fields) {
+        if (function.body.size() != 1 || !(function.body.get(0) instanceof Stmt.Return)) return false;
+
+        Expr value = ((Stmt.Return)function.body.get(0)).value;
+        return value != null && size(value, fields) <= maxSize;
+    }
+
+    /**
+     * Count the nodes of a body expression.
+     * @return Integer.MAX_VALUE if the expression can't be inlined
+     */
+    private static int size(Expr expr, Set<String> fields) {
+        if (expr instanceof Expr.Literal) return 1;
+
+        if (expr instanceof Expr.Variable) {
+            int depth = ((Expr.Variable)expr).depth;
+            return depth == -1 || depth == 0 ? 1 : Integer.MAX_VALUE;
+        }
+
+        if (expr instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr;
+            if (get.object instanceof Expr.This) {
+                return fields != null && fields.contains(get.name.lexeme) ? 2 : Integer.MAX_VALUE;
+            }
+
+            return add(1, size(get.object, fields));
+        }
+
+        if (expr instanceof Expr.Grouping) {
+            return add(1, size(((Expr.Grouping)expr).expression, fields));
+        }
+
+        if (expr instanceof Expr.Unary) {
+            return add(1, size(((Expr.Unary)expr).right, fields));
+        }
+
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            return add(1, add(size(binary.left, fields), size(binary.right, fields)));
+        }
+
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            return add(1, add(size(logical.left, fields), size(logical.right, fields)));
+        }
+
+        if (expr instanceof Expr.Conditional) {
+            Expr.Conditional conditional = (Expr.Conditional)expr;
+            return add(1, add(size(conditional.condition, fields),
+                add(size(conditional.stat1, fields), size(conditional.stat2, fields))));
+        }
+
+        // Calls, assignments, bare this and anything else stay calls.
+        return Integer.MAX_VALUE;
+    }
+
+    private static int add(int a, int b) {
+        return a == Integer.MAX_VALUE || b == Integer.MAX_VALUE ? Integer.MAX_VALUE : a + b;
+    }
+
+    /**
+     * Literals and locals (including this) can be read any number of times
+     * without an effect or an error.
+     */
+    private static boolean isSimple(Expr expr) {
+        if (expr instanceof Expr.Grouping) return isSimple(((Expr.Grouping)expr).expression);
+
+        return expr instanceof Expr.Literal
+            || expr instanceof Expr.This
+            || (expr instanceof Expr.Variable && ((Expr.Variable)expr).depth != -1);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr rewritten = super.visitCallExpr(expr);
+        Expr.Call call = (Expr.Call)rewritten;
+
+        Stmt.Function target = null;
+        Expr receiver = null;
+
+        if (call.callee instanceof Expr.Variable && ((Expr.Variable)call.callee).depth == -1) {
+            target = functions.get(((Expr.Variable)call.callee).name.lexeme);
+        } else if (call.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)call.callee;
+            if (isSimple(get.object)) {
+                target = methods.get(get.name.lexeme);
+                receiver = get.object;
+            }
+        }
+
+        if (target == null || target.params.size() != call.arguments.size()) return rewritten;
+
+        for (Expr argument : call.arguments) {
+            if (!isSimple(argument)) return rewritten;
+        }
+
+        Expr body = ((Stmt.Return)target.body.get(0)).value;
+        inlined++;
+        return new Expr.Inline(call, new Substitution(call.arguments, receiver).rewrite(body), target.name);
+    }
+
+    /**
+     * Put the call site's arguments in place of the parameters, and its
+     * receiver in place of this. Parameters are the depth 0 variables of
+     * the body, a method's start at slot 1 after this.
+     */
+    private static class Substitution extends AstRewriter {
+        private final List<Expr> arguments;
+        private final Expr receiver;
+
+        Substitution(List<Expr> arguments, Expr receiver) {
+            this.arguments = arguments;
+            this.receiver = receiver;
+        }
+
+        @Override
+        public Expr visitVariableExpr(Expr.Variable expr) {
+            if (expr.depth != 0) return expr;
+            return arguments.get(receiver == null ? expr.slot : expr.slot - 1);
+        }
+
+        @Override
+        public Expr visitThisExpr(Expr.This expr) {
+            return receiver;
+        }
+    }
+}
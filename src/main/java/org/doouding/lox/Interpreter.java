@@ -1,11 +1,10 @@
 package org.doouding.lox;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
     /**
      * 全局 Enviroment
      */
@@ -17,9 +16,26 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     private Enviroment enviroment = globals;
 
     /**
-     * 变量所处的 Enviroment 深度
+     * 最近一次 return 的值, 由正在返回的函数调用取走
      */
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    private Object returnValue;
+
+    /**
+     * 当前 Lox 函数调用的嵌套深度, 栈溢出时报告
+     */
+    int callDepth = 0;
+
+    /**
+     * --profile 时记录 Lox 调用栈, 否则为 null
+     */
+    Profiler profiler;
+
+    /**
+     * return f(...) 留下的尾调用, 由正在返回的函数在自己的循环里执行
+     */
+    LoxFunction tailFunction;
+    Enviroment tailFrame;
+    LoxInstanceProxy tailReceiver;
 
     Interpreter() {
         globals.define("clock", new LoxCallable() {
@@ -29,7 +45,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
            
            @Override
-           public Object call(Interpreter interpreter, List<Object> arguments) {
+           public Object call(Interpreter interpreter, Object[] arguments) {
                return (double)System.currentTimeMillis() / 1000.0;
            }
 
@@ -40,7 +56,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.depth, expr.slot);
     }
 
     @Override
@@ -52,17 +68,19 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         Object value = evaluate(expr.value);
-        ((LoxInstanceProxy)object).set(expr.name, value);
+        expr.cache.set((LoxInstanceProxy)object, expr.name, value);
 
         return null;
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        Object object = evaluate(expr.object);
+        return property(evaluate(expr.object), expr);
+    }
 
+    private Object property(Object object, Expr.Get expr) {
         if (object instanceof LoxInstanceProxy) {
-            return ((LoxInstanceProxy) object).get(expr.name);
+            return expr.cache.get((LoxInstanceProxy) object, expr.name);
         }
 
         if (object instanceof LoxClass) {
@@ -74,35 +92,33 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
-        enviroment.define(stmt.name.lexeme, null);
-
-        Map<String, LoxFunction> methods = new HashMap<>();
-        Map<String, LoxFunction> staticMethods = new HashMap<>();
-        Map<String, LoxFunction> privateMethods = new HashMap<>();
-        Map<String, LoxField> fields = new HashMap<>();
-        Map<String, LoxField> privateFields = new HashMap<>();
+    public Completion visitClassStmt(Stmt.Class stmt) {
+        Map<Symbol, LoxFunction> methods = new HashMap<>();
+        Map<Symbol, LoxFunction> staticMethods = new HashMap<>();
+        Map<Symbol, LoxFunction> privateMethods = new HashMap<>();
+        Map<Symbol, LoxField> fields = new HashMap<>();
+        Map<Symbol, LoxField> privateFields = new HashMap<>();
 
         for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, enviroment, method.name.lexeme.equals("init"));
-            methods.put(method.name.lexeme, function);
+            LoxFunction function = new LoxFunction(method, enviroment, method.name.symbol == Symbol.INIT);
+            methods.put(method.name.symbol, function);
         }
 
         for (Stmt.Function method : stmt.staticMethods) {
             LoxFunction function = new LoxFunction(method, enviroment, false);
-            staticMethods.put(method.name.lexeme, function);
+            staticMethods.put(method.name.symbol, function);
         }
 
         for (Stmt.Function method : stmt.privateMethods) {
             LoxFunction function = new LoxFunction(method, enviroment, false);
-            privateMethods.put(method.name.lexeme, function);
+            privateMethods.put(method.name.symbol, function);
         }
 
         for (Expr.Variable field: stmt.fields) {
-            fields.put(field.name.lexeme, new LoxField(field.name));
+            fields.put(field.name.symbol, new LoxField(field.name));
         }
         for (Expr.Variable field: stmt.privateFields) {
-            privateFields.put(field.name.lexeme, new LoxField(field.name));
+            privateFields.put(field.name.symbol, new LoxField(field.name));
         }
 
         LoxClass klass = new LoxClass(
@@ -113,69 +129,134 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             fields,
             privateFields
         );
-        enviroment.assign(stmt.name, klass);
-        return null;
+        define(stmt.name, klass);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
+        if (RuntimeStats.ENABLED) RuntimeStats.returns++;
+
         Object value = null;
-        if(stmt.value != null) value = evaluate(stmt.value);
+        if (stmt.value instanceof Expr.Call) {
+            value = call((Expr.Call)stmt.value, true);
+        } else if(stmt.value != null) {
+            value = evaluate(stmt.value);
+        }
 
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
         LoxFunction function = new LoxFunction(stmt, enviroment, false);
-        enviroment.define(stmt.name.lexeme, function);
-        return null;
+        define(stmt.name, function);
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        return call(expr, false);
+    }
+
+    /**
+     * @param isTail the call is the value of a return statement, a Lox
+     * function is then not called but left as the pending tail call
+     */
+    private Object call(Expr.Call expr, boolean isTail) {
+        if (profiler != null) profiler.line(expr.paren.line);
+
+        Object callee;
+        LoxInstanceProxy receiver = null;
+
+        if (expr.callee instanceof Expr.Get) {
+            // obj.method(...) calls the method with obj as "this" directly
+            // instead of creating a bound method first.
+            Expr.Get get = (Expr.Get)expr.callee;
+            Object object = evaluate(get.object);
+            LoxFunction method = null;
+
+            if (object instanceof LoxInstanceProxy) {
+                method = expr.methodCache.lookup((LoxInstanceProxy)object, get.name);
+            }
+
+            if (method != null) {
+                receiver = ((LoxInstanceProxy)object).instance.self();
+                callee = method;
+            } else {
+                callee = property(object, get);
+            }
+        } else {
+            callee = evaluate(expr.callee);
+        }
 
-        List<Object> arguments = new ArrayList<Object>();
-        for (Expr argument: expr.arguments) {
-            arguments.add(evaluate(argument));
+        int count = expr.arguments.size();
+
+        // A function of the right arity gets its arguments evaluated
+        // straight into the slots of its new frame.
+        if (callee instanceof LoxFunction && ((LoxFunction)callee).arity() == count) {
+            LoxFunction function = (LoxFunction)callee;
+            if (receiver == null) receiver = function.instance;
+
+            Enviroment frame = function.frame(receiver);
+            for (Expr argument: expr.arguments) {
+                frame.define(evaluate(argument));
+            }
+
+            if (isTail) {
+                tailCall(function, frame, receiver);
+                return null;
+            }
+
+            return function.execute(this, frame, receiver);
+        }
+
+        Object[] arguments = new Object[count];
+        for (int i = 0; i < count; i++) {
+            arguments[i] = evaluate(expr.arguments.get(i));
+        }
+
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(expr.paren, "Can only call functions and classes.");
         }
 
         LoxCallable function = (LoxCallable)callee;
-        if (arguments.size() != function.arity()) {
+        if (arguments.length != function.arity()) {
             throw new RuntimeError(expr.paren, "Expected " +
                 function.arity() + " arguments but got " +
-                arguments.size() + ".");
+                arguments.length + ".");
         }
 
         return function.call(this, arguments);
     }
 
     @Override
-    public Void visitTerminateStmt(Stmt.Terminate statement) {
-        throw new Terminate(statement.identifier);
+    public Completion visitTerminateStmt(Stmt.Terminate statement) {
+        if (RuntimeStats.ENABLED) RuntimeStats.terminates++;
+        return statement.identifier.type == TokenType.BREAK ? Completion.BREAK : Completion.CONTINUE;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While statement) {
+    public Completion visitWhileStmt(Stmt.While statement) {
         while(isTruthy(evaluate(statement.condition))) {
-            try {
-                execute(statement.loopStatement);
-            } catch(Terminate e) {
-                if(e.token.type == TokenType.BREAK) {
-                    break;
-                }
-                else if (e.token.type == TokenType.CONTINUE) {
-                    continue;
-                }
+            Completion completion = execute(statement.loopStatement);
+
+            if(completion == Completion.BREAK) {
+                break;
+            }
+            else if (completion == Completion.RETURN) {
+                return completion;
             }
         }
 
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitLogicalExpr(Expr.Logical expr) {
+        if (RuntimeStats.ENABLED) RuntimeStats.operator(expr.operator.type);
+
         Object left = evaluate(expr.left);
         boolean leftTruethy = isTruthy(left);
 
@@ -194,37 +275,55 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If statement) {
+    public Completion visitIfStmt(Stmt.If statement) {
         Object value = evaluate(statement.condition);
 
         if(isTruthy(value)){
-            execute(statement.thenBranch);
+            return execute(statement.thenBranch);
         }
         else if(statement.elseBranch != null) {
-            execute(statement.elseBranch);
+            return execute(statement.elseBranch);
         }
 
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
+        return assign(expr, true);
+    }
+
+    /**
+     * @param needValue false when the result of the assignment is unused,
+     * so a number stored unboxed doesn't get boxed just to be dropped
+     */
+    private Object assign(Expr.Assign expr, boolean needValue) {
+        if (expr.depth != -1 && isNumeric(expr.value)) {
+            try {
+                double value = evaluateNumber(expr.value);
+                enviroment.assignNumberAt(expr.depth, expr.slot, value);
+                return needValue ? (Object)value : null;
+            } catch (UnexpectedValue e) {
+                enviroment.assignAt(expr.depth, expr.slot, e.value);
+                return e.value;
+            }
+        }
+
         Object value = evaluate(expr.value);
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            enviroment.assignAt(distance, expr.name, value);
+        if (expr.depth != -1) {
+            enviroment.assignAt(expr.depth, expr.slot, value);
         } else {
-            globals.assign(expr.name, value);
+            expr.global = globals.global(expr.global, expr.name.lexeme);
+            globals.assign(expr.global, expr.name, value);
         }
 
         return value;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Enviroment(enviroment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        return executeBlock(stmt.statements, new Enviroment(enviroment, stmt.locals));
     }
 
     @Override
@@ -239,24 +338,63 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
+        if (RuntimeStats.ENABLED) RuntimeStats.operator(expr.operator.type);
 
         switch (expr.operator.type) {
             case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return -(double)right;
+                return negate(expr);
             case BANG:
-                return !isTruthy(right);
+                return !isTruthy(evaluate(expr.right));
             default:
                 return null;
         }
     }
 
+    private double negate(Expr.Unary expr) {
+        try {
+            return -evaluateNumber(expr.right);
+        } catch (UnexpectedValue e) {
+            checkNumberOperand(expr.operator, e.value);
+            throw e;
+        }
+    }
+
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+        if (RuntimeStats.ENABLED) RuntimeStats.operator(expr.operator.type);
+
+        switch (expr.operator.type) {
+            case PLUS:
+            case MINUS:
+            case STAR:
+            case SLASH:
+                if (expr.generic) break;
+
+                try {
+                    return arithmetic(expr);
+                } catch (UnexpectedValue e) {
+                    return e.value;
+                }
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return compare(expr);
+            case EQUAL_EQUAL:
+                return equal(expr);
+            case BANG_EQUAL:
+                return !equal(expr);
+            default:
+                break;
+        }
+
+        return binary(expr, evaluate(expr.left), evaluate(expr.right));
+    }
 
+    /**
+     * Apply a binary operator to operands that are already evaluated.
+     */
+    private Object binary(Expr.Binary expr, Object left, Object right) {
         switch (expr.operator.type) {
             case MINUS:
                 checkNumberOperands(expr.operator, left, right);
@@ -266,8 +404,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                     return (double)left + (double)right;
                 }
 
-                if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
+                if (Rope.isString(left) && Rope.isString(right)) {
+                    return Rope.concat(left, right);
                 }
 
                 throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings");
@@ -298,6 +436,131 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
+    /**
+     * Evaluate an expression expected to produce a number, keeping the
+     * number unboxed. Arithmetic, negation and local variables are
+     * evaluated in place, anything else is evaluated and unboxed.
+     * @throws UnexpectedValue carrying the value if it is not a number
+     */
+    private double evaluateNumber(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (isArithmetic(binary)) {
+                if (RuntimeStats.ENABLED) RuntimeStats.operator(binary.operator.type);
+                return arithmetic(binary);
+            }
+        } else if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable)expr;
+            if (variable.depth != -1) {
+                if (RuntimeStats.ENABLED) RuntimeStats.localReads++;
+                return enviroment.getNumberAt(variable.depth, variable.slot);
+            }
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateNumber(((Expr.Grouping)expr).expression);
+        } else if (expr instanceof Expr.Unary && ((Expr.Unary)expr).operator.type == TokenType.MINUS) {
+            if (RuntimeStats.ENABLED) RuntimeStats.operator(TokenType.MINUS);
+            return negate((Expr.Unary)expr);
+        }
+
+        Object value = evaluate(expr);
+        if (value instanceof Double) return (double)value;
+        throw new UnexpectedValue(value);
+    }
+
+    /**
+     * Whether an expression is worth evaluating with evaluateNumber. A
+     * binary operator that has seen non-number operands (string
+     * concatenation) is marked generic and not tried again.
+     */
+    private static boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.Binary) return isArithmetic((Expr.Binary)expr);
+        if (expr instanceof Expr.Grouping) return isNumeric(((Expr.Grouping)expr).expression);
+        if (expr instanceof Expr.Unary) return ((Expr.Unary)expr).operator.type == TokenType.MINUS;
+        return false;
+    }
+
+    private static boolean isArithmetic(Expr.Binary expr) {
+        if (expr.generic) return false;
+
+        switch (expr.operator.type) {
+            case PLUS:
+            case MINUS:
+            case STAR:
+            case SLASH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private double arithmetic(Expr.Binary expr) {
+        double left;
+        double right;
+
+        try {
+            left = evaluateNumber(expr.left);
+        } catch (UnexpectedValue e) {
+            expr.generic = true;
+            throw new UnexpectedValue(binary(expr, e.value, evaluate(expr.right)));
+        }
+
+        try {
+            right = evaluateNumber(expr.right);
+        } catch (UnexpectedValue e) {
+            expr.generic = true;
+            throw new UnexpectedValue(binary(expr, left, e.value));
+        }
+
+        switch (expr.operator.type) {
+            case PLUS: return left + right;
+            case MINUS: return left - right;
+            case STAR: return left * right;
+            default: return left / right;
+        }
+    }
+
+    private boolean compare(Expr.Binary expr) {
+        double left;
+        double right;
+
+        try {
+            left = evaluateNumber(expr.left);
+        } catch (UnexpectedValue e) {
+            return (boolean)binary(expr, e.value, evaluate(expr.right));
+        }
+
+        try {
+            right = evaluateNumber(expr.right);
+        } catch (UnexpectedValue e) {
+            return (boolean)binary(expr, left, e.value);
+        }
+
+        switch (expr.operator.type) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            default: return left <= right;
+        }
+    }
+
+    private boolean equal(Expr.Binary expr) {
+        if (!isNumeric(expr.left)) {
+            return isEqual(evaluate(expr.left), evaluate(expr.right));
+        }
+
+        double left;
+        try {
+            left = evaluateNumber(expr.left);
+        } catch (UnexpectedValue e) {
+            return isEqual(e.value, evaluate(expr.right));
+        }
+
+        // Same as Double.equals, which isEqual uses for numbers.
+        Object right = evaluate(expr.right);
+        return right instanceof Double
+            && Double.doubleToLongBits(left) == Double.doubleToLongBits((double)right);
+    }
+
     @Override
     public Object visitConditionalExpr(Expr.Conditional expr) {
         Object condition = evaluate(expr.condition);
@@ -311,97 +574,194 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression exprStmt) {
-        evaluate(exprStmt.expression);
-        return null;
+    public Completion visitExpressionStmt(Stmt.Expression exprStmt) {
+        if (exprStmt.expression instanceof Expr.Assign) {
+            assign((Expr.Assign)exprStmt.expression, false);
+        } else if (exprStmt.expression instanceof Expr.SelfOp) {
+            selfOp((Expr.SelfOp)exprStmt.expression, false);
+        } else {
+            evaluate(exprStmt.expression);
+        }
+
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Completion visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
         System.out.println(stringify(value));
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
+        if (enviroment != globals && isNumeric(stmt.initializer)) {
+            try {
+                enviroment.defineNumber(evaluateNumber(stmt.initializer));
+            } catch (UnexpectedValue e) {
+                enviroment.define(e.value);
+            }
+
+            return Completion.NORMAL;
+        }
+
         Object value = null;
         if(stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        enviroment.define(stmt.name.lexeme, value);
-        return null;
+        define(stmt.name, value);
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitSelfOpExpr(Expr.SelfOp expr) {
-        Object variable = lookUpVariable(expr.name, expr);
+        return selfOp(expr, true);
+    }
+
+    private Object selfOp(Expr.SelfOp expr, boolean needValue) {
+        if (RuntimeStats.ENABLED) RuntimeStats.operator(expr.operator.type);
+
+        if (expr.depth != -1) {
+            double variable;
+            try {
+                variable = enviroment.getNumberAt(expr.depth, expr.slot);
+            } catch (UnexpectedValue e) {
+                checkNumberOperand(expr.operator, e.value);
+                throw e;
+            }
+
+            double calculatedValue = expr.operator.type == TokenType.DECREMENT ? variable - 1 : variable + 1;
+            enviroment.assignNumberAt(expr.depth, expr.slot, calculatedValue);
+
+            if (!needValue) return null;
+            return expr.left ? calculatedValue : variable;
+        }
+
+        expr.global = globals.global(expr.global, expr.name.lexeme);
+        Object variable = globals.get(expr.global, expr.name);
 
         checkNumberOperand(expr.operator, variable);
-        Integer distance = locals.get(expr);
         Double calculatedValue = expr.operator.type == TokenType.DECREMENT
             ? (Double)variable - 1
             : (Double)variable + 1;
 
-        if (distance != null) {
-            enviroment.assignAt(distance, expr.name, calculatedValue);
+        globals.assign(expr.global, expr.name, calculatedValue);
+        return expr.left ? calculatedValue : variable;
+    }
+
+    /**
+     * Evaluate the inlined body while the callee is still the function it
+     * was inlined from, otherwise make the call.
+     */
+    @Override
+    public Object visitInlineExpr(Expr.Inline expr) {
+        Expr callee = expr.call.callee;
+        LoxFunction function = null;
+
+        if (callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)callee;
+            Object object = evaluate(get.object);
+
+            if (object instanceof LoxInstanceProxy) {
+                function = expr.call.methodCache.lookup((LoxInstanceProxy)object, get.name);
+            }
+        } else {
+            Object value = evaluate(callee);
+            if (value instanceof LoxFunction) function = (LoxFunction)value;
         }
-        else {
-            globals.assign(expr.name, calculatedValue);
+
+        if (function != null && function.declaration.name == expr.target) {
+            return evaluate(expr.body);
         }
 
-        return expr.left ? calculatedValue : variable;
+        return evaluate(expr.call);
     }
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
-    }
+        if (expr.depth != -1) {
+            if (RuntimeStats.ENABLED) RuntimeStats.localReads++;
+            return enviroment.getAt(expr.depth, expr.slot);
+        }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
+        if (RuntimeStats.ENABLED) RuntimeStats.globalReads++;
 
-        if (distance != null) {
-            return enviroment.getAt(distance, name.lexeme);
+        // The site keeps the Global of its name so later runs skip the hash lookup.
+        expr.global = globals.global(expr.global, expr.name.lexeme);
+        return globals.get(expr.global, expr.name);
+    }
+
+    /**
+     * Look up a variable by the location the Resolver stored on its node.
+     * @param depth Enviroment hops to the variable, -1 for globals
+     */
+    private Object lookUpVariable(Token name, int depth, int slot) {
+        if (depth != -1) {
+            if (RuntimeStats.ENABLED) RuntimeStats.localReads++;
+            return enviroment.getAt(depth, slot);
         } else {
+            if (RuntimeStats.ENABLED) RuntimeStats.globalReads++;
             return globals.get(name);
         }
     }
 
-    void executeBlock(List<Stmt> statements, Enviroment environment) {
+    /**
+     * Define a variable in the current Enviroment. Top-level variables are
+     * kept by name in globals, locals take the next slot.
+     */
+    private void define(Token name, Object value) {
+        if (enviroment == globals) {
+            globals.define(name.lexeme, value);
+        } else {
+            enviroment.define(value);
+        }
+    }
+
+    /**
+     * @return NORMAL, or the completion of the statement that left the block early
+     */
+    Completion executeBlock(List<Stmt> statements, Enviroment environment) {
         Enviroment previous = this.enviroment;
 
         try {
             this.enviroment = environment;
 
             for (Stmt statement : statements) {
-                execute(statement);
+                Completion completion = execute(statement);
+                if (completion != Completion.NORMAL) return completion;
             }
+
+            return Completion.NORMAL;
         } finally {
             this.enviroment = previous;
         }
     }
 
-    public boolean isTruthy(Object object) {
+    public static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null & b == null) return true;
         if (a == null) return false;
 
+        // A string built by + may be a Rope, compare the text.
+        if (a instanceof Rope || b instanceof Rope) {
+            return Rope.isString(a) && Rope.isString(b) && a.toString().equals(b.toString());
+        }
+
         return a.equals(b);
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(Token operator, Object left, Object right) {
         if(left instanceof Double && right instanceof Double) return;
 
         throw new RuntimeError(operator, "Operands must be numbers");
@@ -418,22 +778,88 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
+        } finally {
+            reset();
         }
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    /**
+     * run statements compiled by NodeCompiler
+     * @param nodes compiled top-level statements
+     */
+    void interprete(StmtNode[] nodes) {
+        try {
+            for (StmtNode node : nodes) {
+                node.execute(globals);
+            }
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * run a program compiled by JvmCompiler
+     * @param script function holding the top-level code
+     */
+    void interprete(JvmFunction script) {
+        try {
+            script.invoke0();
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        } catch (StackOverflowError error) {
+            Lox.runtimeError(JvmRuntime.stackOverflow(error));
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Leave a call for the function that is returning to run, see LoxFunction.execute.
+     */
+    void tailCall(LoxFunction function, Enviroment frame, LoxInstanceProxy receiver) {
+        tailFunction = function;
+        tailFrame = frame;
+        tailReceiver = receiver;
+    }
+
+    /**
+     * Forget the state of an aborted run, a runtime error leaves the call
+     * depth and maybe a tail call behind.
+     */
+    private void reset() {
+        callDepth = 0;
+        if (profiler != null) profiler.reset();
+        tailCall(null, null, null);
+        returnValue = null;
+    }
+
+    /**
+     * Take the value of the return statement that just completed.
+     */
+    Object takeReturnValue() {
+        Object value = returnValue;
+        returnValue = null;
+        return value;
+    }
+
+    /**
+     * Keep the value of a return statement until the call takes it.
+     */
+    void setReturnValue(Object value) {
+        returnValue = value;
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
     private Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
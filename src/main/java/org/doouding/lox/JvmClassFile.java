@@ -0,0 +1,533 @@
+package org.doouding.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal writer for JVM class files, just enough for JvmCompiler.
+ *
+ * Classes are written as version 49 (Java 5) so the JVM verifies them by
+ * type inference and no StackMapTable has to be computed. Operand stack
+ * depth is tracked while emitting so max_stack is known when a method ends.
+ */
+class JvmClassFile {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int DCONST_0 = 0x0e;
+    static final int DCONST_1 = 0x0f;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC2_W = 0x14;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int DSTORE = 0x39;
+    static final int ASTORE = 0x3a;
+    static final int AALOAD = 0x32;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5c;
+    static final int SWAP = 0x5f;
+    static final int IADD = 0x60;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DNEG = 0x77;
+    static final int IXOR = 0x82;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int IF_ICMPNE = 0xa0;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int PUTSTATIC = 0xb3;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int NEW = 0xbb;
+    static final int ANEWARRAY = 0xbd;
+    static final int ATHROW = 0xbf;
+    static final int CHECKCAST = 0xc0;
+    static final int INSTANCEOF = 0xc1;
+    static final int WIDE = 0xc4;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    final String name;
+    private final String superName;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndexes = new HashMap<>();
+    private int poolCount = 1;
+
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    /**
+     * @param name internal class name, e.g. "lox/fib$1"
+     * @param superName internal name of the super class
+     */
+    JvmClassFile(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+
+    private int entry(String key, int tag, int a, int b, String utf8) {
+        Integer index = poolIndexes.get(key);
+        if (index != null) return index;
+
+        try {
+            poolOut.writeByte(tag);
+            if (tag == CONSTANT_UTF8) {
+                poolOut.writeUTF(utf8);
+            } else if (tag == CONSTANT_CLASS) {
+                poolOut.writeShort(a);
+            } else {
+                poolOut.writeShort(a);
+                poolOut.writeShort(b);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        poolIndexes.put(key, poolCount);
+        return poolCount++;
+    }
+
+    int utf8(String value) {
+        return entry("U" + value, CONSTANT_UTF8, 0, 0, value);
+    }
+
+    int classRef(String internalName) {
+        return entry("C" + internalName, CONSTANT_CLASS, utf8(internalName), 0, null);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return entry("N" + name + ":" + descriptor, CONSTANT_NAME_AND_TYPE, utf8(name), utf8(descriptor), null);
+    }
+
+    /**
+     * A double constant takes two entries of the pool.
+     */
+    int doubleConstant(double value) {
+        String key = "D" + Double.doubleToRawLongBits(value);
+        Integer index = poolIndexes.get(key);
+        if (index != null) return index;
+
+        try {
+            poolOut.writeByte(CONSTANT_DOUBLE);
+            poolOut.writeDouble(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        poolIndexes.put(key, poolCount);
+        poolCount += 2;
+        return poolCount - 2;
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return entry("F" + owner + "." + name + ":" + descriptor, CONSTANT_FIELDREF,
+            classRef(owner), nameAndType(name, descriptor), null);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return entry("M" + owner + "." + name + descriptor, CONSTANT_METHODREF,
+            classRef(owner), nameAndType(name, descriptor), null);
+    }
+
+    void field(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        fields.add(bytes.toByteArray());
+    }
+
+    /**
+     * Start a method. Locals for the receiver and parameters are reserved.
+     */
+    Code method(int access, String name, String descriptor) {
+        return new Code(access, name, descriptor);
+    }
+
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        int thisClass = classRef(name);
+        int superClass = classRef(superName);
+
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+
+            out.writeShort(fields.size());
+            for (byte[] field : fields) out.write(field);
+
+            out.writeShort(methods.size());
+            for (byte[] method : methods) out.write(method);
+
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A jump target. Forward references are patched when the label is placed.
+     */
+    static class Label {
+        private int position = -1;
+        private int stack = -1;
+        private final List<Integer> references = new ArrayList<>();
+    }
+
+    /**
+     * Bytecode of a single method.
+     */
+    class Code {
+        private final int access;
+        private final String name;
+        private final String descriptor;
+
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+        /**
+         * 异常表, 每项是 {start, end, handler, 类型的常量池下标}
+         */
+        private final List<int[]> handlers = new ArrayList<>();
+        private int stack = 0;
+        private boolean reachable = true;
+        private int maxStack = 0;
+        private int nextLocal;
+        private int maxLocals;
+
+        private Code(int access, String name, String descriptor) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.nextLocal = argumentSlots(descriptor) + ((access & ACC_STATIC) != 0 ? 0 : 1);
+            this.maxLocals = nextLocal;
+        }
+
+        private void adjust(int delta) {
+            stack += delta;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        private void u1(int value) {
+            code.write(value);
+        }
+
+        private void u2(int value) {
+            code.write((value >> 8) & 0xff);
+            code.write(value & 0xff);
+        }
+
+        /**
+         * Reserve a new local variable slot.
+         */
+        int newLocal() {
+            if (nextLocal == maxLocals) maxLocals++;
+            return nextLocal++;
+        }
+
+        /**
+         * Reserve the two slots of a double local.
+         */
+        int newWideLocal() {
+            int index = newLocal();
+            newLocal();
+            return index;
+        }
+
+        /**
+         * Slots reserved after this mark are released by freeLocals(mark).
+         */
+        int localMark() {
+            return nextLocal;
+        }
+
+        void freeLocals(int mark) {
+            nextLocal = mark;
+        }
+
+        void op(int opcode, int stackDelta) {
+            u1(opcode);
+            adjust(stackDelta);
+        }
+
+        void aconstNull() {
+            op(ACONST_NULL, 1);
+        }
+
+        void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH, 1);
+                u1(value & 0xff);
+            } else {
+                op(SIPUSH, 1);
+                u2(value);
+            }
+        }
+
+        void dconst(double value) {
+            if (Double.doubleToRawLongBits(value) == 0) {
+                op(DCONST_0, 2);
+            } else if (value == 1) {
+                op(DCONST_1, 2);
+            } else {
+                op(LDC2_W, 2);
+                u2(doubleConstant(value));
+            }
+        }
+
+        void aload(int index) {
+            local(ALOAD, index);
+            adjust(1);
+        }
+
+        void astore(int index) {
+            local(ASTORE, index);
+            adjust(-1);
+        }
+
+        void dload(int index) {
+            local(DLOAD, index);
+            if (index + 2 > maxLocals) maxLocals = index + 2;
+            adjust(2);
+        }
+
+        void dstore(int index) {
+            local(DSTORE, index);
+            if (index + 2 > maxLocals) maxLocals = index + 2;
+            adjust(-2);
+        }
+
+        private void local(int opcode, int index) {
+            if (index > 0xff) {
+                u1(WIDE);
+                u1(opcode);
+                u2(index);
+            } else {
+                u1(opcode);
+                u1(index);
+            }
+
+            if (index >= maxLocals) maxLocals = index + 1;
+        }
+
+        void typeOp(int opcode, String internalName) {
+            int delta = opcode == NEW ? 1 : 0;
+            op(opcode, delta);
+            u2(classRef(internalName));
+        }
+
+        void field(int opcode, String owner, String name, String descriptor) {
+            int delta;
+            switch (opcode) {
+                case GETSTATIC: delta = 1; break;
+                case PUTSTATIC: delta = -1; break;
+                case GETFIELD: delta = 0; break;
+                default: delta = -2;
+            }
+
+            op(opcode, delta);
+            u2(fieldRef(owner, name, descriptor));
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            int delta = -argumentSlots(descriptor);
+            if (opcode != INVOKESTATIC) delta--;
+            if (descriptor.endsWith(")D") || descriptor.endsWith(")J")) {
+                delta += 2;
+            } else if (!descriptor.endsWith(")V")) {
+                delta++;
+            }
+
+            op(opcode, delta);
+            u2(methodRef(owner, name, descriptor));
+        }
+
+        /**
+         * Throw the exception on the stack, what follows is only reached
+         * through a label.
+         */
+        void athrow() {
+            op(ATHROW, -1);
+            reachable = false;
+            stack = 0;
+        }
+
+        void jump(int opcode, Label label) {
+            int start = code.size();
+            int delta = opcode == GOTO ? 0 : (opcode == IF_ICMPNE ? -2 : -1);
+            op(opcode, delta);
+
+            if (label.stack == -1) label.stack = stack;
+
+            if (label.position != -1) {
+                u2(label.position - start);
+            } else {
+                label.references.add(start);
+                u2(0);
+            }
+
+            // Code right after an unconditional jump is only reached through a label.
+            if (opcode == GOTO) {
+                reachable = false;
+                stack = 0;
+            }
+        }
+
+        void mark(Label label) {
+            label.position = code.size();
+
+            if (!reachable) {
+                stack = label.stack == -1 ? 0 : label.stack;
+                reachable = true;
+            } else if (label.stack == -1) {
+                label.stack = stack;
+            }
+
+            byte[] bytes = code.toByteArray();
+            for (int reference : label.references) {
+                int offset = label.position - reference;
+                bytes[reference + 1] = (byte)((offset >> 8) & 0xff);
+                bytes[reference + 2] = (byte)(offset & 0xff);
+            }
+
+            if (!label.references.isEmpty()) {
+                code.reset();
+                code.write(bytes, 0, bytes.length);
+                label.references.clear();
+            }
+        }
+
+        /**
+         * Place a handler of the exceptions of a type thrown between two
+         * placed labels. The handler starts with the exception on the stack.
+         */
+        void handler(Label start, Label end, String type) {
+            handlers.add(new int[] { start.position, end.position, code.size(), classRef(type) });
+            reachable = true;
+            stack = 0;
+            adjust(1);
+        }
+
+        /**
+         * Finish the method and add it to the class.
+         */
+        void end() {
+            byte[] bytes = code.toByteArray();
+            if (bytes.length > 0x7fff) {
+                throw new IllegalStateException("Method " + name + " is too large to compile.");
+            }
+
+            ByteArrayOutputStream method = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(method);
+
+            try {
+                out.writeShort(access);
+                out.writeShort(utf8(this.name));
+                out.writeShort(utf8(descriptor));
+                out.writeShort(1);
+
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + bytes.length + 8 * handlers.size());
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeShort(handlers.size());
+                for (int[] handler : handlers) {
+                    for (int value : handler) out.writeShort(value);
+                }
+                out.writeShort(0);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+
+            methods.add(method.toByteArray());
+        }
+    }
+
+    /**
+     * Number of local slots the arguments of a descriptor take, two for
+     * a double.
+     */
+    private static int argumentSlots(String descriptor) {
+        int count = 0;
+        int i = 1;
+
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+
+            if (c == 'L') {
+                i = descriptor.indexOf(';', i) + 1;
+            } else if (c == '[') {
+                while (descriptor.charAt(i) == '[') i++;
+                if (descriptor.charAt(i) == 'L') {
+                    i = descriptor.indexOf(';', i) + 1;
+                } else {
+                    i++;
+                }
+            } else {
+                i++;
+            }
+
+            count += (c == 'J' || c == 'D') ? 2 : 1;
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,27 @@
+package org.doouding.lox;
+
+/**
+ * Class loader for the classes JvmCompiler generates. Runtime classes
+ * such as JvmFunction and JvmRuntime come from the parent loader.
+ */
+class JvmClassLoader extends ClassLoader {
+    JvmClassLoader(ClassLoader parent) {
+        super(parent);
+    }
+
+    /**
+     * Define a generated class and hand it its constants.
+     * @param name internal class name
+     */
+    Class<?> define(String name, byte[] bytes, Object[] constants) {
+        Class<?> klass = defineClass(name.replace('/', '.'), bytes, 0, bytes.length);
+
+        try {
+            klass.getField(JvmCompiler.CONSTANTS).set(null, constants);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return klass;
+    }
+}
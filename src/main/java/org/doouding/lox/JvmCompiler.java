@@ -0,0 +1,1577 @@
+package org.doouding.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.doouding.lox.JvmClassFile.*;
+
+/**
+ * Compiles a resolved Stmt/Expr tree into JVM classes so HotSpot can JIT
+ * Lox code directly.
+ *
+ * Every function becomes a subclass of JvmFunction whose invoke method is
+ * the function body. Locals are JVM locals; a local captured by an inner
+ * function is kept in an Object[1] cell which the inner function receives
+ * in its constructor. Top-level declarations are globals of the
+ * Interpreter, a site gets the storage of its name as a constant.
+ *
+ * Arithmetic and comparisons run on unboxed doubles. Operands not known
+ * to be numbers are checked with instanceof where they are used, and a
+ * local that only ever holds numbers lives in a double slot, so a value is
+ * only boxed when it leaves number code. Anything else that is not plain
+ * control flow calls into JvmRuntime.
+ */
+class JvmCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    /**
+     * Static field of every generated class holding its constants
+     */
+    static final String CONSTANTS = "constants";
+
+    private static final String FUNCTION = "org/doouding/lox/JvmFunction";
+    private static final String RUNTIME = "org/doouding/lox/JvmRuntime";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String BOOLEAN = "java/lang/Boolean";
+    private static final String DOUBLE = "java/lang/Double";
+    private static final String OBJECT_DESC = "Ljava/lang/Object;";
+    private static final String CELL_DESC = "[Ljava/lang/Object;";
+    private static final String ERROR_DESC = "Lorg/doouding/lox/RuntimeError;";
+
+    /**
+     * 生成的类名计数, REPL 中每次编译的类名不能重复
+     */
+    private static int classCount = 0;
+
+    private static class Local {
+        final Object key;
+        final int index;
+        final boolean isCaptured;
+
+        /**
+         * 只存数字, 放在两个槽的 double 局部变量中
+         */
+        final boolean isNumber;
+
+        Local(Object key, int index, boolean isCaptured, boolean isNumber) {
+            this.key = key;
+            this.index = index;
+            this.isCaptured = isCaptured;
+            this.isNumber = isNumber;
+        }
+    }
+
+    private static class Loop {
+        final Loop enclosing;
+        final Label start = new Label();
+        final Label exit = new Label();
+
+        Loop(Loop enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    private static class Generated {
+        final String name;
+        final byte[] bytes;
+        final Object[] constants;
+
+        Generated(String name, byte[] bytes, Object[] constants) {
+            this.name = name;
+            this.bytes = bytes;
+            this.constants = constants;
+        }
+    }
+
+    /**
+     * Compilation state of the function currently being compiled.
+     */
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final JvmClassFile file;
+        final JvmClassFile.Code code;
+        final List<Object> freeVariables;
+        final boolean isInitializer;
+        final List<Map<String, Local>> scopes = new ArrayList<>();
+        final List<Object> constants = new ArrayList<>();
+        final Map<Object, Integer> valueIndexes = new HashMap<>();
+        final Map<Object, Integer> objectIndexes = new IdentityHashMap<>();
+        Loop loop = null;
+
+        FunctionState(FunctionState enclosing, JvmClassFile file, JvmClassFile.Code code,
+            List<Object> freeVariables, boolean isInitializer) {
+            this.enclosing = enclosing;
+            this.file = file;
+            this.code = code;
+            this.freeVariables = freeVariables;
+            this.isInitializer = isInitializer;
+        }
+    }
+
+    private final Enviroment globals;
+    private final JvmClassLoader loader;
+    private final List<Generated> generated = new ArrayList<>();
+    private Captures captures;
+    private FunctionState current = null;
+
+    JvmCompiler(Interpreter interpreter) {
+        this.globals = interpreter.globals;
+        this.loader = new JvmClassLoader(JvmCompiler.class.getClassLoader());
+        JvmRuntime.interpreter = interpreter;
+    }
+
+    /**
+     * Compile a program, the returned function runs its top-level code.
+     */
+    JvmFunction compile(List<Stmt> statements) {
+        captures = new Captures();
+        captures.analyze(statements);
+
+        String name = compileFunction(null, Collections.<Token>emptyList(), statements, false, false);
+
+        Class<?> script = null;
+        for (Generated klass : generated) {
+            // Inner functions are finished first, so they are defined before their users.
+            Class<?> defined = loader.define(klass.name, klass.bytes, klass.constants);
+            if (klass.name.equals(name)) script = defined;
+        }
+
+        try {
+            return (JvmFunction)script.getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Generate the class of a function.
+     * @param declaration null for the top-level script
+     * @return internal name of the class
+     */
+    private String compileFunction(Stmt.Function declaration, List<Token> params, List<Stmt> body,
+        boolean isMethod, boolean isInitializer) {
+        String className = "lox/" + (declaration == null ? "script" : declaration.name.lexeme) + "$" + (++classCount);
+        List<Object> freeVariables = declaration == null
+            ? Collections.emptyList()
+            : captures.freeVariables(declaration);
+
+        JvmClassFile file = new JvmClassFile(className, FUNCTION);
+        file.field(ACC_PUBLIC | ACC_STATIC, CONSTANTS, "[" + OBJECT_DESC);
+        for (int i = 0; i < freeVariables.size(); i++) {
+            file.field(ACC_PRIVATE | ACC_FINAL, "c" + i, CELL_DESC);
+        }
+
+        JvmClassFile.Code code;
+        if (params.size() <= 3) {
+            code = file.method(ACC_PUBLIC, "invoke" + params.size(), "(" + repeat(OBJECT_DESC, params.size()) + ")" + OBJECT_DESC);
+        } else {
+            code = file.method(ACC_PUBLIC, "invoke", "(" + CELL_DESC + ")" + OBJECT_DESC);
+        }
+
+        current = new FunctionState(current, file, code, freeVariables, isInitializer);
+        int declarationIndex = declaration == null ? -1 : constantIndex(declaration);
+        Label start = new Label();
+        code.mark(start);
+
+        if (declaration != null) {
+            beginScope();
+
+            if (isMethod) {
+                code.aload(0);
+                code.field(GETFIELD, FUNCTION, "receiver", OBJECT_DESC);
+                defineLocal(declaration, "this");
+            }
+
+            for (int i = 0; i < params.size(); i++) {
+                if (params.size() <= 3) {
+                    code.aload(i + 1);
+                } else {
+                    code.aload(1);
+                    code.iconst(i);
+                    code.op(AALOAD, -1);
+                }
+                defineLocal(params.get(i), params.get(i).lexeme);
+            }
+        }
+
+        for (Stmt statement : body) {
+            compile(statement);
+        }
+
+        code.aconstNull();
+        code.op(ARETURN, -1);
+        if (declaration != null) overflowHandler(start);
+        code.end();
+
+        JvmClassFile.Code constructor = file.method(ACC_PUBLIC, "<init>", "(" + repeat(CELL_DESC, freeVariables.size()) + ")V");
+        constructor.aload(0);
+        if (declarationIndex == -1) {
+            constructor.aconstNull();
+        } else {
+            constructor.field(GETSTATIC, className, CONSTANTS, "[" + OBJECT_DESC);
+            constructor.iconst(declarationIndex);
+            constructor.op(AALOAD, -1);
+        }
+        constructor.iconst(isInitializer ? 1 : 0);
+        constructor.invoke(INVOKESPECIAL, FUNCTION, "<init>", "(" + OBJECT_DESC + "Z)V");
+        for (int i = 0; i < freeVariables.size(); i++) {
+            constructor.aload(0);
+            constructor.aload(i + 1);
+            constructor.field(PUTFIELD, className, "c" + i, CELL_DESC);
+        }
+        constructor.op(RETURN, 0);
+        constructor.end();
+
+        generated.add(new Generated(className, file.toBytes(), current.constants.toArray()));
+        current = current.enclosing;
+
+        return className;
+    }
+
+    /**
+     * Count the frames a StackOverflowError unwinds in JvmRuntime, the
+     * first one to see it records its function. Only fields are touched,
+     * a call could overflow again this close to the end of the stack.
+     */
+    private void overflowHandler(Label start) {
+        JvmClassFile.Code code = current.code;
+        Label end = new Label();
+        Label counted = new Label();
+
+        code.mark(end);
+        code.handler(start, end, "java/lang/StackOverflowError");
+        code.field(GETSTATIC, RUNTIME, "overflowDepth", "I");
+        code.op(DUP, 1);
+        code.jump(IFNE, counted);
+        code.aload(0);
+        code.field(PUTSTATIC, RUNTIME, "overflowFunction", OBJECT_DESC);
+        code.mark(counted);
+        code.iconst(1);
+        code.op(IADD, -1);
+        code.field(PUTSTATIC, RUNTIME, "overflowDepth", "I");
+        code.athrow();
+    }
+
+    /**
+     * Push a new instance of a function class, handing it the cells of
+     * the variables it captures.
+     */
+    private void closure(Stmt.Function function, boolean isMethod, boolean isInitializer) {
+        String className = compileFunction(function, function.params, function.body, isMethod, isInitializer);
+        List<Object> freeVariables = captures.freeVariables(function);
+        JvmClassFile.Code code = current.code;
+
+        code.typeOp(NEW, className);
+        code.op(DUP, 1);
+        for (Object key : freeVariables) {
+            loadCell(key);
+        }
+        code.invoke(INVOKESPECIAL, className, "<init>", "(" + repeat(CELL_DESC, freeVariables.size()) + ")V");
+    }
+
+    private void loadCell(Object key) {
+        for (int i = current.scopes.size() - 1; i >= 0; i--) {
+            for (Local local : current.scopes.get(i).values()) {
+                if (local.key == key) {
+                    current.code.aload(local.index);
+                    return;
+                }
+            }
+        }
+
+        int index = current.freeVariables.indexOf(key);
+        current.code.aload(0);
+        current.code.field(GETFIELD, current.file.name, "c" + index, CELL_DESC);
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    /**
+     * Compile an expression used as a condition, leaving a JVM boolean
+     * on the stack instead of a boxed value.
+     */
+    private void condition(Expr expr) {
+        JvmClassFile.Code code = current.code;
+
+        if (expr instanceof Expr.Grouping) {
+            condition(((Expr.Grouping)expr).expression);
+            return;
+        }
+
+        if (expr instanceof Expr.Literal && ((Expr.Literal)expr).value instanceof Boolean) {
+            code.iconst((Boolean)((Expr.Literal)expr).value ? 1 : 0);
+            return;
+        }
+
+        if (expr instanceof Expr.Unary && ((Expr.Unary)expr).operator.type == TokenType.BANG) {
+            condition(((Expr.Unary)expr).right);
+            code.iconst(1);
+            code.op(IXOR, -1);
+            return;
+        }
+
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+
+            // dcmpg makes NaN greater and dcmpl less, so comparisons with NaN are false.
+            switch (binary.operator.type) {
+                case GREATER:
+                    operands(binary);
+                    code.op(DCMPL, -3);
+                    whether(IFGT);
+                    return;
+                case GREATER_EQUAL:
+                    operands(binary);
+                    code.op(DCMPL, -3);
+                    whether(IFGE);
+                    return;
+                case LESS:
+                    operands(binary);
+                    code.op(DCMPG, -3);
+                    whether(IFLT);
+                    return;
+                case LESS_EQUAL:
+                    operands(binary);
+                    code.op(DCMPG, -3);
+                    whether(IFLE);
+                    return;
+                case EQUAL_EQUAL:
+                case BANG_EQUAL:
+                    if (captures.isNumber(binary.left) && captures.isNumber(binary.right)) {
+                        // Double.compare is 0 exactly when Double.equals is true, as in isEqual.
+                        number(binary.left);
+                        number(binary.right);
+                        code.invoke(INVOKESTATIC, DOUBLE, "compare", "(DD)I");
+                        whether(binary.operator.type == TokenType.EQUAL_EQUAL ? IFEQ : IFNE);
+                        return;
+                    }
+
+                    compile(binary.left);
+                    compile(binary.right);
+                    code.invoke(INVOKESTATIC, RUNTIME, "isEqual", "(" + OBJECT_DESC + OBJECT_DESC + ")Z");
+                    if (binary.operator.type == TokenType.BANG_EQUAL) {
+                        code.iconst(1);
+                        code.op(IXOR, -1);
+                    }
+                    return;
+                default:
+                    break;
+            }
+        }
+
+        compile(expr);
+        code.invoke(INVOKESTATIC, RUNTIME, "isTruthy", "(" + OBJECT_DESC + ")Z");
+    }
+
+    /**
+     * Replace the int on the stack with 1 if a jump would be taken on it,
+     * 0 otherwise.
+     */
+    private void whether(int opcode) {
+        JvmClassFile.Code code = current.code;
+        Label taken = new Label();
+        Label end = new Label();
+
+        code.jump(opcode, taken);
+        code.iconst(0);
+        code.jump(GOTO, end);
+        code.mark(taken);
+        code.iconst(1);
+        code.mark(end);
+    }
+
+    /**
+     * Compile an expression Captures.isNumber accepts, leaving an unboxed
+     * double on the stack.
+     */
+    private void number(Expr expr) {
+        JvmClassFile.Code code = current.code;
+
+        if (expr instanceof Expr.Grouping) {
+            number(((Expr.Grouping)expr).expression);
+            return;
+        }
+
+        if (expr instanceof Expr.Literal) {
+            code.dconst((Double)((Expr.Literal)expr).value);
+            return;
+        }
+
+        if (expr instanceof Expr.Variable) {
+            Local local = findLocal(((Expr.Variable)expr).name.lexeme);
+            if (local != null && local.isNumber) {
+                code.dload(local.index);
+                return;
+            }
+        }
+
+        if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign)expr;
+            Local local = findLocal(assign.name.lexeme);
+            if (local != null && local.isNumber) {
+                number(assign.value);
+                code.op(DUP2, 2);
+                code.dstore(local.index);
+                return;
+            }
+        }
+
+        if (expr instanceof Expr.SelfOp) {
+            Expr.SelfOp selfOp = (Expr.SelfOp)expr;
+            Local local = findLocal(selfOp.name.lexeme);
+            if (local != null && local.isNumber) {
+                code.dload(local.index);
+                if (!selfOp.left) code.op(DUP2, 2);
+                code.dconst(1);
+                code.op(selfOp.operator.type == TokenType.DECREMENT ? DSUB : DADD, -2);
+                if (selfOp.left) code.op(DUP2, 2);
+                code.dstore(local.index);
+                return;
+            }
+        }
+
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            operand(unary.right, unary.operator);
+            code.op(DNEG, 0);
+            return;
+        }
+
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            operands(binary);
+            switch (binary.operator.type) {
+                case PLUS: code.op(DADD, -2); break;
+                case MINUS: code.op(DSUB, -2); break;
+                case STAR: code.op(DMUL, -2); break;
+                default: code.op(DDIV, -2);
+            }
+            return;
+        }
+
+        if (expr instanceof Expr.Conditional) {
+            Expr.Conditional conditional = (Expr.Conditional)expr;
+            Label elseBranch = new Label();
+            Label end = new Label();
+
+            condition(conditional.condition);
+            code.jump(IFEQ, elseBranch);
+            number(conditional.stat1);
+            code.jump(GOTO, end);
+            code.mark(elseBranch);
+            number(conditional.stat2);
+            code.mark(end);
+            return;
+        }
+
+        // The code compiling anything else checks it makes a number, but boxes it.
+        compile(expr);
+        unbox();
+    }
+
+    /**
+     * Compile the operand of a negation as an unboxed double.
+     */
+    private void operand(Expr operand, Token operator) {
+        JvmClassFile.Code code = current.code;
+
+        if (captures.isNumber(operand)) {
+            number(operand);
+            return;
+        }
+
+        Label isNumber = new Label();
+        compile(operand);
+        code.op(DUP, 1);
+        code.typeOp(INSTANCEOF, DOUBLE);
+        code.jump(IFNE, isNumber);
+        constant(operator);
+        code.invoke(INVOKESTATIC, RUNTIME, "operandError", "(" + OBJECT_DESC + ")" + ERROR_DESC);
+        code.athrow();
+        code.mark(isNumber);
+        unbox();
+    }
+
+    /**
+     * Compile both operands of arithmetic or a comparison as unboxed
+     * doubles. Operands that may not be numbers are kept in locals and
+     * checked once both are evaluated, as Interpreter.checkNumberOperands
+     * sees them.
+     */
+    private void operands(Expr.Binary binary) {
+        JvmClassFile.Code code = current.code;
+        boolean leftIsNumber = captures.isNumber(binary.left);
+        boolean rightIsNumber = captures.isNumber(binary.right);
+
+        if (leftIsNumber && rightIsNumber) {
+            number(binary.left);
+            number(binary.right);
+            return;
+        }
+
+        int mark = code.localMark();
+        int left = evaluate(binary.left, leftIsNumber);
+        int right = evaluate(binary.right, rightIsNumber);
+        Label error = new Label();
+        Label end = new Label();
+
+        if (!leftIsNumber) {
+            code.aload(left);
+            code.typeOp(INSTANCEOF, DOUBLE);
+            code.jump(IFEQ, error);
+        }
+        if (!rightIsNumber) {
+            code.aload(right);
+            code.typeOp(INSTANCEOF, DOUBLE);
+            code.jump(IFEQ, error);
+        }
+
+        load(left, leftIsNumber);
+        load(right, rightIsNumber);
+        code.jump(GOTO, end);
+
+        code.mark(error);
+        constant(binary.operator);
+        code.invoke(INVOKESTATIC, RUNTIME, "operandsError", "(" + OBJECT_DESC + ")" + ERROR_DESC);
+        code.athrow();
+
+        code.mark(end);
+        code.freeLocals(mark);
+    }
+
+    /**
+     * Evaluate an operand into a new local, a double one if it is a number.
+     */
+    private int evaluate(Expr operand, boolean isNumber) {
+        JvmClassFile.Code code = current.code;
+
+        if (isNumber) {
+            number(operand);
+            int index = code.newWideLocal();
+            code.dstore(index);
+            return index;
+        }
+
+        compile(operand);
+        int index = code.newLocal();
+        code.astore(index);
+        return index;
+    }
+
+    private void load(int index, boolean isNumber) {
+        if (isNumber) {
+            current.code.dload(index);
+        } else {
+            current.code.aload(index);
+            unbox();
+        }
+    }
+
+    private void box() {
+        current.code.invoke(INVOKESTATIC, BOOLEAN, "valueOf", "(Z)Ljava/lang/Boolean;");
+    }
+
+    private void boxNumber() {
+        current.code.invoke(INVOKESTATIC, DOUBLE, "valueOf", "(D)Ljava/lang/Double;");
+    }
+
+    /**
+     * Unbox a value known to be a Double.
+     */
+    private void unbox() {
+        current.code.typeOp(CHECKCAST, DOUBLE);
+        current.code.invoke(INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D");
+    }
+
+    private int constantIndex(Object value) {
+        boolean shareable = value instanceof Double || value instanceof String;
+        Map<Object, Integer> indexes = shareable ? current.valueIndexes : current.objectIndexes;
+
+        Integer index = indexes.get(value);
+        if (index == null) {
+            index = current.constants.size();
+            current.constants.add(value);
+            indexes.put(value, index);
+        }
+
+        return index;
+    }
+
+    private void constant(Object value) {
+        JvmClassFile.Code code = current.code;
+        code.field(GETSTATIC, current.file.name, CONSTANTS, "[" + OBJECT_DESC);
+        code.iconst(constantIndex(value));
+        code.op(AALOAD, -1);
+    }
+
+    private void beginScope() {
+        current.scopes.add(new HashMap<String, Local>());
+    }
+
+    private void endScope(int mark) {
+        current.scopes.remove(current.scopes.size() - 1);
+        current.code.freeLocals(mark);
+    }
+
+    /**
+     * Allocate a local for a declaration. A captured local gets an empty
+     * cell right away so closures created before its value is known (a
+     * recursive function, a class used by its methods) can share it.
+     */
+    private Local declareLocal(Object key, String name) {
+        JvmClassFile.Code code = current.code;
+        Local local = new Local(key, code.newLocal(), captures.isCaptured(key), false);
+
+        if (local.isCaptured) {
+            code.iconst(1);
+            code.typeOp(ANEWARRAY, OBJECT);
+            code.astore(local.index);
+        }
+
+        current.scopes.get(current.scopes.size() - 1).put(name, local);
+        return local;
+    }
+
+    /**
+     * Declare a local and pop the value on the stack into it.
+     */
+    private void defineLocal(Object key, String name) {
+        Local local = declareLocal(key, name);
+
+        if (local.isCaptured) {
+            storeLocal(local);
+            current.code.op(POP, -1);
+        } else {
+            current.code.astore(local.index);
+        }
+    }
+
+    /**
+     * Store the value on the stack into a local, leaving it on the stack.
+     */
+    private void storeLocal(Local local) {
+        JvmClassFile.Code code = current.code;
+        code.op(DUP, 1);
+
+        if (local.isNumber) {
+            unbox();
+            code.dstore(local.index);
+        } else if (local.isCaptured) {
+            code.aload(local.index);
+            storeCell();
+        } else {
+            code.astore(local.index);
+        }
+    }
+
+    /**
+     * value value cell -> value
+     */
+    private void storeCell() {
+        JvmClassFile.Code code = current.code;
+        code.op(SWAP, 0);
+        code.iconst(0);
+        code.op(SWAP, 0);
+        code.op(AASTORE, -3);
+    }
+
+    private Local findLocal(String name) {
+        for (int i = current.scopes.size() - 1; i >= 0; i--) {
+            Local local = current.scopes.get(i).get(name);
+            if (local != null) return local;
+        }
+
+        return null;
+    }
+
+    /**
+     * Index of a variable of an enclosing function in the fields of the
+     * current one, -1 when the name is a global.
+     */
+    private int findFreeVariable(String name) {
+        for (FunctionState state = current.enclosing; state != null; state = state.enclosing) {
+            for (int i = state.scopes.size() - 1; i >= 0; i--) {
+                Local local = state.scopes.get(i).get(name);
+                if (local != null) return current.freeVariables.indexOf(local.key);
+            }
+        }
+
+        return -1;
+    }
+
+    private void loadVariable(Token name) {
+        JvmClassFile.Code code = current.code;
+        Local local = findLocal(name.lexeme);
+
+        if (local != null && local.isNumber) {
+            code.dload(local.index);
+            boxNumber();
+            return;
+        }
+
+        if (local != null) {
+            code.aload(local.index);
+            if (local.isCaptured) {
+                code.iconst(0);
+                code.op(AALOAD, -1);
+            }
+            return;
+        }
+
+        int free = findFreeVariable(name.lexeme);
+        if (free != -1) {
+            code.aload(0);
+            code.field(GETFIELD, current.file.name, "c" + free, CELL_DESC);
+            code.iconst(0);
+            code.op(AALOAD, -1);
+            return;
+        }
+
+        constant(globals.global(name.lexeme));
+        constant(name);
+        code.invoke(INVOKESTATIC, RUNTIME, "getGlobal", "(" + OBJECT_DESC + OBJECT_DESC + ")" + OBJECT_DESC);
+    }
+
+    /**
+     * Assign the value on the stack to a variable, leaving it on the stack.
+     */
+    private void storeVariable(Token name) {
+        JvmClassFile.Code code = current.code;
+        Local local = findLocal(name.lexeme);
+
+        if (local != null) {
+            storeLocal(local);
+            return;
+        }
+
+        int free = findFreeVariable(name.lexeme);
+        if (free != -1) {
+            code.op(DUP, 1);
+            code.aload(0);
+            code.field(GETFIELD, current.file.name, "c" + free, CELL_DESC);
+            storeCell();
+            return;
+        }
+
+        constant(globals.global(name.lexeme));
+        constant(name);
+        code.invoke(INVOKESTATIC, RUNTIME, "setGlobal", "(" + OBJECT_DESC + OBJECT_DESC + OBJECT_DESC + ")" + OBJECT_DESC);
+    }
+
+    /**
+     * Bind the value on the stack to a declared name: a global at top
+     * level, a new local otherwise.
+     */
+    private void defineVariable(Token name) {
+        if (current.scopes.isEmpty()) {
+            constant(globals.global(name.lexeme));
+            current.code.invoke(INVOKESTATIC, RUNTIME, "defineGlobal", "(" + OBJECT_DESC + OBJECT_DESC + ")V");
+        } else {
+            defineLocal(name, name.lexeme);
+        }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        int mark = current.code.localMark();
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope(mark);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        current.code.op(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        JvmClassFile.Code code = current.code;
+
+        if (current.isInitializer) {
+            if (stmt.value != null) {
+                compile(stmt.value);
+                code.op(POP, -1);
+            }
+
+            code.aload(0);
+            code.field(GETFIELD, FUNCTION, "receiver", OBJECT_DESC);
+        } else if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            code.aconstNull();
+        }
+
+        code.op(ARETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        JvmClassFile.Code code = current.code;
+        Label elseBranch = new Label();
+
+        condition(stmt.condition);
+        code.jump(IFEQ, elseBranch);
+        compile(stmt.thenBranch);
+
+        if (stmt.elseBranch != null) {
+            Label end = new Label();
+            code.jump(GOTO, end);
+            code.mark(elseBranch);
+            compile(stmt.elseBranch);
+            code.mark(end);
+        } else {
+            code.mark(elseBranch);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        current.code.invoke(INVOKESTATIC, RUNTIME, "print", "(" + OBJECT_DESC + ")V");
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        JvmClassFile.Code code = current.code;
+
+        if (!current.scopes.isEmpty() && captures.isCaptured(stmt.name)) {
+            // The initializer can't see the variable, so fill a fresh cell in place.
+            code.iconst(1);
+            code.typeOp(ANEWARRAY, OBJECT);
+            code.op(DUP, 1);
+            code.iconst(0);
+            if (stmt.initializer != null) compile(stmt.initializer); else code.aconstNull();
+            code.op(AASTORE, -3);
+
+            Local local = new Local(stmt.name, code.newLocal(), true, false);
+            code.astore(local.index);
+            current.scopes.get(current.scopes.size() - 1).put(stmt.name.lexeme, local);
+            return null;
+        }
+
+        if (!current.scopes.isEmpty() && captures.holdsNumbers(stmt.name)) {
+            number(stmt.initializer);
+            Local local = new Local(stmt.name, code.newWideLocal(), false, true);
+            code.dstore(local.index);
+            current.scopes.get(current.scopes.size() - 1).put(stmt.name.lexeme, local);
+            return null;
+        }
+
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            code.aconstNull();
+        }
+
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        JvmClassFile.Code code = current.code;
+        Loop loop = new Loop(current.loop);
+        current.loop = loop;
+
+        code.mark(loop.start);
+        condition(stmt.condition);
+        code.jump(IFEQ, loop.exit);
+        compile(stmt.loopStatement);
+        code.jump(GOTO, loop.start);
+        code.mark(loop.exit);
+
+        current.loop = loop.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitTerminateStmt(Stmt.Terminate stmt) {
+        if (stmt.identifier.type == TokenType.BREAK) {
+            current.code.jump(GOTO, current.loop.exit);
+        } else {
+            current.code.jump(GOTO, current.loop.start);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (current.scopes.isEmpty()) {
+            closure(stmt, false, false);
+            defineVariable(stmt.name);
+            return null;
+        }
+
+        // Declared first so the body can call itself through the cell.
+        Local local = declareLocal(stmt.name, stmt.name.lexeme);
+        closure(stmt, false, false);
+        if (local.isCaptured) {
+            storeLocal(local);
+            current.code.op(POP, -1);
+        } else {
+            current.code.astore(local.index);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        JvmClassFile.Code code = current.code;
+        Local local = current.scopes.isEmpty() ? null : declareLocal(stmt.name, stmt.name.lexeme);
+
+        constant(stmt);
+        methods(stmt.methods, true);
+        methods(stmt.staticMethods, false);
+        methods(stmt.privateMethods, true);
+        code.invoke(INVOKESTATIC, RUNTIME, "makeClass",
+            "(" + OBJECT_DESC + "[" + OBJECT_DESC + "[" + OBJECT_DESC + "[" + OBJECT_DESC + ")" + OBJECT_DESC);
+
+        if (local == null) {
+            defineVariable(stmt.name);
+        } else if (local.isCaptured) {
+            storeLocal(local);
+            code.op(POP, -1);
+        } else {
+            code.astore(local.index);
+        }
+
+        return null;
+    }
+
+    private void methods(List<Stmt.Function> methods, boolean hasReceiver) {
+        JvmClassFile.Code code = current.code;
+
+        code.iconst(methods.size());
+        code.typeOp(ANEWARRAY, OBJECT);
+        for (int i = 0; i < methods.size(); i++) {
+            Stmt.Function method = methods.get(i);
+            boolean isInitializer = hasReceiver && method.name.lexeme.equals("init");
+
+            code.op(DUP, 1);
+            code.iconst(i);
+            closure(method, hasReceiver, isInitializer);
+            code.op(AASTORE, -3);
+        }
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        Local local = findLocal(expr.name.lexeme);
+        if (local != null && local.isNumber) {
+            number(expr);
+            boxNumber();
+            return null;
+        }
+
+        compile(expr.value);
+        storeVariable(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        switch (expr.operator.type) {
+            case PLUS:
+            case MINUS:
+            case STAR:
+            case SLASH:
+                break;
+            default:
+                condition(expr);
+                box();
+                return null;
+        }
+
+        if (captures.isNumber(expr)) {
+            number(expr);
+            boxNumber();
+            return null;
+        }
+
+        // + of two values of unknown type, which may be strings.
+        compile(expr.left);
+        compile(expr.right);
+        constant(expr.operator);
+        current.code.invoke(INVOKESTATIC, RUNTIME, "add", "(" + OBJECT_DESC + OBJECT_DESC + OBJECT_DESC + ")" + OBJECT_DESC);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        JvmClassFile.Code code = current.code;
+        int count = expr.arguments.size();
+
+        compile(expr.callee);
+
+        if (count > 3) {
+            code.iconst(count);
+            code.typeOp(ANEWARRAY, OBJECT);
+            for (int i = 0; i < count; i++) {
+                code.op(DUP, 1);
+                code.iconst(i);
+                compile(expr.arguments.get(i));
+                code.op(AASTORE, -3);
+            }
+            constant(expr.paren);
+            code.invoke(INVOKESTATIC, RUNTIME, "call", "(" + OBJECT_DESC + CELL_DESC + OBJECT_DESC + ")" + OBJECT_DESC);
+            return null;
+        }
+
+        // Dispatch is emitted at each call site so HotSpot profiles (and
+        // inlines) the callee per site.
+        int mark = code.localMark();
+        int callee = code.newLocal();
+        code.astore(callee);
+
+        int[] arguments = new int[count];
+        for (int i = 0; i < count; i++) {
+            compile(expr.arguments.get(i));
+            arguments[i] = code.newLocal();
+            code.astore(arguments[i]);
+        }
+
+        Label slow = new Label();
+        Label end = new Label();
+
+        code.aload(callee);
+        code.typeOp(INSTANCEOF, FUNCTION);
+        code.jump(IFEQ, slow);
+        code.aload(callee);
+        code.typeOp(CHECKCAST, FUNCTION);
+        code.field(GETFIELD, FUNCTION, "arity", "I");
+        code.iconst(count);
+        code.jump(IF_ICMPNE, slow);
+
+        code.aload(callee);
+        code.typeOp(CHECKCAST, FUNCTION);
+        for (int argument : arguments) {
+            code.aload(argument);
+        }
+        code.invoke(INVOKEVIRTUAL, FUNCTION, "invoke" + count, "(" + repeat(OBJECT_DESC, count) + ")" + OBJECT_DESC);
+        code.jump(GOTO, end);
+
+        code.mark(slow);
+        code.aload(callee);
+        code.iconst(count);
+        code.typeOp(ANEWARRAY, OBJECT);
+        for (int i = 0; i < count; i++) {
+            code.op(DUP, 1);
+            code.iconst(i);
+            code.aload(arguments[i]);
+            code.op(AASTORE, -3);
+        }
+        constant(expr.paren);
+        code.invoke(INVOKESTATIC, RUNTIME, "call", "(" + OBJECT_DESC + CELL_DESC + OBJECT_DESC + ")" + OBJECT_DESC);
+        code.mark(end);
+
+        code.freeLocals(mark);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        constant(expr.name);
+        current.code.invoke(INVOKESTATIC, RUNTIME, "getProperty", "(" + OBJECT_DESC + OBJECT_DESC + ")" + OBJECT_DESC);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        constant(expr.name);
+        current.code.invoke(INVOKESTATIC, RUNTIME, "setProperty", "(" + OBJECT_DESC + OBJECT_DESC + OBJECT_DESC + ")" + OBJECT_DESC);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        loadVariable(expr.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        JvmClassFile.Code code = current.code;
+
+        if (expr.value == null) {
+            code.aconstNull();
+        } else if (expr.value instanceof Boolean) {
+            code.field(GETSTATIC, BOOLEAN, (Boolean)expr.value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+        } else {
+            constant(expr.value);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) {
+            condition(expr);
+            box();
+            return null;
+        }
+
+        number(expr);
+        boxNumber();
+        return null;
+    }
+
+    @Override
+    public Void visitConditionalExpr(Expr.Conditional expr) {
+        JvmClassFile.Code code = current.code;
+        Label elseBranch = new Label();
+        Label end = new Label();
+
+        condition(expr.condition);
+        code.jump(IFEQ, elseBranch);
+        compile(expr.stat1);
+        code.jump(GOTO, end);
+        code.mark(elseBranch);
+        compile(expr.stat2);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitSelfOpExpr(Expr.SelfOp expr) {
+        JvmClassFile.Code code = current.code;
+        Local local = findLocal(expr.name.lexeme);
+        if (local != null && local.isNumber) {
+            number(expr);
+            boxNumber();
+            return null;
+        }
+
+        loadVariable(expr.name);
+        if (!expr.left) code.op(DUP, 1);
+
+        constant(expr.operator);
+        code.invoke(INVOKESTATIC, RUNTIME, "step", "(" + OBJECT_DESC + OBJECT_DESC + ")" + OBJECT_DESC);
+        storeVariable(expr.name);
+
+        // Postfix operators evaluate to the old value kept below.
+        if (!expr.left) code.op(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        loadVariable(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        JvmClassFile.Code code = current.code;
+        Label end = new Label();
+
+        compile(expr.left);
+        code.op(DUP, 1);
+        code.invoke(INVOKESTATIC, RUNTIME, "isTruthy", "(" + OBJECT_DESC + ")Z");
+        code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+        code.op(POP, -1);
+        compile(expr.right);
+        code.mark(end);
+        return null;
+    }
+
+    /**
+     * Compiled code calls the function, HotSpot does its own inlining.
+     */
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        compile(expr.call);
+        return null;
+    }
+
+    private static String repeat(String text, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) builder.append(text);
+        return builder.toString();
+    }
+
+    /**
+     * Finds which locals are used by inner functions before any code is
+     * generated, since captured locals are stored differently. Locals are
+     * keyed by the token that declares them (the method itself for "this").
+     *
+     * It also finds the locals that only ever hold numbers: declared by a
+     * var with an initializer, not captured, and every value stored into
+     * them is a number. Those are kept unboxed in double slots.
+     */
+    private static class Captures implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private static class Scope {
+            final Stmt.Function function;
+            final List<Map<String, Object>> blocks = new ArrayList<>();
+
+            Scope(Stmt.Function function) {
+                this.function = function;
+            }
+        }
+
+        private final Set<Object> captured = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+        /**
+         * 变量表达式和赋值对应的同一函数中的局部变量, 每个 var 局部变量被赋的值
+         */
+        private final Map<Expr, Object> locals = new IdentityHashMap<>();
+        private final Map<Object, List<Expr>> definitions = new IdentityHashMap<>();
+        private final Set<Object> numbers = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        private final Map<Stmt.Function, List<Object>> freeVariables = new IdentityHashMap<>();
+        private final List<Scope> functions = new ArrayList<>();
+
+        void analyze(List<Stmt> statements) {
+            functions.add(new Scope(null));
+            for (Stmt statement : statements) statement.accept(this);
+            functions.remove(0);
+
+            // Start from every candidate and drop those given a value that may not be a number,
+            // until what is left only gets numbers computed from numbers.
+            for (Map.Entry<Object, List<Expr>> entry : definitions.entrySet()) {
+                if (!captured.contains(entry.getKey())) numbers.add(entry.getKey());
+            }
+
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (Map.Entry<Object, List<Expr>> entry : definitions.entrySet()) {
+                    if (!numbers.contains(entry.getKey())) continue;
+
+                    for (Expr value : entry.getValue()) {
+                        if (!isNumber(value)) {
+                            numbers.remove(entry.getKey());
+                            changed = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        boolean isCaptured(Object key) {
+            return captured.contains(key);
+        }
+
+        boolean holdsNumbers(Object key) {
+            return numbers.contains(key);
+        }
+
+        /**
+         * @return true when the expression evaluates to a number or
+         * throws, so its value can be computed unboxed
+         */
+        boolean isNumber(Expr expr) {
+            if (expr instanceof Expr.Literal) {
+                return ((Expr.Literal)expr).value instanceof Double;
+            }
+
+            if (expr instanceof Expr.Grouping) {
+                return isNumber(((Expr.Grouping)expr).expression);
+            }
+
+            if (expr instanceof Expr.Unary) {
+                return ((Expr.Unary)expr).operator.type == TokenType.MINUS;
+            }
+
+            if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary)expr;
+                switch (binary.operator.type) {
+                    case MINUS:
+                    case STAR:
+                    case SLASH:
+                        return true;
+                    case PLUS:
+                        // A number plus anything else than a number is an error.
+                        return isNumber(binary.left) || isNumber(binary.right);
+                    default:
+                        return false;
+                }
+            }
+
+            if (expr instanceof Expr.Variable) {
+                return numbers.contains(locals.get(expr));
+            }
+
+            if (expr instanceof Expr.Assign) {
+                return isNumber(((Expr.Assign)expr).value);
+            }
+
+            if (expr instanceof Expr.Conditional) {
+                Expr.Conditional conditional = (Expr.Conditional)expr;
+                return isNumber(conditional.stat1) && isNumber(conditional.stat2);
+            }
+
+            // ++ and -- check their operand.
+            return expr instanceof Expr.SelfOp;
+        }
+
+        /**
+         * Variables of enclosing functions a function uses, including
+         * those only its inner functions use, in the order of its fields.
+         */
+        List<Object> freeVariables(Stmt.Function function) {
+            List<Object> variables = freeVariables.get(function);
+            return variables == null ? Collections.emptyList() : variables;
+        }
+
+        private Scope scope() {
+            return functions.get(functions.size() - 1);
+        }
+
+        private void declare(Object key, String name) {
+            List<Map<String, Object>> blocks = scope().blocks;
+            if (blocks.isEmpty()) return;
+            blocks.get(blocks.size() - 1).put(name, key);
+        }
+
+        /**
+         * @return the key of a local of the current function the name
+         * refers to, null for anything else
+         */
+        private Object reference(String name) {
+            for (int f = functions.size() - 1; f >= 0; f--) {
+                List<Map<String, Object>> blocks = functions.get(f).blocks;
+
+                for (int b = blocks.size() - 1; b >= 0; b--) {
+                    Object key = blocks.get(b).get(name);
+                    if (key == null) continue;
+
+                    if (f != functions.size() - 1) {
+                        captured.add(key);
+
+                        for (int g = f + 1; g < functions.size(); g++) {
+                            Stmt.Function function = functions.get(g).function;
+                            List<Object> variables = freeVariables.get(function);
+                            if (variables == null) {
+                                variables = new ArrayList<>();
+                                freeVariables.put(function, variables);
+                            }
+                            if (!variables.contains(key)) variables.add(key);
+                        }
+
+                        return null;
+                    }
+
+                    return key;
+                }
+            }
+
+            return null;
+        }
+
+        private void function(Stmt.Function function, boolean hasReceiver) {
+            Scope scope = new Scope(function);
+            functions.add(scope);
+
+            scope.blocks.add(new HashMap<String, Object>());
+            if (hasReceiver) declare(function, "this");
+            for (Token param : function.params) declare(param, param.lexeme);
+            for (Stmt statement : function.body) statement.accept(this);
+
+            functions.remove(functions.size() - 1);
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            scope().blocks.add(new HashMap<String, Object>());
+            for (Stmt statement : stmt.statements) statement.accept(this);
+            scope().blocks.remove(scope().blocks.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            if (stmt.value != null) stmt.value.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            stmt.condition.accept(this);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            if (stmt.initializer != null) stmt.initializer.accept(this);
+            declare(stmt.name, stmt.name.lexeme);
+
+            if (!scope().blocks.isEmpty() && stmt.initializer != null) {
+                List<Expr> values = new ArrayList<>();
+                values.add(stmt.initializer);
+                definitions.put(stmt.name, values);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            stmt.condition.accept(this);
+            stmt.loopStatement.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitTerminateStmt(Stmt.Terminate stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            declare(stmt.name, stmt.name.lexeme);
+            function(stmt, false);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            declare(stmt.name, stmt.name.lexeme);
+            for (Stmt.Function method : stmt.methods) function(method, true);
+            for (Stmt.Function method : stmt.staticMethods) function(method, false);
+            for (Stmt.Function method : stmt.privateMethods) function(method, true);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            expr.value.accept(this);
+
+            Object key = reference(expr.name.lexeme);
+            if (key != null) {
+                locals.put(expr, key);
+                List<Expr> values = definitions.get(key);
+                if (values != null) values.add(expr.value);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            expr.callee.accept(this);
+            for (Expr argument : expr.arguments) argument.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            expr.object.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            expr.object.accept(this);
+            expr.value.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            reference("this");
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitConditionalExpr(Expr.Conditional expr) {
+            expr.condition.accept(this);
+            expr.stat1.accept(this);
+            expr.stat2.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitSelfOpExpr(Expr.SelfOp expr) {
+            reference(expr.name.lexeme);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            Object key = reference(expr.name.lexeme);
+            if (key != null) locals.put(expr, key);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitInlineExpr(Expr.Inline expr) {
+            expr.call.accept(this);
+            return null;
+        }
+    }
+}
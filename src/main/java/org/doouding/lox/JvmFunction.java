@@ -0,0 +1,96 @@
+package org.doouding.lox;
+
+/**
+ * Base class of the functions JvmCompiler turns into JVM classes.
+ *
+ * A generated class overrides the invoke method matching its arity
+ * (invoke for more than three parameters) with the function body and
+ * keeps the variables it captures as Object[1] cells in its own fields.
+ * It is public because generated classes are defined by JvmClassLoader
+ * and so live in a different runtime package.
+ */
+public abstract class JvmFunction extends LoxFunction implements Cloneable {
+    /**
+     * 参数个数, 调用点用它判断能否直接调用 invokeN
+     */
+    public final int arity;
+
+    /**
+     * 方法绑定的实例, 即方法体中的 this
+     */
+    public Object receiver;
+
+    protected JvmFunction(Object declaration, boolean isInitializer) {
+        super((Stmt.Function)declaration, null, isInitializer);
+        this.arity = declaration == null ? 0 : ((Stmt.Function)declaration).params.size();
+    }
+
+    public Object invoke0() {
+        return invoke(new Object[0]);
+    }
+
+    public Object invoke1(Object a) {
+        return invoke(new Object[] { a });
+    }
+
+    public Object invoke2(Object a, Object b) {
+        return invoke(new Object[] { a, b });
+    }
+
+    public Object invoke3(Object a, Object b, Object c) {
+        return invoke(new Object[] { a, b, c });
+    }
+
+    public Object invoke(Object[] arguments) {
+        switch (arguments.length) {
+            case 0: return invoke0();
+            case 1: return invoke1(arguments[0]);
+            case 2: return invoke2(arguments[0], arguments[1]);
+            case 3: return invoke3(arguments[0], arguments[1], arguments[2]);
+            default: throw new IllegalStateException("No body for " + arguments.length + " arguments.");
+        }
+    }
+
+    @Override
+    LoxFunction bind(LoxInstanceProxy instance) {
+        if (RuntimeStats.ENABLED) RuntimeStats.binds++;
+
+        try {
+            JvmFunction bound = (JvmFunction)clone();
+            bound.receiver = instance;
+            return bound;
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return invoke(arguments);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return invoke0();
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        return invoke1(a);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        return invoke2(a, b);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return invoke3(a, b, c);
+    }
+
+    @Override
+    Object callMethod(Interpreter interpreter, LoxInstanceProxy instance, Object[] arguments) {
+        return bind(instance).call(interpreter, arguments);
+    }
+}
@@ -0,0 +1,190 @@
+package org.doouding.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Operations called by the code JvmCompiler generates. They are small
+ * static methods so HotSpot inlines them into the generated bodies.
+ *
+ * Tokens and globals' storage are passed as Object because the
+ * generated classes only keep untyped constants.
+ */
+public final class JvmRuntime {
+    /**
+     * Interpreter whose globals the compiled code runs against, passed to
+     * callables that are not compiled functions (classes and natives).
+     */
+    static Interpreter interpreter;
+
+    /**
+     * 栈溢出时已退出的编译函数栈帧数和最内层的函数, 由生成代码的异常处理器写入
+     */
+    public static int overflowDepth;
+    public static Object overflowFunction;
+
+    private JvmRuntime() {}
+
+    /**
+     * Turn a StackOverflowError that unwound the compiled code into the
+     * error LoxFunction.execute reports for the other engines.
+     */
+    static RuntimeError stackOverflow(StackOverflowError error) {
+        JvmFunction function = (JvmFunction)overflowFunction;
+        int depth = overflowDepth;
+        overflowFunction = null;
+        overflowDepth = 0;
+
+        // No Lox function was running, it is not the script's overflow.
+        if (function == null) throw error;
+        return new RuntimeError(function.declaration.name, "Stack overflow at call depth " + depth + ".");
+    }
+
+    public static boolean isTruthy(Object value) {
+        return Interpreter.isTruthy(value);
+    }
+
+    public static boolean isEqual(Object a, Object b) {
+        return Interpreter.isEqual(a, b);
+    }
+
+    public static void print(Object value) {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    public static Object add(Object left, Object right, Object operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left + (double)right;
+        }
+
+        if (Rope.isString(left) && Rope.isString(right)) {
+            return Rope.concat(left, right);
+        }
+
+        throw new RuntimeError((Token)operator, "Operands must be two numbers or two strings");
+    }
+
+    /**
+     * The error of arithmetic or a comparison whose operands are not both
+     * numbers, thrown by the unboxed paths the compiler generates.
+     */
+    public static RuntimeError operandsError(Object operator) {
+        Token token = (Token)operator;
+        if (token.type == TokenType.PLUS) {
+            return new RuntimeError(token, "Operands must be two numbers or two strings");
+        }
+
+        return new RuntimeError(token, "Operands must be numbers");
+    }
+
+    public static RuntimeError operandError(Object operator) {
+        return new RuntimeError((Token)operator, "Operand must be a number");
+    }
+
+    /**
+     * ++ and -- on a variable value
+     */
+    public static Object step(Object value, Object operator) {
+        Token token = (Token)operator;
+        Interpreter.checkNumberOperand(token, value);
+        return token.type == TokenType.DECREMENT ? (double)value - 1 : (double)value + 1;
+    }
+
+    /**
+     * Globals are passed as the Enviroment.Global of their name, looked up
+     * once when the site is compiled.
+     */
+    public static Object getGlobal(Object global, Object name) {
+        Enviroment.Global cell = (Enviroment.Global)global;
+        return cell.owner.get(cell, (Token)name);
+    }
+
+    /**
+     * Assign a global, the value comes first so it can stay on the stack.
+     * @return the assigned value
+     */
+    public static Object setGlobal(Object value, Object global, Object name) {
+        Enviroment.Global cell = (Enviroment.Global)global;
+        cell.owner.assign(cell, (Token)name, value);
+        return value;
+    }
+
+    public static void defineGlobal(Object value, Object global) {
+        ((Enviroment.Global)global).value = value;
+    }
+
+    public static Object getProperty(Object object, Object name) {
+        if (object instanceof LoxInstanceProxy) {
+            return ((LoxInstanceProxy)object).get((Token)name);
+        }
+
+        if (object instanceof LoxClass) {
+            return ((LoxClass)object).getStatic((Token)name);
+        }
+
+        throw new RuntimeError((Token)name, "Only instances have properties.");
+    }
+
+    public static Object setProperty(Object object, Object value, Object name) {
+        if (!(object instanceof LoxInstanceProxy)) {
+            throw new RuntimeError((Token)name, "Only instances have fields");
+        }
+
+        ((LoxInstanceProxy)object).set((Token)name, value);
+        return null;
+    }
+
+    /**
+     * Call anything callable. Call sites only get here when the callee is
+     * not a compiled function of the right arity.
+     */
+    public static Object call(Object callee, Object[] arguments, Object paren) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError((Token)paren, "Can only call functions and classes.");
+        }
+
+        LoxCallable function = (LoxCallable)callee;
+        if (arguments.length != function.arity()) {
+            throw new RuntimeError((Token)paren, "Expected " +
+                function.arity() + " arguments but got " +
+                arguments.length + ".");
+        }
+
+        return function.call(interpreter, arguments);
+    }
+
+    /**
+     * Create a class from the compiled method objects, in the order of the
+     * declaration's method lists.
+     */
+    public static Object makeClass(Object declaration, Object[] methods, Object[] staticMethods, Object[] privateMethods) {
+        Stmt.Class stmt = (Stmt.Class)declaration;
+
+        Map<Symbol, LoxFunction> methodMap = new HashMap<>();
+        Map<Symbol, LoxFunction> staticMethodMap = new HashMap<>();
+        Map<Symbol, LoxFunction> privateMethodMap = new HashMap<>();
+        Map<Symbol, LoxField> fields = new HashMap<>();
+        Map<Symbol, LoxField> privateFields = new HashMap<>();
+
+        for (int i = 0; i < methods.length; i++) {
+            methodMap.put(stmt.methods.get(i).name.symbol, (LoxFunction)methods[i]);
+        }
+
+        for (int i = 0; i < staticMethods.length; i++) {
+            staticMethodMap.put(stmt.staticMethods.get(i).name.symbol, (LoxFunction)staticMethods[i]);
+        }
+
+        for (int i = 0; i < privateMethods.length; i++) {
+            privateMethodMap.put(stmt.privateMethods.get(i).name.symbol, (LoxFunction)privateMethods[i]);
+        }
+
+        for (Expr.Variable field : stmt.fields) {
+            fields.put(field.name.symbol, new LoxField(field.name));
+        }
+        for (Expr.Variable field : stmt.privateFields) {
+            privateFields.put(field.name.symbol, new LoxField(field.name));
+        }
+
+        return new LoxClass(stmt.name.lexeme, methodMap, staticMethodMap, privateMethodMap, fields, privateFields);
+    }
+}
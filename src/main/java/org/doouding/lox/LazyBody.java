@@ -0,0 +1,98 @@
+package org.doouding.lox;
+
+import java.util.List;
+
+/**
+ * The skipped body of a function parsed with --lazy-parse.
+ *
+ * The Parser only matches the braces of a top-level function or method
+ * and keeps its tokens here, the Resolver records how the function was
+ * declared. When the function is first called its body is parsed,
+ * resolved and optimized like the rest of the script was, so scripts that
+ * define many functions and call few of them start sooner. Errors in the
+ * body are reported with the usual messages, at the first call or, for
+ * functions never called, when the script ends.
+ */
+class LazyBody {
+    private final List<Token> tokens;
+    private Resolver.FunctionType type;
+    private Stmt.Class klass;
+
+    /**
+     * 函数体有错误且已经报告过
+     */
+    private boolean failed = false;
+
+    /**
+     * @param tokens the body after its '{', up to its '}' and an EOF
+     */
+    LazyBody(List<Token> tokens) {
+        this.tokens = tokens;
+    }
+
+    void declaredIn(Resolver.FunctionType type, Stmt.Class klass) {
+        this.type = type;
+        this.klass = klass;
+    }
+
+    /**
+     * Parse and resolve the body of a function before it runs.
+     * @throws RuntimeError if the body has errors, which are already reported
+     */
+    static void complete(Stmt.Function function) {
+        if (function.lazy.failed || !parse(function, true)) {
+            throw new RuntimeError(function.name, "Cannot run a function whose body has errors.");
+        }
+    }
+
+    /**
+     * Parse the bodies that are still unparsed to report their errors.
+     */
+    static void check(List<Stmt.Function> functions) {
+        for (Stmt.Function function : functions) {
+            if (function.lazy != null && !function.lazy.failed) parse(function, false);
+        }
+    }
+
+    /**
+     * @param optimize whether the body is going to run and goes through the optimizer
+     * @return false if the body had a syntax or resolve error
+     */
+    private static boolean parse(Stmt.Function function, boolean optimize) {
+        LazyBody lazy = function.lazy;
+        boolean hadError = Lox.hadError;
+        Lox.hadError = false;
+
+        try {
+            List<Stmt> body = new Parser(lazy.tokens).parseBody();
+            if (Lox.hadError) {
+                lazy.failed = true;
+                return false;
+            }
+
+            function.lazy = null;
+            function.body.addAll(body);
+            new Resolver().resolveBody(function, lazy.type, lazy.klass);
+
+            if (Lox.hadError) {
+                // Leave the body unparsed, later calls fail the same way.
+                function.body.clear();
+                function.lazy = lazy;
+                lazy.failed = true;
+                return false;
+            }
+
+            if (optimize) {
+                List<Stmt> optimized = Lox.optimizer().optimize(function.body);
+                if (optimized != function.body) {
+                    function.body.clear();
+                    function.body.addAll(optimized);
+                }
+            }
+
+            return true;
+        } finally {
+            Lox.hadError |= hadError;
+        }
+    }
+}
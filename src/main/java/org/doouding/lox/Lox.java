@@ -1,10 +1,16 @@
 package org.doouding.lox;
 
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import org.jline.terminal.TerminalBuilder;
 import org.jline.terminal.Terminal;
 import org.jline.reader.LineReaderBuilder;
@@ -12,14 +18,79 @@ import org.jline.reader.UserInterruptException;
 import org.jline.reader.LineReader;
 
 public class Lox {
+    private enum Engine {
+        TREE,
+        CLOSURE,
+        VM,
+        JVM
+    }
+
     private static final Interpreter interpreter = new Interpreter();
+    private static final Vm vm = new Vm();
+    private static Optimizer optimizer;
+    private static Engine engine = Engine.TREE;
+    private static boolean showStats = false;
+
+    /**
+     * 解释器线程的栈大小 (MB), 决定 Lox 递归能有多深
+     */
+    private static long stackSize = 256;
+
+    /**
+     * 内联函数体的最大节点数, 0 表示不内联
+     */
+    private static int inlineSize = 12;
+
+    /**
+     * 函数体在第一次调用时才解析, 只用于 tree 引擎
+     */
+    private static boolean lazyParse = false;
+
+    /**
+     * 解析结果的缓存目录, null 表示不缓存
+     */
+    private static String cacheDir = null;
+
+    /**
+     * 启动时载入的快照文件, 和脚本运行完后写入的快照文件
+     */
+    private static String snapshot = null;
+    private static String saveSnapshot = null;
+
+    /**
+     * --profile 写出调用栈样本的文件, null 表示不采样
+     */
+    private static String profile = null;
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
     static boolean isREPL = false;
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        if (profile != null) {
+            interpreter.profiler = new Profiler();
+            interpreter.profiler.start();
+        }
+
+        if (cacheDir != null) {
+            runCached(path);
+        } else {
+            // The script is scanned while it is read, parsing doesn't wait for the whole file.
+            try (Reader reader = new InputStreamReader(Files.newInputStream(Paths.get(path)), StandardCharsets.UTF_8)) {
+                run(new Scanner(reader));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        if (showStats) printStats();
+        if (interpreter.profiler != null) {
+            interpreter.profiler.stop();
+            interpreter.profiler.report(System.err);
+            interpreter.profiler.write(Paths.get(profile));
+        }
+
+        if (saveSnapshot != null && !hadError && !hadRuntimeError) {
+            Snapshot.save(Paths.get(saveSnapshot), interpreter);
+        }
 
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
@@ -33,7 +104,7 @@ public class Lox {
             try {
                 String line = lineReader.readLine("> ");
                 if (line == null) break;
-                run(line);
+                run(new Scanner(line));
                 hadError = false;
             } catch (UserInterruptException e) {
                 System.exit(0);
@@ -65,35 +136,255 @@ public class Lox {
         hadError = true;
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
+    /**
+     * Run a script file through the AST cache: the whole file is read to
+     * hash it, a cached AST replaces scanning, parsing and resolving.
+     */
+    private static void runCached(String path) throws IOException {
+        byte[] source = Files.readAllBytes(Paths.get(path));
+        AstCache cache = new AstCache(Paths.get(cacheDir));
+
+        List<Stmt> statements = cache.load(source);
+        if (statements == null) {
+            statements = parse(new Parser(new Scanner(new String(source, StandardCharsets.UTF_8))));
+            if (statements == null) return;
+
+            cache.store(source, statements);
+        }
+
+        execute(statements);
+    }
+
+    /**
+     * Define the globals of the --snapshot file before anything runs.
+     */
+    private static void loadSnapshot() throws IOException {
+        Snapshot.load(Paths.get(snapshot), interpreter, engine == Engine.CLOSURE);
+    }
+
+    private static void run(Scanner scanner) {
+        // Only the tree engine runs a function straight from its declaration,
+        // the others compile every body before the script starts.
+        Parser parser = new Parser(scanner, lazyParse && engine == Engine.TREE);
+        List<Stmt> statements = parse(parser);
+        if (statements == null) return;
+
+        execute(statements);
+        LazyBody.check(parser.lazyFunctions());
+    }
+
+    /**
+     * Parse and resolve a script.
+     * @return null if it has errors
+     */
+    private static List<Stmt> parse(Parser parser) {
         List<Stmt> statements = parser.parse();
 
         // Stop if there was a syntax error.
-        if (hadError) return;
+        if (hadError) return null;
 
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver();
         resolver.resolve(statements);
 
-        if (hadError) return;
+        if (hadError) return null;
+        return statements;
+    }
+
+    private static void execute(List<Stmt> statements) {
+        statements = optimizer().optimize(statements);
+
+        switch (engine) {
+            case CLOSURE:
+                interpreter.interprete(new NodeCompiler(interpreter).compile(statements));
+                break;
+            case VM:
+                VmFunction script = new VmCompiler().compile(statements);
+                if (hadError) return;
+
+                vm.interprete(script);
+                break;
+            case JVM:
+                interpreter.interprete(new JvmCompiler(interpreter).compile(statements));
+                break;
+            default:
+                interpreter.interprete(statements);
+        }
+    }
+
+    /**
+     * The optimizer is made on first use so it sees the command line options.
+     */
+    static Optimizer optimizer() {
+        if (optimizer == null) {
+            optimizer = Optimizer.standard(inlineSize);
+        }
+
+        return optimizer;
+    }
+
+    /**
+     * --stats 输出运行统计
+     */
+    private static void printStats() {
+        optimizer().report(System.err);
+
+        // Only the closure engine runs ExprNodes, the others would print zeros.
+        if (engine == Engine.CLOSURE) ExprNode.SpecializingNode.report(System.err);
+        if (!RuntimeStats.ENABLED) return;
+
+        // Only the tree and closure engines count, the vm and jvm engines would print zeros.
+        if (engine == Engine.VM || engine == Engine.JVM) {
+            System.err.println("runtime counters: not collected by the " + engine.name().toLowerCase(Locale.ROOT) + " engine");
+        } else {
+            RuntimeStats.report(System.err);
+        }
+    }
+
+    /**
+     * Run a script in this JVM without exiting, for tools that measure the
+     * interpreter. The engine stays selected for later runs.
+     * @param engineName tree, closure, vm or jvm
+     * @return false if the script had a compile or runtime error
+     */
+    public static boolean runScript(String source, String engineName) {
+        engine = Engine.valueOf(engineName.toUpperCase(Locale.ROOT));
+        hadError = false;
+        hadRuntimeError = false;
+        ExprNode.SpecializingNode.reset();
+
+        run(new Scanner(source));
+        return !hadError && !hadRuntimeError;
+    }
+
+    /**
+     * The runtime counters of the scripts run so far, for tools that
+     * measure the interpreter. They only count when the JVM runs with
+     * -Dlox.stats=true.
+     * @return counter values by name, empty when counting is off
+     */
+    public static Map<String, Long> runtimeStats() {
+        if (!RuntimeStats.ENABLED) return new LinkedHashMap<>();
+        return RuntimeStats.counters();
+    }
 
-        interpreter.interprete(statements);
+    private static void usage() {
+        System.out.println("Usage: jlox [--engine=tree|closure|vm|jvm] [--stats] [--stack-size=<MB>] [--inline-size=<nodes>] [--lazy-parse] [--cache=<dir>] [--snapshot=<file>] [--save-snapshot=<file>] [--profile[=<file>]] [script]");
+        System.exit(64);
     }
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
+        String script = null;
+
+        for (String arg : args) {
+            if (arg.equals("--engine=tree")) {
+                engine = Engine.TREE;
+            } else if (arg.equals("--engine=closure")) {
+                engine = Engine.CLOSURE;
+            } else if (arg.equals("--engine=vm")) {
+                engine = Engine.VM;
+            } else if (arg.equals("--engine=jvm")) {
+                engine = Engine.JVM;
+            } else if (arg.equals("--stats")) {
+                showStats = true;
+                // Read once by RuntimeStats, nothing has been counted yet.
+                System.setProperty("lox.stats", "true");
+            } else if (arg.startsWith("--cache=")) {
+                cacheDir = arg.substring("--cache=".length());
+                if (cacheDir.isEmpty()) usage();
+            } else if (arg.startsWith("--snapshot=")) {
+                snapshot = arg.substring("--snapshot=".length());
+                if (snapshot.isEmpty()) usage();
+            } else if (arg.startsWith("--save-snapshot=")) {
+                saveSnapshot = arg.substring("--save-snapshot=".length());
+                if (saveSnapshot.isEmpty()) usage();
+            } else if (arg.equals("--profile")) {
+                profile = "profile.collapsed";
+            } else if (arg.startsWith("--profile=")) {
+                profile = arg.substring("--profile=".length());
+                if (profile.isEmpty()) usage();
+            } else if (arg.equals("--lazy-parse")) {
+                lazyParse = true;
+            } else if (arg.startsWith("--stack-size=")) {
+                try {
+                    stackSize = Long.parseLong(arg.substring("--stack-size=".length()));
+                } catch (NumberFormatException e) {
+                    usage();
+                }
+                if (stackSize <= 0) usage();
+            } else if (arg.startsWith("--inline-size=")) {
+                try {
+                    inlineSize = Integer.parseInt(arg.substring("--inline-size=".length()));
+                } catch (NumberFormatException e) {
+                    usage();
+                }
+                if (inlineSize < 0) usage();
+            } else if (script == null && !arg.startsWith("--")) {
+                script = arg;
+            } else {
+                usage();
+            }
+        }
+
+        // The vm keeps globals of its own, and functions the jvm engine
+        // generates hold their variables where a snapshot can't reach them.
+        if ((snapshot != null && engine == Engine.VM) || (saveSnapshot != null && (engine == Engine.VM || engine == Engine.JVM))) {
+            System.err.println("Snapshots are not supported by this engine.");
+            System.exit(64);
+        }
+        if (saveSnapshot != null && script == null) usage();
+
+        // The cache keeps whole resolved scripts, lazy bodies are left unparsed.
+        if (cacheDir != null && lazyParse) {
+            System.err.println("--cache can't be used with --lazy-parse.");
+            System.exit(64);
+        }
+
+        // Only LoxFunction.execute, which the vm and jvm engines don't use, keeps the stack.
+        if (profile != null && (engine == Engine.VM || engine == Engine.JVM)) {
+            System.err.println("Profiling is only supported by the tree and closure engines.");
             System.exit(64);
         }
-        else if (args.length == 1) {
-            isREPL = false;
-            runFile(args[0]);
+        if (profile != null && script == null) usage();
+
+        // Vm frames live on the heap, their limit follows the stack the other engines get.
+        vm.framesMax = (int)Math.min(stackSize, Integer.MAX_VALUE / Vm.FRAMES_PER_MB) * Vm.FRAMES_PER_MB;
+
+        // Lox calls nest Java calls, so the interpreter runs on a thread
+        // whose stack size is under our control instead of the main thread.
+        final String path = script;
+        final Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (snapshot != null) loadSnapshot();
+
+                    if (path != null) {
+                        isREPL = false;
+                        runFile(path);
+                    }
+                    else {
+                        isREPL = true;
+                        runPrompt();
+                    }
+                } catch (Throwable e) {
+                    // Returning from the thread would leave main to exit with 0.
+                    failure[0] = e;
+                }
+            }
+        }, "lox", stackSize * 1024 * 1024);
+
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        else {
-            isREPL = true;
-            runPrompt();
+
+        if (failure[0] instanceof IOException) throw (IOException)failure[0];
+        if (failure[0] != null) {
+            failure[0].printStackTrace();
+            System.exit(70);
         }
     }
 }
@@ -1,8 +1,36 @@
 package org.doouding.lox;
 
-import java.util.List;
-
+/**
+ * Something a Lox call expression can call.
+ *
+ * Arguments are passed in an array, or as separate values through the
+ * call0 to call3 fast paths. A callable that keeps its parameters in a
+ * frame (LoxFunction) overrides those to write the values straight into
+ * the frame, the defaults just pack them for call.
+ */
 interface LoxCallable {
+    Object[] NO_ARGUMENTS = new Object[0];
+
     int arity();
-    Object call(Interpreter interpreter, List<Object> arguments);
+
+    /**
+     * @param arguments exactly arity() values, the callee may keep the array
+     */
+    Object call(Interpreter interpreter, Object[] arguments);
+
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, NO_ARGUMENTS);
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, new Object[] { a });
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, new Object[] { a, b });
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, new Object[] { a, b, c });
+    }
 }
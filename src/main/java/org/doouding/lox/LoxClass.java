@@ -1,31 +1,36 @@
 package org.doouding.lox;
 
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 public class LoxClass implements LoxCallable {
     final String name;
-    private final Map<String, LoxField> fields;
-    private final Map<String, LoxField> privateFields;
 
-    private final Map<String, LoxFunction> methods;
-    private final Map<String, LoxFunction> privateMethods;
-    private final Map<String, LoxFunction> staticMethods;
+    /**
+     * 字段在实例 values 数组中的下标, 公有字段在前私有字段在后.
+     * 成员表都以 Symbol 为键, 查找时不用再对名字求 hash
+     */
+    private final Map<Symbol, Integer> fieldOffsets = new HashMap<>();
+    private final Map<Symbol, Integer> privateFieldOffsets = new HashMap<>();
+    final int fieldCount;
+
+    private final Map<Symbol, LoxFunction> methods;
+    private final Map<Symbol, LoxFunction> privateMethods;
+    private final Map<Symbol, LoxFunction> staticMethods;
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
+        LoxFunction initializer = findMethod(Symbol.INIT);
         if (initializer == null) return 0;
         return initializer.arity();
     }
 
     LoxClass(String name,
-        Map<String, LoxFunction> methods,
-        Map<String, LoxFunction> staticMethods,
-        Map<String, LoxFunction> privateMethods,
-        Map<String, LoxField> fields,
-        Map<String, LoxField> privateFields
+        Map<Symbol, LoxFunction> methods,
+        Map<Symbol, LoxFunction> staticMethods,
+        Map<Symbol, LoxFunction> privateMethods,
+        Map<Symbol, LoxField> fields,
+        Map<Symbol, LoxField> privateFields
     ) {
         this.name = name;
 
@@ -33,19 +38,76 @@ public class LoxClass implements LoxCallable {
         this.staticMethods = staticMethods;
         this.privateMethods = privateMethods;
 
-        this.fields = fields;
-        this.privateFields = privateFields;
+        int offset = 0;
+        for (Symbol field : fields.keySet()) {
+            fieldOffsets.put(field, offset++);
+        }
+        for (Symbol field : privateFields.keySet()) {
+            privateFieldOffsets.put(field, offset++);
+        }
+        this.fieldCount = offset;
+    }
+
+    /**
+     * @return offset of a public field, -1 if there is none
+     */
+    int fieldOffset(Symbol name) {
+        Integer offset = fieldOffsets.get(name);
+        return offset == null ? -1 : offset;
+    }
+
+    /**
+     * @return offset of a private field, -1 if there is none
+     */
+    int privateFieldOffset(Symbol name) {
+        Integer offset = privateFieldOffsets.get(name);
+        return offset == null ? -1 : offset;
     }
 
-    boolean hasMethod(String name) {
+    /**
+     * @return names of the public fields, in offset order
+     */
+    Symbol[] fieldNames() {
+        return names(fieldOffsets, 0);
+    }
+
+    /**
+     * @return names of the private fields, in offset order
+     */
+    Symbol[] privateFieldNames() {
+        return names(privateFieldOffsets, fieldOffsets.size());
+    }
+
+    private static Symbol[] names(Map<Symbol, Integer> offsets, int first) {
+        Symbol[] names = new Symbol[offsets.size()];
+        for (Map.Entry<Symbol, Integer> entry : offsets.entrySet()) {
+            names[entry.getValue() - first] = entry.getKey();
+        }
+
+        return names;
+    }
+
+    Map<Symbol, LoxFunction> methods() {
+        return methods;
+    }
+
+    Map<Symbol, LoxFunction> staticMethods() {
+        return staticMethods;
+    }
+
+    Map<Symbol, LoxFunction> privateMethods() {
+        return privateMethods;
+    }
+
+    boolean hasMethod(Symbol name) {
         return methods.containsKey(name);
     }
 
-    boolean hasPrivateMethod(String name) {
+    boolean hasPrivateMethod(Symbol name) {
         return privateMethods.containsKey(name);
     }
 
-    LoxFunction findPrivateMethod(String name) {
+    LoxFunction findPrivateMethod(Symbol name) {
         if (privateMethods.containsKey(name)) {
             return privateMethods.get(name);
         }
@@ -53,7 +115,7 @@ public class LoxClass implements LoxCallable {
         return null;
     }
 
-    LoxFunction findMethod(String name) {
+    LoxFunction findMethod(Symbol name) {
         if (methods.containsKey(name)) {
             return methods.get(name);
         }
@@ -67,31 +129,21 @@ public class LoxClass implements LoxCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Map<String, Object> fields = new HashMap<String, Object>();
-        Map<String, Object> privateFields = new HashMap<String, Object>();
-
-        for(Map.Entry<String, LoxField> field: this.fields.entrySet()) {
-            fields.put(field.getKey(), null);
-        }
-        for(Map.Entry<String, LoxField> field: this.privateFields.entrySet()) {
-            privateFields.put(field.getKey(), null);
-        }
-
-        LoxInstance instance = new LoxInstance(this, privateFields, fields);
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        LoxInstance instance = new LoxInstance(this);
         LoxInstanceProxy instanceProxy = new LoxInstanceProxy(instance, false);
-        LoxFunction initializer = findMethod("init");
+        LoxFunction initializer = findMethod(Symbol.INIT);
 
         if (initializer != null) {
-            initializer.bind(new LoxInstanceProxy(instance, true)).call(interpreter, arguments);
+            initializer.callMethod(interpreter, instance.self(), arguments);
         }
 
         return instanceProxy;
     }
 
     public Object getStatic(Token name) {
-        if(staticMethods.containsKey(name.lexeme)) {
-            return staticMethods.get(name.lexeme);
+        if(staticMethods.containsKey(name.symbol)) {
+            return staticMethods.get(name.symbol);
         }
 
         throw new RuntimeError(name, "Cannot find static method " + name.lexeme);
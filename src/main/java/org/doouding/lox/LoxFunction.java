@@ -1,23 +1,30 @@
 package org.doouding.lox;
 
-import java.util.List;
-
 public class LoxFunction implements LoxCallable {
-    private final Stmt.Function declaration;
-    private final Enviroment cloure;
+    final Stmt.Function declaration;
+    final Enviroment cloure;
+
+    final boolean isInitializer;
 
-    private final boolean isInitializer;
+    /**
+     * 绑定的实例, 方法调用时放在栈帧的 0 号槽位作为 this. 普通函数和静态方法为 null
+     */
+    final LoxInstanceProxy instance;
 
     LoxFunction(Stmt.Function declaration, Enviroment enviroment, boolean isInitializer) {
+        this(declaration, enviroment, isInitializer, null);
+    }
+
+    LoxFunction(Stmt.Function declaration, Enviroment enviroment, boolean isInitializer, LoxInstanceProxy instance) {
         this.isInitializer = isInitializer;
         this.cloure = enviroment;
         this.declaration = declaration;
+        this.instance = instance;
     }
 
     LoxFunction bind(LoxInstanceProxy instance) {
-        Enviroment enviroment = new Enviroment(cloure);
-        enviroment.define("this", instance);
-        return new LoxFunction(declaration, enviroment, isInitializer);
+        if (RuntimeStats.ENABLED) RuntimeStats.binds++;
+        return new LoxFunction(declaration, cloure, isInitializer, instance);
     }
 
     @Override
@@ -31,19 +38,118 @@ public class LoxFunction implements LoxCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Enviroment enviroment = new Enviroment(cloure);
-        for(int i = 0; i < declaration.params.size(); i++) {
-            enviroment.define(declaration.params.get(i).lexeme, arguments.get(i));
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return callMethod(interpreter, instance, arguments);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return execute(interpreter, frame(instance), instance);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        Enviroment frame = frame(instance);
+        frame.define(a);
+        return execute(interpreter, frame, instance);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        Enviroment frame = frame(instance);
+        frame.define(a);
+        frame.define(b);
+        return execute(interpreter, frame, instance);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        Enviroment frame = frame(instance);
+        frame.define(a);
+        frame.define(b);
+        frame.define(c);
+        return execute(interpreter, frame, instance);
+    }
+
+    /**
+     * Run the body with the given receiver as "this", without binding the
+     * method first. Call sites that already hold the instance use this.
+     * @param instance the receiver, null for functions and static methods
+     */
+    Object callMethod(Interpreter interpreter, LoxInstanceProxy instance, Object[] arguments) {
+        Enviroment frame = frame(instance);
+        for (Object argument : arguments) {
+            frame.define(argument);
+        }
+
+        return execute(interpreter, frame, instance);
+    }
+
+    /**
+     * Create the frame of a call with only the receiver in it. The caller
+     * defines the arguments into the following slots and then runs
+     * execute, so no argument list is needed in between.
+     */
+    Enviroment frame(LoxInstanceProxy instance) {
+        if (declaration.lazy != null) LazyBody.complete(declaration);
+
+        Enviroment frame = new Enviroment(cloure, declaration.locals);
+        if (instance != null) {
+            frame.define(instance);
         }
 
+        return frame;
+    }
+
+    /**
+     * Run the body in a frame made by frame() whose arguments are defined.
+     *
+     * A `return f(...)` in the body leaves f and its frame in the
+     * Interpreter instead of calling it, this loop then runs f in place of
+     * the returning function so tail calls don't grow the Java stack.
+     */
+    Object execute(Interpreter interpreter, Enviroment frame, LoxInstanceProxy instance) {
+        LoxFunction function = this;
+        Profiler profiler = interpreter.profiler;
+        interpreter.callDepth++;
+        if (RuntimeStats.ENABLED) RuntimeStats.calls++;
+        if (profiler != null) profiler.enter(declaration);
+
         try {
-            interpreter.executeBlock(declaration.body, enviroment);
-        } catch(Return returnValue) {
-            if (isInitializer) return cloure.getAt(0, "this");
-            return returnValue.value;
+            Completion completion = function.run(interpreter, frame);
+
+            while (completion == Completion.RETURN && interpreter.tailFunction != null) {
+                function = interpreter.tailFunction;
+                frame = interpreter.tailFrame;
+                instance = interpreter.tailReceiver;
+                interpreter.tailFunction = null;
+                interpreter.tailFrame = null;
+                interpreter.tailReceiver = null;
+                if (RuntimeStats.ENABLED) RuntimeStats.calls++;
+                if (profiler != null) profiler.replace(function.declaration);
+
+                completion = function.run(interpreter, frame);
+            }
+
+            interpreter.callDepth--;
+            if (profiler != null) profiler.exit();
+
+            if (completion == Completion.RETURN) {
+                Object value = interpreter.takeReturnValue();
+                if (function.isInitializer) return instance;
+                return value;
+            }
+
+            return null;
+        } catch (StackOverflowError e) {
+            throw new RuntimeError(function.declaration.name, "Stack overflow at call depth " + interpreter.callDepth + ".");
         }
+    }
 
-        return null;
+    /**
+     * Execute the body statements in the frame.
+     */
+    Completion run(Interpreter interpreter, Enviroment frame) {
+        return interpreter.executeBlock(declaration.body, frame);
     }
 }
@@ -1,23 +1,36 @@
 package org.doouding.lox;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public class LoxInstance {
-    private LoxClass klass;
-    private Map<String, Object> fields = new HashMap<>();
-    private Map<String, Object> privateFields = new HashMap<>();
+    final LoxClass klass;
+
+    /**
+     * 字段的值, 按 LoxClass 计算好的下标存放
+     */
+    final Object[] values;
 
-    LoxInstance(LoxClass klass, Map<String, Object> privateFields, Map<String, Object> fields) {
+    /**
+     * 类内部使用的视图 (可访问私有成员), 方法的 this 都是它
+     */
+    private LoxInstanceProxy self;
+
+    LoxInstance(LoxClass klass) {
         this.klass = klass;
-        this.fields = fields;
-        this.privateFields = privateFields;
+        this.values = new Object[klass.fieldCount];
+    }
+
+    LoxInstanceProxy self() {
+        if (self == null) {
+            self = new LoxInstanceProxy(this, true);
+        }
+
+        return self;
     }
 
     void set(Token name, Object value, boolean allowPrivate) {
-        if(privateFields.containsKey(name.lexeme)) {
+        int offset = klass.privateFieldOffset(name.symbol);
+        if(offset != -1) {
             if(allowPrivate) {
-                privateFields.put(name.lexeme, value);
+                values[offset] = value;
                 return;
             }
             else {
@@ -25,8 +38,9 @@ public class LoxInstance {
             }
         }
 
-        if(fields.containsKey(name.lexeme)) {
-            fields.put(name.lexeme, value);
+        offset = klass.fieldOffset(name.symbol);
+        if(offset != -1) {
+            values[offset] = value;
             return;
         }
 
@@ -34,25 +48,27 @@ public class LoxInstance {
     }
 
     Object get(Token name, boolean allowPrivate) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        int offset = klass.fieldOffset(name.symbol);
+        if (offset != -1) {
+            return values[offset];
         }
 
-        if(privateFields.containsKey(name.lexeme)) {
+        offset = klass.privateFieldOffset(name.symbol);
+        if(offset != -1) {
             if (allowPrivate) {
-                return fields.get(name.lexeme);
+                return values[offset];
             }
             else {
                 throw new RuntimeError(name, "Cannot access the private field \"" + name.lexeme + "\" outside the class.");
             }
         }
 
-        if (klass.hasMethod(name.lexeme)) {
-            return klass.findMethod(name.lexeme).bind(new LoxInstanceProxy(this, true));
+        if (klass.hasMethod(name.symbol)) {
+            return klass.findMethod(name.symbol).bind(self());
         }
-        if (klass.hasPrivateMethod(name.lexeme)) {
+        if (klass.hasPrivateMethod(name.symbol)) {
             if(allowPrivate) {
-                return klass.findPrivateMethod(name.lexeme).bind(new LoxInstanceProxy(this, true));
+                return klass.findPrivateMethod(name.symbol).bind(self());
             }
             else {
                 throw new RuntimeError(name, "Cannot access the private method \"" + name.lexeme + "\" outside the class.");
@@ -1,10 +1,12 @@
 package org.doouding.lox;
 
 public class LoxInstanceProxy {
-    private LoxInstance instance;
-    private boolean allowPrivate;
+    final LoxInstance instance;
+    final boolean allowPrivate;
 
     LoxInstanceProxy(LoxInstance instance, boolean allowPrivate) {
+        if (RuntimeStats.ENABLED) RuntimeStats.proxies++;
+
         this.instance = instance;
         this.allowPrivate = allowPrivate;
     }
@@ -0,0 +1,47 @@
+package org.doouding.lox;
+
+/**
+ * Method cached by a single `object.method(...)` call site. Like
+ * FieldCache it only remembers the last class the site saw, so a site
+ * that keeps calling on one class finds the method with a single compare
+ * and calls it without binding.
+ *
+ * lookup returns null whenever the property is not a method the caller
+ * may use (a field of that name, a missing or private method), the call
+ * site then falls back to the normal property access which produces the
+ * value or the error.
+ */
+class MethodCache {
+    private LoxClass klass;
+    private LoxFunction method;
+    private boolean isPrivate;
+
+    LoxFunction lookup(LoxInstanceProxy proxy, Token name) {
+        LoxClass actual = proxy.instance.klass;
+
+        if (actual == klass && (!isPrivate || proxy.allowPrivate)) {
+            return method;
+        }
+
+        // Fields shadow methods, as in LoxInstance.get.
+        if (actual.fieldOffset(name.symbol) != -1 || actual.privateFieldOffset(name.symbol) != -1) {
+            return null;
+        }
+
+        LoxFunction found = actual.findMethod(name.symbol);
+        boolean foundPrivate = false;
+        if (found == null) {
+            found = actual.findPrivateMethod(name.symbol);
+            foundPrivate = true;
+        }
+
+        if (found == null || (foundPrivate && !proxy.allowPrivate)) {
+            return null;
+        }
+
+        this.klass = actual;
+        this.method = found;
+        this.isPrivate = foundPrivate;
+        return found;
+    }
+}
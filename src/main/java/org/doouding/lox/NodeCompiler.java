@@ -0,0 +1,278 @@
+package org.doouding.lox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts a resolved Stmt/Expr tree into ExprNode/StmtNode executors.
+ * Every decision that only depends on the source (operator, arity,
+ * local vs global, depth and slot) is made here once instead of on every
+ * evaluation.
+ */
+class NodeCompiler implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+    private final Interpreter interpreter;
+    private final Enviroment globals;
+
+    /**
+     * Number of scopes around the statement being compiled, 0 at top level
+     */
+    private int scopeDepth = 0;
+
+    NodeCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+    }
+
+    StmtNode[] compile(List<Stmt> statements) {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = statements.get(i).accept(this);
+        }
+
+        return nodes;
+    }
+
+    /**
+     * Compile the body of a function that was declared in an earlier run,
+     * one restored from a snapshot.
+     */
+    StmtNode[] compileBody(Stmt.Function function) {
+        return compileScope(function.body);
+    }
+
+    private ExprNode compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private StmtNode compile(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    private StmtNode[] compileScope(List<Stmt> statements) {
+        scopeDepth++;
+        StmtNode[] nodes = compile(statements);
+        scopeDepth--;
+
+        return nodes;
+    }
+
+    /**
+     * @return globals when compiling a top-level declaration, otherwise null
+     */
+    private Enviroment declarationTarget() {
+        return scopeDepth == 0 ? globals : null;
+    }
+
+    private ExprNode variable(Token name, int depth, int slot) {
+        if (depth != -1) {
+            return new ExprNode.LocalVariable(depth, slot);
+        }
+
+        return new ExprNode.GlobalVariable(globals, name);
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr) {
+        ExprNode value = compile(expr.value);
+
+        if (expr.depth != -1) {
+            return new ExprNode.AssignLocal(expr.depth, expr.slot, value);
+        }
+
+        return new ExprNode.AssignGlobal(globals, expr.name, value);
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr) {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+
+        switch (expr.operator.type) {
+            case PLUS: return new ExprNode.Add(expr.operator, left, right);
+            case MINUS: return new ExprNode.Subtract(expr.operator, left, right);
+            case STAR: return new ExprNode.Multiply(expr.operator, left, right);
+            case SLASH: return new ExprNode.Divide(expr.operator, left, right);
+            case GREATER: return new ExprNode.Greater(expr.operator, left, right);
+            case GREATER_EQUAL: return new ExprNode.GreaterEqual(expr.operator, left, right);
+            case LESS: return new ExprNode.Less(expr.operator, left, right);
+            case LESS_EQUAL: return new ExprNode.LessEqual(expr.operator, left, right);
+            case EQUAL_EQUAL: return new ExprNode.Equal(expr.operator, left, right);
+            case BANG_EQUAL: return new ExprNode.NotEqual(expr.operator, left, right);
+            default: return new ExprNode.Constant(null);
+        }
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr) {
+        Expr.Get get = expr.callee instanceof Expr.Get ? (Expr.Get)expr.callee : null;
+        ExprNode callee = compile(get != null ? get.object : expr.callee);
+        ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+
+        if (get != null) {
+            return new ExprNode.Invoke(interpreter, callee, get.name, expr.paren, arguments);
+        }
+
+        switch (arguments.length) {
+            case 0: return new ExprNode.Call0(interpreter, callee, expr.paren);
+            case 1: return new ExprNode.Call1(interpreter, callee, expr.paren, arguments[0]);
+            case 2: return new ExprNode.Call2(interpreter, callee, expr.paren, arguments[0], arguments[1]);
+            case 3: return new ExprNode.Call3(interpreter, callee, expr.paren, arguments[0], arguments[1], arguments[2]);
+            default: return new ExprNode.CallN(interpreter, callee, expr.paren, arguments);
+        }
+    }
+
+    @Override
+    public ExprNode visitGetExpr(Expr.Get expr) {
+        return new ExprNode.Get(compile(expr.object), expr.name);
+    }
+
+    @Override
+    public ExprNode visitSetExpr(Expr.Set expr) {
+        return new ExprNode.Set(compile(expr.object), expr.name, compile(expr.value));
+    }
+
+    @Override
+    public ExprNode visitThisExpr(Expr.This expr) {
+        return variable(expr.keyword, expr.depth, expr.slot);
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr) {
+        return new ExprNode.Constant(expr.value);
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr) {
+        ExprNode right = compile(expr.right);
+
+        switch (expr.operator.type) {
+            case MINUS: return new ExprNode.Negate(expr.operator, right);
+            case BANG: return new ExprNode.Not(right);
+            default: return new ExprNode.Constant(null);
+        }
+    }
+
+    @Override
+    public ExprNode visitConditionalExpr(Expr.Conditional expr) {
+        return new ExprNode.Conditional(compile(expr.condition), compile(expr.stat1), compile(expr.stat2));
+    }
+
+    @Override
+    public ExprNode visitSelfOpExpr(Expr.SelfOp expr) {
+        if (expr.depth != -1) {
+            return new ExprNode.SelfOpLocal(expr.operator, expr.depth, expr.slot, expr.left);
+        }
+
+        return new ExprNode.SelfOpGlobal(globals, expr.name, expr.operator, expr.left);
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr) {
+        return variable(expr.name, expr.depth, expr.slot);
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr) {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+
+        if (expr.operator.type == TokenType.AND) {
+            return new ExprNode.And(expr.operator, left, right);
+        }
+
+        return new ExprNode.Or(expr.operator, left, right);
+    }
+
+    @Override
+    public ExprNode visitInlineExpr(Expr.Inline expr) {
+        ExprNode body = compile(expr.body);
+        ExprNode call = compile(expr.call);
+
+        if (expr.call.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.call.callee;
+            return new ExprNode.InlineMethod(compile(get.object), get.name, expr.target, body, call);
+        }
+
+        return new ExprNode.InlineFunction(compile(expr.call.callee), expr.target, body, call);
+    }
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt) {
+        return new StmtNode.Block(compileScope(stmt.statements), stmt.locals);
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+        return new StmtNode.Expression(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt) {
+        return new StmtNode.Return(interpreter, stmt.value == null ? null : compile(stmt.value));
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt) {
+        return new StmtNode.If(compile(stmt.condition), compile(stmt.thenBranch), compile(stmt.elseBranch));
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt) {
+        return new StmtNode.Print(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt) {
+        ExprNode initializer = stmt.initializer == null ? null : compile(stmt.initializer);
+        return new StmtNode.Var(declarationTarget(), stmt.name, initializer);
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt) {
+        return new StmtNode.While(compile(stmt.condition), compile(stmt.loopStatement));
+    }
+
+    @Override
+    public StmtNode visitTerminateStmt(Stmt.Terminate stmt) {
+        if (stmt.identifier.type == TokenType.BREAK) {
+            return new StmtNode.Break();
+        }
+
+        return new StmtNode.Continue();
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+        return new StmtNode.Function(declarationTarget(), stmt, compileScope(stmt.body));
+    }
+
+    @Override
+    public StmtNode visitClassStmt(Stmt.Class stmt) {
+        Map<Stmt.Function, StmtNode[]> bodies = new HashMap<>();
+
+        for (Stmt.Function method : stmt.methods) {
+            bodies.put(method, compileScope(method.body));
+        }
+
+        for (Stmt.Function method : stmt.staticMethods) {
+            bodies.put(method, compileScope(method.body));
+        }
+
+        for (Stmt.Function method : stmt.privateMethods) {
+            bodies.put(method, compileScope(method.body));
+        }
+
+        return new StmtNode.Class(declarationTarget(), stmt, bodies);
+    }
+}
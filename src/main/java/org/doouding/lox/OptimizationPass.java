@@ -0,0 +1,17 @@
+package org.doouding.lox;
+
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * A rewrite of the resolved program, run by the Optimizer before any
+ * engine sees it. A pass must keep the program's output and errors.
+ */
+interface OptimizationPass {
+    List<Stmt> run(List<Stmt> statements);
+
+    /**
+     * Print what the pass changed in the runs so far, for --stats.
+     */
+    void report(PrintStream out);
+}
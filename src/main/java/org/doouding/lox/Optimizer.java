@@ -0,0 +1,47 @@
+package org.doouding.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pipeline of optimisation passes between the Resolver and the engines.
+ * Passes run in the order they were added, each on the output of the
+ * previous one.
+ */
+class Optimizer {
+    private final List<OptimizationPass> passes = new ArrayList<>();
+
+    /**
+     * The default pipeline: inline first so constant arguments can be
+     * folded into the bodies, then fold constants so the dead code pass
+     * sees literal conditions.
+     * @param inlineSize size threshold of the Inliner, 0 to not inline
+     */
+    static Optimizer standard(int inlineSize) {
+        return new Optimizer()
+            .add(new Inliner(inlineSize))
+            .add(new ConstantFolder())
+            .add(new DeadCodeEliminator());
+    }
+
+    Optimizer add(OptimizationPass pass) {
+        passes.add(pass);
+        return this;
+    }
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        for (OptimizationPass pass : passes) {
+            statements = pass.run(statements);
+        }
+
+        return statements;
+    }
+
+    void report(PrintStream out) {
+        out.println("optimizer:");
+        for (OptimizationPass pass : passes) {
+            pass.report(out);
+        }
+    }
+}
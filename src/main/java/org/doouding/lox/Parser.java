@@ -61,22 +61,76 @@ import java.util.List;
 public class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
+    private final Scanner scanner;
+
+    /**
+     * Tokens read from the scanner and not dropped yet, current indexes into it
+     */
+    private final List<Token> tokens = new ArrayList<>();
     private int current = 0;
 
+    /**
+     * Skip the bodies of top-level functions and methods, see LazyBody
+     */
+    private final boolean lazyBodies;
+    private final List<Stmt.Function> lazyFunctions = new ArrayList<>();
+
+    /**
+     * 当前所在 block 的层数, 0 表示顶层
+     */
+    private int nesting = 0;
+
+    Parser(Scanner scanner) {
+        this(scanner, false);
+    }
+
+    Parser(Scanner scanner, boolean lazyBodies) {
+        this.scanner = scanner;
+        this.lazyBodies = lazyBodies;
+    }
+
+    /**
+     * Parse the tokens of a skipped function body, which end with its '}' and EOF.
+     */
     Parser(List<Token> tokens) {
-        this.tokens = tokens;
+        this.scanner = null;
+        this.lazyBodies = false;
+        this.tokens.addAll(tokens);
     }
 
     List<Stmt> parse() {
         List<Stmt> statements = new ArrayList<>();
         while (!isAtEnd()) {
             statements.add(declaration());
+
+            // Only the last token read is looked at again, drop the ones before it.
+            if (current > 1) {
+                tokens.subList(0, current - 1).clear();
+                current = 1;
+            }
         }
 
         return statements;
     }
 
+    /**
+     * Parse a function body whose '{' has already been skipped.
+     */
+    List<Stmt> parseBody() {
+        try {
+            return block();
+        } catch (ParseError error) {
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * @return the functions parse() left with an unparsed body
+     */
+    List<Stmt.Function> lazyFunctions() {
+        return lazyFunctions;
+    }
+
     private Stmt declaration() {
         try {
             if (match(TokenType.FUN)) return function("function");
@@ -160,9 +214,8 @@ public class Parser {
         }
         consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
         consume(TokenType.LEFT_BRACE, "Expect '{' before bodyfun.");
-        List<Stmt> body = block();
 
-        return new Stmt.Function(name, parameters, body);
+        return functionBody(name, parameters);
     }
 
     private Stmt function(String kind) {
@@ -181,9 +234,41 @@ public class Parser {
         }
         consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
         consume(TokenType.LEFT_BRACE, "Expect '{' before bodyfun.");
-        List<Stmt> body = block();
 
-        return new Stmt.Function(name, parameters, body);
+        return functionBody(name, parameters);
+    }
+
+    /**
+     * Parse a function body after its '{'. In lazy mode the body of a
+     * top-level function or method is only brace-matched, its tokens are
+     * kept for LazyBody to parse when the function is first called.
+     */
+    private Stmt.Function functionBody(Token name, List<Token> parameters) {
+        if (!lazyBodies || nesting > 0) {
+            return new Stmt.Function(name, parameters, block());
+        }
+
+        List<Token> body = new ArrayList<>();
+        int depth = 1;
+
+        while (!isAtEnd()) {
+            Token token = advance();
+            body.add(token);
+
+            if (token.type == TokenType.LEFT_BRACE) depth++;
+            if (token.type == TokenType.RIGHT_BRACE && --depth == 0) break;
+        }
+
+        if (depth > 0) {
+            // Same error block() gives for a body that runs into the end.
+            throw error(peek(), "Expect '}' after block.");
+        }
+        body.add(new Token(TokenType.EOF, "", null, previous().line));
+
+        Stmt.Function function = new Stmt.Function(name, parameters, new ArrayList<Stmt>());
+        function.lazy = new LazyBody(body);
+        lazyFunctions.add(function);
+        return function;
     }
 
     private Stmt varDeclaration() {
@@ -258,9 +343,14 @@ public class Parser {
 
     private List<Stmt> block() {
         List<Stmt> statements = new ArrayList<>();
+        nesting++;
 
-        while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
-            statements.add(declaration());
+        try {
+            while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+                statements.add(declaration());
+            }
+        } finally {
+            nesting--;
         }
 
         consume(TokenType.RIGHT_BRACE, "Expect '}' after block.");
@@ -541,11 +631,19 @@ public class Parser {
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return token(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return token(current - 1);
+    }
+
+    private Token token(int index) {
+        while (scanner != null && index >= tokens.size()) {
+            tokens.add(scanner.nextToken());
+        }
+
+        return tokens.get(index);
     }
 
     private ParseError error(Token token, String message) {
@@ -0,0 +1,211 @@
+package org.doouding.lox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sampling profiler of Lox code, enabled with --profile.
+ *
+ * The interpreter keeps a stack of the Lox functions it is running: a
+ * function is pushed and popped in LoxFunction.execute, and a call site
+ * records its line in the frame making the call. A daemon thread reads the
+ * stack every PERIOD and counts each distinct stack. The running thread
+ * never waits for it, so a sample taken while a call is entered or left
+ * may be off by that call.
+ *
+ * Frames are written as name:line, the line of the frame's latest call,
+ * or of the function's declaration before it made one. The stacks go to a
+ * file in the collapsed format of flame graph tools, one line per stack:
+ *
+ *   <script>:12;fib:4;fib 873
+ */
+class Profiler {
+    private static final long PERIOD = 1_000_000;
+    private static final String SCRIPT = "<script>";
+
+    /**
+     * 正在执行的函数和它们所在的行, 下标 0 是脚本顶层
+     *
+     * enter 换成更大的数组时先写好新数组再写 depth, 采样线程先读 depth
+     * 再读数组, 读到的数组至少有 depth 项
+     */
+    private volatile Stmt.Function[] functions = new Stmt.Function[64];
+    private volatile int[] lines = new int[64];
+    private volatile int depth = 0;
+
+    private final Map<String, Integer> stacks = new HashMap<>();
+
+    /**
+     * 每个函数的 {self, total, 最后计入 total 的样本}
+     */
+    private final Map<Stmt.Function, int[]> counts = new IdentityHashMap<>();
+    private int samples = 0;
+
+    private volatile boolean running = true;
+    private final Thread sampler;
+
+    Profiler() {
+        sampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    LockSupport.parkNanos(PERIOD);
+                    sample();
+                }
+            }
+        }, "lox-profiler");
+        sampler.setDaemon(true);
+    }
+
+    void start() {
+        sampler.start();
+    }
+
+    /**
+     * Stop sampling, the counts stay.
+     */
+    void stop() {
+        running = false;
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void enter(Stmt.Function function) {
+        int next = depth + 1;
+        Stmt.Function[] functions = this.functions;
+        int[] lines = this.lines;
+        if (next == functions.length) {
+            functions = Arrays.copyOf(functions, next * 2);
+            lines = Arrays.copyOf(lines, next * 2);
+        }
+
+        functions[next] = function;
+        lines[next] = function.name.line;
+        this.functions = functions;
+        this.lines = lines;
+        depth = next;
+    }
+
+    /**
+     * A tail call runs in place of the returning function.
+     */
+    void replace(Stmt.Function function) {
+        functions[depth] = function;
+        lines[depth] = function.name.line;
+    }
+
+    void exit() {
+        depth--;
+    }
+
+    /**
+     * Record the line of a call made by the current frame.
+     */
+    void line(int line) {
+        lines[depth] = line;
+    }
+
+    /**
+     * A runtime error unwinds every frame without leaving them.
+     */
+    void reset() {
+        depth = 0;
+    }
+
+    private synchronized void sample() {
+        int top = depth;
+        Stmt.Function[] functions = this.functions;
+        int[] lines = this.lines;
+        top = Math.min(top, Math.min(functions.length, lines.length) - 1);
+
+        // A frame being entered may not be visible yet, the sample ends below it.
+        for (int i = 1; i <= top; i++) {
+            if (functions[i] == null) {
+                top = i - 1;
+                break;
+            }
+        }
+
+        samples++;
+        StringBuilder stack = new StringBuilder();
+        for (int i = 0; i <= top; i++) {
+            Stmt.Function function = functions[i];
+            if (i > 0) stack.append(';');
+            stack.append(i == 0 ? SCRIPT : function.name.lexeme);
+            if (i < top) stack.append(':').append(lines[i]);
+
+            int[] count = counts.get(i == 0 ? null : function);
+            if (count == null) {
+                count = new int[3];
+                counts.put(i == 0 ? null : function, count);
+            }
+
+            // Recursion puts a function on the stack many times, total counts it once.
+            if (count[2] != samples) {
+                count[1]++;
+                count[2] = samples;
+            }
+            if (i == top) count[0]++;
+        }
+
+        String key = stack.toString();
+        Integer count = stacks.get(key);
+        stacks.put(key, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Write the stacks in collapsed format.
+     */
+    synchronized void write(Path file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Integer> stack : stacks.entrySet()) {
+            lines.add(stack.getKey() + " " + stack.getValue());
+        }
+
+        Collections.sort(lines);
+        Files.write(file, lines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Print the share of samples each function was running (self) and
+     * was on the stack (total), hottest first.
+     */
+    synchronized void report(PrintStream out) {
+        List<Map.Entry<Stmt.Function, int[]>> entries = new ArrayList<>(counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Stmt.Function, int[]>>() {
+            @Override
+            public int compare(Map.Entry<Stmt.Function, int[]> a, Map.Entry<Stmt.Function, int[]> b) {
+                if (a.getValue()[0] != b.getValue()[0]) return b.getValue()[0] - a.getValue()[0];
+                return b.getValue()[1] - a.getValue()[1];
+            }
+        });
+
+        out.println("profile: " + samples + " samples, one every " + PERIOD / 1_000_000 + " ms");
+        out.printf("  %7s %7s  %s%n", "self", "total", "function");
+        for (Map.Entry<Stmt.Function, int[]> entry : entries) {
+            Stmt.Function function = entry.getKey();
+            String name = function == null ? SCRIPT : function.name.lexeme + " (line " + function.name.line + ")";
+            out.printf("  %6.1f%% %6.1f%%  %s%n",
+                percent(entry.getValue()[0]), percent(entry.getValue()[1]), name);
+        }
+    }
+
+    private double percent(int count) {
+        return samples == 0 ? 0 : 100.0 * count / samples;
+    }
+}
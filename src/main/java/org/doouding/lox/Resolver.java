@@ -6,27 +6,21 @@ import java.util.Map;
 import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
     private final Stack<Map<String, VariableMeta>> scopes = new Stack<>();
     private FunctionType currentFunctionType = FunctionType.NONE;
     private ClassType currentClass = ClassType.NONE;
     private Stmt.Class currentClassStmt = null;
     private boolean insideLoop = false;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
-    }
-
     private enum ClassType {
         NONE,
         CLASS
     }
 
-    private enum FunctionType {
+    enum FunctionType {
         NONE,
         FUNCTION,
         METHOD,
-        INITIALIZER,
         STATIC_METHOD
     }
 
@@ -94,23 +88,22 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         declare(stmt.name);
         define(stmt.name);
 
-        beginScope();
-        scopes.peek().put("this", new VariableMeta(new Token(TokenType.THIS, "this", null, 0), false, true));
-
+        // Instance methods keep "this" in slot 0 of their own frame, so a call
+        // only needs that one Enviroment. Static methods have no "this".
+        // "init" is resolved like any other method, so it may return a
+        // value. Calling it still gives the instance.
         for (Stmt.Function method : stmt.methods) {
-            FunctionType declaration = method.name.lexeme == "init"
-                ? FunctionType.INITIALIZER
-                : FunctionType.METHOD;
-            resolveFunction(method, declaration);
+            resolveFunction(method, FunctionType.METHOD);
         }
 
-        scopes.peek().remove("this");
+        for (Stmt.Function method : stmt.privateMethods) {
+            resolveFunction(method, FunctionType.METHOD);
+        }
 
         for (Stmt.Function method : stmt.staticMethods) {
             resolveFunction(method, FunctionType.STATIC_METHOD);
         }
 
-        endScope();
         currentClass = enclosingClass;
         currentClassStmt = enclosingClassStmt;
 
@@ -139,6 +132,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitBlockStmt(Stmt.Block stmt) {
         beginScope();
         resolve(stmt.statements);
+        stmt.locals = scopes.peek().size();
         endScope();
         return null;
     }
@@ -155,10 +149,6 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitSelfOpExpr(Expr.SelfOp expr) {
-        if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme).hasInitialized) {
-            Lox.error(expr.name, "Cannot read local variable in its own initializer.");
-        }
-
         resolveLocal(expr, expr.name, true);
         return null;
     }
@@ -213,9 +203,6 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         }
 
         if (stmt.value != null) {
-            if (currentFunctionType == FunctionType.INITIALIZER) {
-                Lox.error(stmt.keyword, "Cannot return from init function");
-            }
             resolve(stmt.value);
         }
 
@@ -270,24 +257,55 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        // Inline nodes are made by the Inliner from resolved code, only the
+        // original call is in scope terms of the source.
+        resolve(expr.call);
+        return null;
+    }
+
     @Override
     public Void visitUnaryExpr(Expr.Unary expr) {
         resolve(expr.right);
         return null;
     }
 
+    /**
+     * Resolve a lazily parsed function body in the class it was declared in.
+     */
+    void resolveBody(Stmt.Function function, FunctionType type, Stmt.Class klass) {
+        if (klass != null) {
+            currentClass = ClassType.CLASS;
+            currentClassStmt = klass;
+        }
+
+        resolveFunction(function, type);
+    }
+
     private void resolveFunction(Stmt.Function function, FunctionType type) {
+        // The body is not parsed yet, remember where it has to be resolved.
+        if (function.lazy != null) {
+            function.lazy.declaredIn(type, currentClassStmt);
+            return;
+        }
+
         FunctionType enclosingFunctionType = currentFunctionType;
         currentFunctionType = type;
 
         beginScope();
 
+        if (type == FunctionType.METHOD) {
+            scopes.peek().put("this", new VariableMeta(new Token(TokenType.THIS, "this", null, 0), false, true, 0));
+        }
+
         for (Token param: function.params) {
             declare(param);
             define(param);
         }
         resolve(function.body);
         currentFunctionType = enclosingFunctionType;
+        function.locals = scopes.peek().size();
 
         endScope();
     }
@@ -307,12 +325,32 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                 if(scopes.get(i).get(name.lexeme).hasInitialized == false) {
                     Lox.error(name.line, "Cannot read local variable in its own initializer.");
                 }
-                interpreter.resolve(expr, scopes.size() - 1 - i);
+                bindLocal(expr, scopes.size() - 1 - i, scopes.get(i).get(name.lexeme).slot);
                 return;
             }
         }
     }
 
+    /**
+     * Record the resolved location on the expression node. Expressions left
+     * untouched keep depth -1 and are looked up in globals.
+     */
+    private void bindLocal(Expr expr, int depth, int slot) {
+        if (expr instanceof Expr.Variable) {
+            ((Expr.Variable)expr).depth = depth;
+            ((Expr.Variable)expr).slot = slot;
+        } else if (expr instanceof Expr.Assign) {
+            ((Expr.Assign)expr).depth = depth;
+            ((Expr.Assign)expr).slot = slot;
+        } else if (expr instanceof Expr.SelfOp) {
+            ((Expr.SelfOp)expr).depth = depth;
+            ((Expr.SelfOp)expr).slot = slot;
+        } else if (expr instanceof Expr.This) {
+            ((Expr.This)expr).depth = depth;
+            ((Expr.This)expr).slot = slot;
+        }
+    }
+
     private void declare(Token name) {
         // We gonna skip the declare when the scopes are empty
         // 'case that means we are in the global scope
@@ -324,7 +362,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Lox.error(name, "Already variable with this name in this scope.");
         }
 
-        scope.put(name.lexeme, new VariableMeta(name, false, false));
+        scope.put(name.lexeme, new VariableMeta(name, false, false, scope.size()));
     }
 
     private void define(Token name) {
@@ -0,0 +1,97 @@
+package org.doouding.lox;
+
+/**
+ * A Lox string built by concatenation.
+ *
+ * Short results of + stay plain Strings. Longer ones are a Rope: a view of
+ * the first length chars of a StringBuilder. Appending to the newest view
+ * of a builder appends in place and returns a new view, so building a
+ * string in a loop costs amortized O(1) per step instead of copying the
+ * whole string every time. Older views still see their own prefix.
+ *
+ * A Rope is flattened into a String the first time its text is needed
+ * (print, ==, stringify) and keeps it. Lox code can't tell a Rope from a
+ * String: every string check accepts both through isString.
+ */
+final class Rope implements CharSequence {
+    /**
+     * 结果短于这个长度时直接拼成 String
+     */
+    private static final int MIN_LENGTH = 64;
+
+    private final StringBuilder builder;
+    private final int length;
+    private String flat;
+
+    private Rope(StringBuilder builder, int length) {
+        this.builder = builder;
+        this.length = length;
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    /**
+     * Concatenate two Lox strings.
+     * @param left a String or a Rope
+     * @param right a String or a Rope
+     */
+    static Object concat(Object left, Object right) {
+        CharSequence l = (CharSequence)left;
+        CharSequence r = (CharSequence)right;
+        int length = l.length() + r.length();
+
+        if (length < MIN_LENGTH) return l.toString() + r.toString();
+
+        if (l instanceof Rope) {
+            Rope rope = (Rope)l;
+            if (rope.flat == null && rope.builder.length() == rope.length) {
+                append(rope.builder, r);
+                return new Rope(rope.builder, length);
+            }
+        }
+
+        StringBuilder builder = new StringBuilder(length * 2);
+        append(builder, l);
+        append(builder, r);
+        return new Rope(builder, length);
+    }
+
+    private static void append(StringBuilder builder, CharSequence value) {
+        if (value instanceof Rope) {
+            Rope rope = (Rope)value;
+            if (rope.flat != null) {
+                builder.append(rope.flat);
+            } else {
+                builder.append(rope.builder, 0, rope.length);
+            }
+        } else {
+            builder.append((String)value);
+        }
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return flat != null ? flat.charAt(index) : builder.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) {
+            flat = builder.substring(0, length);
+        }
+
+        return flat;
+    }
+}
@@ -0,0 +1,86 @@
+package org.doouding.lox;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counters of what a run of the tree or closure engine did, printed by
+ * --stats.
+ *
+ * Every counting site is guarded by ENABLED, a constant read from the
+ * lox.stats system property when the class is first used. With the
+ * property unset the JIT drops the guarded code, so the counters cost
+ * nothing unless asked for. Lox sets the property for --stats before
+ * anything is counted, tools can run with -Dlox.stats=true and read
+ * Lox.runtimeStats().
+ *
+ * The interpreter runs on one thread, the counters are plain fields.
+ */
+final class RuntimeStats {
+    static final boolean ENABLED = Boolean.getBoolean("lox.stats");
+
+    /**
+     * 创建的局部 Enviroment (函数调用和块的栈帧)
+     */
+    static long environments;
+
+    /**
+     * Lox 函数调用次数, 包括尾调用
+     */
+    static long calls;
+
+    /**
+     * LoxFunction.bind 创建的绑定方法
+     */
+    static long binds;
+    static long proxies;
+
+    /**
+     * 执行的 return 和 break / continue 语句
+     */
+    static long returns;
+    static long terminates;
+
+    static long localReads;
+    static long globalReads;
+
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+    private static final long[] operators = new long[TOKEN_TYPES.length];
+
+    private RuntimeStats() {}
+
+    static void operator(TokenType type) {
+        operators[type.ordinal()]++;
+    }
+
+    /**
+     * @return every counter by name, operators as "operator TYPE"
+     */
+    static Map<String, Long> counters() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("environments", environments);
+        counters.put("calls", calls);
+        counters.put("binds", binds);
+        counters.put("instance proxies", proxies);
+        counters.put("returns", returns);
+        counters.put("breaks and continues", terminates);
+        counters.put("local reads", localReads);
+        counters.put("global reads", globalReads);
+
+        for (TokenType type : TOKEN_TYPES) {
+            if (operators[type.ordinal()] != 0) {
+                counters.put("operator " + type, operators[type.ordinal()]);
+            }
+        }
+
+        return counters;
+    }
+
+    static void report(PrintStream out) {
+        out.println("runtime counters:");
+        for (Map.Entry<String, Long> counter : counters().entrySet()) {
+            out.println("  " + counter.getKey() + ": " + counter.getValue());
+        }
+    }
+}
@@ -1,13 +1,30 @@
 package org.doouding.lox;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
+/**
+ * Turns source text into tokens, one at a time as the Parser asks for them.
+ *
+ * A script read from a file is scanned straight from the Reader: only the
+ * chars from the start of the current token on are kept in the buffer, so
+ * neither the whole source nor the whole token list is ever in memory.
+ */
 public class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * null when scanning a String, which is in the buffer from the start
+     */
+    private final Reader reader;
+    private char[] buffer;
+    private int limit;
+
+    private Token token;
     private int start = 0;
     private int current = 0;
     private int line = 1;
@@ -39,12 +56,63 @@ public class Scanner {
     }
 
     Scanner(String source) {
-        this.source = source;
+        this.reader = null;
+        this.buffer = source.toCharArray();
+        this.limit = buffer.length;
+    }
+
+    /**
+     * Scan the text of a Reader. It is read as tokens are asked for and is
+     * not closed.
+     * @throws UncheckedIOException from nextToken if reading fails
+     */
+    Scanner(Reader reader) {
+        this.reader = reader;
+        this.buffer = new char[BUFFER_SIZE];
+        this.limit = 0;
+    }
+
+    /**
+     * Make sure the char ahead positions after current is in the buffer,
+     * reading more from the Reader if needed. Chars before start are
+     * dropped to make room, positions are relative to the buffer.
+     * @return false if the source ends before it
+     */
+    private boolean fill(int ahead) {
+        while (current + ahead >= limit) {
+            if (reader == null) return false;
+
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, limit - start);
+                limit -= start;
+                current -= start;
+                start = 0;
+            }
+            if (limit == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+
+            int read;
+            try {
+                read = reader.read(buffer, limit, buffer.length - limit);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            if (read == -1) return false;
+            limit += read;
+        }
+
+        return true;
+    }
+
+    private String text(int from, int to) {
+        return new String(buffer, from, to - from);
     }
 
     private char advance() {
         current++;
-        return source.charAt(current - 1);
+        return buffer[current - 1];
     }
 
     private void addToken(TokenType type) {
@@ -52,13 +120,13 @@ public class Scanner {
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        String text = text(start, current);
+        token = new Token(type, text, literal, line);
     }
 
     private boolean match(char expected) {
         if(isAtEnd()) return false;
-        if(source.charAt(current) != expected) return false;
+        if(buffer[current] != expected) return false;
     
         current++;
         return true;
@@ -66,12 +134,12 @@ public class Scanner {
 
     private char peek() {
         if(isAtEnd()) return '\0';
-        return source.charAt(current);
+        return buffer[current];
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        if (!fill(1)) return '\0';
+        return buffer[current + 1];
     }
 
     private void scanToken() {
@@ -144,6 +212,8 @@ public class Scanner {
             if(peek() == '\n') line++;
 
             advance();
+            // The text of a comment is not needed, let the buffer drop it.
+            start = current;
         }
 
         if(isAtEnd()) {
@@ -159,16 +229,25 @@ public class Scanner {
     }
 
     private void singlelineComment() {
-        while(peek() != '\n' && !isAtEnd()) advance();
+        while(peek() != '\n' && !isAtEnd()) {
+            advance();
+            start = current;
+        }
     }
 
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        String text = source.substring(start, current);
+        String text = text(start, current);
         TokenType type = keywords.get(text);
 
-        if(type == null) type = TokenType.IDENTIFIER;
+        if(type == null) {
+            // Identifiers share the name string of their Symbol.
+            Symbol symbol = Symbol.intern(text);
+            token = new Token(TokenType.IDENTIFIER, symbol.name, null, line, symbol);
+            return;
+        }
+
         addToken(type);
     }
 
@@ -196,7 +275,7 @@ public class Scanner {
         }
 
         addToken(TokenType.NUMBER,
-            Double.parseDouble(source.substring(start, current)));
+            Double.parseDouble(text(start, current)));
     }
 
     private void string() {
@@ -212,21 +291,28 @@ public class Scanner {
 
         advance();
 
-        String value = source.substring(start + 1, current - 1);
+        String value = text(start + 1, current - 1);
         addToken(TokenType.STRING, value);
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return !fill(0);
     }
 
-    List<Token> scanTokens() {
-        while(!isAtEnd()) {
+    /**
+     * Scan the next token, skipping whitespace and comments.
+     * @return EOF once the source is used up, and on every call after that
+     */
+    Token nextToken() {
+        token = null;
+
+        while (token == null) {
             start = current;
+            if (isAtEnd()) return new Token(TokenType.EOF, "", null, line);
+
             scanToken();
         }
 
-        tokens.add(new Token(TokenType.EOF, "", null, line));
-        return tokens;
+        return token;
     }
 }
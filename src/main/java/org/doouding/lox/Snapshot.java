@@ -0,0 +1,397 @@
+package org.doouding.lox;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Heap snapshot of the globals, written with --save-snapshot=<file> and
+ * loaded with --snapshot=<file>.
+ *
+ * After a script (a prelude of helpers) has run, every global it defined
+ * is written with everything reachable from it: functions with their
+ * resolved and optimized declarations and their closures, the Enviroment
+ * chains of those closures, classes, instances and bound methods. Loading
+ * the file defines the same globals in a fresh Interpreter, so a later run
+ * starts where the prelude ended without scanning, parsing, resolving or
+ * executing it again.
+ *
+ * Objects are written once and referred to by id afterwards, so sharing
+ * and cycles survive. Closures and instances are written in two steps,
+ * first the object and later its contents, which are the only places a
+ * cycle can go through: when a reference to an object is read the object
+ * already exists.
+ *
+ * Natives are written by the name a fresh Interpreter defines them under
+ * and looked up again when the file is loaded. Functions of the jvm engine
+ * keep their variables in generated classes and can't be written. The
+ * file format builds on AstCache's, FORMAT_VERSION has to change with it.
+ * The header also has AstCache's build fingerprint: the declarations in
+ * a snapshot are only valid for the build that resolved them, so loading
+ * a file written by another build fails.
+ */
+class Snapshot {
+    private static final int MAGIC = 0x4c4f5853;
+    private static final int FORMAT_VERSION = 3;
+
+    /**
+     * Value tags, after AstCache's literal tags. Other values are written as literals
+     */
+    private static final int REFERENCE = 16;
+    private static final int FUNCTION = 17;
+    private static final int CLASS = 18;
+    private static final int INSTANCE = 19;
+    private static final int PROXY = 20;
+    private static final int ENVIROMENT = 21;
+    private static final int NATIVE = 22;
+
+    /**
+     * Write the globals defined in the Interpreter.
+     * @throws IOException if the file can't be written or a value can't be saved
+     */
+    static void save(Path file, Interpreter interpreter) throws IOException {
+        byte[] bytes = new Writer(interpreter.globals).write();
+
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, "snapshot", ".tmp");
+        Files.write(temporary, bytes);
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Define the globals of a snapshot in the Interpreter.
+     * @param compile whether functions get StmtNode bodies for the closure engine
+     */
+    static void load(Path file, Interpreter interpreter, boolean compile) throws IOException {
+        NodeCompiler compiler = compile ? new NodeCompiler(interpreter) : null;
+        new Reader(Files.readAllBytes(file), interpreter.globals, compiler).read();
+    }
+
+    private static class Writer {
+        private final AstCache.Writer out = new AstCache.Writer();
+        private final Enviroment globals;
+
+        /**
+         * 已写出的对象的 id, 全局 Enviroment 是 0
+         */
+        private final Map<Object, Integer> ids = new IdentityHashMap<>();
+        private final Map<Stmt.Function, Integer> declarations = new IdentityHashMap<>();
+
+        /**
+         * 内容还没写出的 Enviroment 和实例
+         */
+        private final ArrayDeque<Object> pending = new ArrayDeque<>();
+
+        /**
+         * 原生函数在新的 Interpreter 中的名字
+         */
+        private final Map<Object, String> natives = new IdentityHashMap<>();
+
+        /**
+         * 正在写的全局变量, 用于错误信息
+         */
+        private String current;
+
+        Writer(Enviroment globals) {
+            this.globals = globals;
+            ids.put(globals, 0);
+
+            Enviroment fresh = new Interpreter().globals;
+            for (String name : fresh.globalNames()) {
+                Object value = globals.global(name).value;
+                if (isNative(value)) natives.put(value, name);
+            }
+        }
+
+        byte[] write() throws IOException {
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (String name : globals.globalNames()) {
+                Object value = globals.global(name).value;
+
+                // Every Interpreter defines its natives itself.
+                if (name.equals(natives.get(value))) continue;
+                values.put(name, value);
+            }
+
+            out.number(values.size());
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                current = entry.getKey();
+                out.string(current);
+                value(entry.getValue());
+            }
+
+            while (!pending.isEmpty()) {
+                contents(pending.removeFirst());
+            }
+
+            return out.finish(MAGIC, FORMAT_VERSION);
+        }
+
+        private static boolean isNative(Object value) {
+            return value instanceof LoxCallable && !(value instanceof LoxFunction) && !(value instanceof LoxClass);
+        }
+
+        private void value(Object value) throws IOException {
+            if (value == null || value instanceof Boolean || value instanceof Double || Rope.isString(value)) {
+                out.literal(value);
+                return;
+            }
+
+            Integer id = ids.get(value);
+            if (id != null) {
+                out.tag(REFERENCE);
+                out.number(id);
+                return;
+            }
+
+            if (natives.containsKey(value)) {
+                out.tag(NATIVE);
+                out.string(natives.get(value));
+                return;
+            }
+
+            if (value instanceof JvmFunction || isNative(value)) {
+                throw new IOException("Cannot save " + value + " reachable from global '" + current + "'.");
+            }
+
+            ids.put(value, ids.size());
+
+            if (value instanceof LoxFunction) {
+                function((LoxFunction)value);
+            } else if (value instanceof LoxClass) {
+                klass((LoxClass)value);
+            } else if (value instanceof LoxInstance) {
+                out.tag(INSTANCE);
+                value(((LoxInstance)value).klass);
+                pending.add(value);
+            } else if (value instanceof LoxInstanceProxy) {
+                LoxInstanceProxy proxy = (LoxInstanceProxy)value;
+                out.tag(PROXY);
+                value(proxy.instance);
+                out.literal(proxy.allowPrivate);
+            } else if (value instanceof Enviroment) {
+                Enviroment enviroment = (Enviroment)value;
+                out.tag(ENVIROMENT);
+                value(enviroment.enclosing);
+                out.number(enviroment.size());
+                pending.add(value);
+            } else {
+                throw new IOException("Cannot save " + value + " reachable from global '" + current + "'.");
+            }
+        }
+
+        private void function(LoxFunction function) throws IOException {
+            out.tag(FUNCTION);
+
+            Stmt.Function declaration = function.declaration;
+            Integer id = declarations.get(declaration);
+            if (id == null) {
+                // A body --lazy-parse skipped is parsed now, the file has no tokens.
+                if (declaration.lazy != null) LazyBody.complete(declaration);
+
+                declarations.put(declaration, declarations.size());
+                out.number(0);
+                out.stmt(declaration);
+            } else {
+                out.number(id + 1);
+            }
+
+            value(function.cloure);
+            out.literal(function.isInitializer);
+            value(function.instance);
+        }
+
+        private void klass(LoxClass klass) throws IOException {
+            out.tag(CLASS);
+            out.string(klass.name);
+            names(klass.fieldNames());
+            names(klass.privateFieldNames());
+            methods(klass.methods());
+            methods(klass.staticMethods());
+            methods(klass.privateMethods());
+        }
+
+        private void names(Symbol[] names) {
+            out.number(names.length);
+            for (Symbol name : names) out.string(name.name);
+        }
+
+        private void methods(Map<Symbol, LoxFunction> methods) throws IOException {
+            out.number(methods.size());
+            for (Map.Entry<Symbol, LoxFunction> method : methods.entrySet()) {
+                out.string(method.getKey().name);
+                value(method.getValue());
+            }
+        }
+
+        private void contents(Object value) throws IOException {
+            if (value instanceof LoxInstance) {
+                for (Object field : ((LoxInstance)value).values) value(field);
+            } else {
+                Enviroment enviroment = (Enviroment)value;
+                out.number(enviroment.count());
+                for (int slot = 0; slot < enviroment.count(); slot++) {
+                    value(enviroment.getAt(0, slot));
+                }
+            }
+        }
+    }
+
+    private static class Reader {
+        private final AstCache.Reader in;
+        private final Enviroment globals;
+        private final NodeCompiler compiler;
+
+        private final List<Object> objects = new ArrayList<>();
+        private final List<Stmt.Function> declarations = new ArrayList<>();
+        private final Map<Stmt.Function, StmtNode[]> bodies = new HashMap<>();
+        private final ArrayDeque<Object> pending = new ArrayDeque<>();
+
+        Reader(byte[] bytes, Enviroment globals, NodeCompiler compiler) {
+            this.in = new AstCache.Reader(bytes);
+            this.globals = globals;
+            this.compiler = compiler;
+            objects.add(globals);
+        }
+
+        void read() throws IOException {
+            in.header(MAGIC, FORMAT_VERSION);
+
+            int count = in.number();
+            for (int i = 0; i < count; i++) {
+                String name = in.string();
+                globals.define(name, value());
+            }
+
+            while (!pending.isEmpty()) {
+                contents(pending.removeFirst());
+            }
+        }
+
+        private Object value() throws IOException {
+            int tag = in.tag();
+            if (tag < REFERENCE) return in.literal(tag);
+
+            if (tag == REFERENCE) return objects.get(in.number());
+            if (tag == NATIVE) return globals.global(in.string()).value;
+
+            // The id is taken before the parts are read, as the Writer did.
+            int id = objects.size();
+            objects.add(null);
+
+            Object value;
+            switch (tag) {
+                case FUNCTION:
+                    value = function();
+                    break;
+                case CLASS:
+                    // Methods can refer to their class, it is registered before they are read.
+                    return klass(id);
+                case INSTANCE:
+                    value = new LoxInstance((LoxClass)value());
+                    pending.add(value);
+                    break;
+                case PROXY: {
+                    LoxInstance instance = (LoxInstance)value();
+                    value = in.literal(in.tag()) == Boolean.TRUE ? instance.self() : new LoxInstanceProxy(instance, false);
+                    break;
+                }
+                case ENVIROMENT:
+                    value = new Enviroment((Enviroment)value(), in.number());
+                    pending.add(value);
+                    break;
+                default:
+                    throw new IOException("Unknown value tag " + tag);
+            }
+
+            objects.set(id, value);
+            return value;
+        }
+
+        private LoxFunction function() throws IOException {
+            Stmt.Function declaration;
+            int id = in.number();
+            if (id == 0) {
+                declaration = (Stmt.Function)in.stmt();
+                declarations.add(declaration);
+            } else {
+                declaration = declarations.get(id - 1);
+            }
+
+            Enviroment closure = (Enviroment)value();
+            boolean isInitializer = in.literal(in.tag()) == Boolean.TRUE;
+            LoxInstanceProxy instance = (LoxInstanceProxy)value();
+
+            if (compiler == null) {
+                return new LoxFunction(declaration, closure, isInitializer, instance);
+            }
+
+            StmtNode[] body = bodies.get(declaration);
+            if (body == null) {
+                body = compiler.compileBody(declaration);
+                bodies.put(declaration, body);
+            }
+
+            LoxFunction function = new CompiledFunction(declaration, body, closure, isInitializer);
+            return instance == null ? function : function.bind(instance);
+        }
+
+        private LoxClass klass(int id) throws IOException {
+            String name = in.string();
+            Map<Symbol, LoxField> fields = fields();
+            Map<Symbol, LoxField> privateFields = fields();
+
+            Map<Symbol, LoxFunction> methods = new HashMap<>();
+            Map<Symbol, LoxFunction> staticMethods = new HashMap<>();
+            Map<Symbol, LoxFunction> privateMethods = new HashMap<>();
+            LoxClass klass = new LoxClass(name, methods, staticMethods, privateMethods, fields, privateFields);
+            objects.set(id, klass);
+
+            methods(methods);
+            methods(staticMethods);
+            methods(privateMethods);
+            return klass;
+        }
+
+        /**
+         * Fields in the order they were written, so they get the same offsets.
+         */
+        private Map<Symbol, LoxField> fields() throws IOException {
+            int count = in.number();
+            Map<Symbol, LoxField> fields = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                Symbol symbol = Symbol.intern(in.string());
+                fields.put(symbol, new LoxField(new Token(TokenType.IDENTIFIER, symbol.name, null, 0, symbol)));
+            }
+
+            return fields;
+        }
+
+        private void methods(Map<Symbol, LoxFunction> methods) throws IOException {
+            int count = in.number();
+            for (int i = 0; i < count; i++) {
+                Symbol name = Symbol.intern(in.string());
+                methods.put(name, (LoxFunction)value());
+            }
+        }
+
+        private void contents(Object value) throws IOException {
+            if (value instanceof LoxInstance) {
+                Object[] values = ((LoxInstance)value).values;
+                for (int i = 0; i < values.length; i++) values[i] = value();
+            } else {
+                Enviroment enviroment = (Enviroment)value;
+                int count = in.number();
+                for (int i = 0; i < count; i++) enviroment.define(value());
+            }
+        }
+    }
+}
@@ -27,6 +27,7 @@ abstract class Stmt {
     }
 
     final List<Stmt> statements;
+    int locals;
   }
   static class Expression extends Stmt {
     Expression(Expr expression) {
@@ -137,6 +138,8 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+    int locals;
+    LazyBody lazy;
   }
   static class Class extends Stmt {
     Class(Token name, List<Stmt.Function> methods, List<Stmt.Function> staticMethods, List<Stmt.Function> privateMethods, List<Expr.Variable> fields, List<Expr.Variable> privateFields) {
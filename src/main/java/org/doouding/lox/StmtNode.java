@@ -0,0 +1,307 @@
+package org.doouding.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Executable form of a Stmt produced by the NodeCompiler.
+ */
+abstract class StmtNode {
+    /**
+     * @return how the statement finished, a return leaves its value in the Interpreter
+     */
+    abstract Completion execute(Enviroment env);
+
+    /**
+     * Define a declared name either in globals or in the next local slot,
+     * depending on where the declaration was compiled.
+     */
+    static void define(Enviroment env, Enviroment globals, Token name, Object value) {
+        if (globals != null) {
+            globals.define(name.lexeme, value);
+        } else {
+            env.define(value);
+        }
+    }
+
+    static class Expression extends StmtNode implements ExprNode.Parent {
+        private ExprNode expression;
+
+        Expression(ExprNode expression) {
+            this.expression = ExprNode.adopt(this, expression);
+        }
+
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (expression != child) return false;
+            expression = node;
+            return true;
+        }
+
+        @Override
+        Completion execute(Enviroment env) {
+            expression.evaluate(env);
+            return Completion.NORMAL;
+        }
+    }
+
+    static class Print extends StmtNode implements ExprNode.Parent {
+        private ExprNode expression;
+
+        Print(ExprNode expression) {
+            this.expression = ExprNode.adopt(this, expression);
+        }
+
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (expression != child) return false;
+            expression = node;
+            return true;
+        }
+
+        @Override
+        Completion execute(Enviroment env) {
+            System.out.println(Interpreter.stringify(expression.evaluate(env)));
+            return Completion.NORMAL;
+        }
+    }
+
+    static class Var extends StmtNode implements ExprNode.Parent {
+        private final Enviroment globals;
+        private final Token name;
+        private ExprNode initializer;
+
+        /**
+         * @param globals the global Enviroment for top-level declarations, null for locals
+         */
+        Var(Enviroment globals, Token name, ExprNode initializer) {
+            this.globals = globals;
+            this.name = name;
+            this.initializer = ExprNode.adopt(this, initializer);
+        }
+
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (initializer != child) return false;
+            initializer = node;
+            return true;
+        }
+
+        @Override
+        Completion execute(Enviroment env) {
+            Object value = initializer == null ? null : initializer.evaluate(env);
+            define(env, globals, name, value);
+            return Completion.NORMAL;
+        }
+    }
+
+    static class Block extends StmtNode {
+        private final StmtNode[] statements;
+        private final int locals;
+
+        Block(StmtNode[] statements, int locals) {
+            this.statements = statements;
+            this.locals = locals;
+        }
+
+        @Override
+        Completion execute(Enviroment env) {
+            Enviroment inner = new Enviroment(env, locals);
+
+            for (StmtNode statement : statements) {
+                Completion completion = statement.execute(inner);
+                if (completion != Completion.NORMAL) return completion;
+            }
+
+            return Completion.NORMAL;
+        }
+    }
+
+    static class If extends StmtNode implements ExprNode.Parent {
+        private ExprNode condition;
+        private final StmtNode thenBranch;
+        private final StmtNode elseBranch;
+
+        If(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) {
+            this.condition = ExprNode.adopt(this, condition);
+            this.thenBranch = thenBranch;
+            this.elseBranch = elseBranch;
+        }
+
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (condition != child) return false;
+            condition = node;
+            return true;
+        }
+
+        @Override
+        Completion execute(Enviroment env) {
+            if (Interpreter.isTruthy(condition.evaluate(env))) {
+                return thenBranch.execute(env);
+            } else if (elseBranch != null) {
+                return elseBranch.execute(env);
+            }
+
+            return Completion.NORMAL;
+        }
+    }
+
+    static class While extends StmtNode implements ExprNode.Parent {
+        private ExprNode condition;
+        private final StmtNode body;
+
+        While(ExprNode condition, StmtNode body) {
+            this.condition = ExprNode.adopt(this, condition);
+            this.body = body;
+        }
+
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (condition != child) return false;
+            condition = node;
+            return true;
+        }
+
+        @Override
+        Completion execute(Enviroment env) {
+            while (Interpreter.isTruthy(condition.evaluate(env))) {
+                Completion completion = body.execute(env);
+
+                if (completion == Completion.BREAK) {
+                    break;
+                } else if (completion == Completion.RETURN) {
+                    return completion;
+                }
+            }
+
+            return Completion.NORMAL;
+        }
+    }
+
+    static class Break extends StmtNode {
+        @Override
+        Completion execute(Enviroment env) {
+            if (RuntimeStats.ENABLED) RuntimeStats.terminates++;
+            return Completion.BREAK;
+        }
+    }
+
+    static class Continue extends StmtNode {
+        @Override
+        Completion execute(Enviroment env) {
+            if (RuntimeStats.ENABLED) RuntimeStats.terminates++;
+            return Completion.CONTINUE;
+        }
+    }
+
+    static class Return extends StmtNode implements ExprNode.Parent {
+        private final Interpreter interpreter;
+        private ExprNode value;
+
+        /**
+         * the returned call when the value is one, it runs as a tail call
+         */
+        private final ExprNode.CallNode call;
+
+        Return(Interpreter interpreter, ExprNode value) {
+            this.interpreter = interpreter;
+            this.value = ExprNode.adopt(this, value);
+            this.call = value instanceof ExprNode.CallNode ? (ExprNode.CallNode)value : null;
+        }
+
+        /**
+         * Calls don't replace themselves, the tail call stays the value.
+         */
+        @Override
+        public boolean replace(ExprNode child, ExprNode node) {
+            if (value != child) return false;
+            value = node;
+            return true;
+        }
+
+        @Override
+        Completion execute(Enviroment env) {
+            if (RuntimeStats.ENABLED) RuntimeStats.returns++;
+
+            if (call != null) {
+                interpreter.setReturnValue(call.tailCall(env));
+            } else {
+                interpreter.setReturnValue(value == null ? null : value.evaluate(env));
+            }
+
+            return Completion.RETURN;
+        }
+    }
+
+    static class Function extends StmtNode {
+        private final Enviroment globals;
+        private final Stmt.Function declaration;
+        private final StmtNode[] body;
+
+        Function(Enviroment globals, Stmt.Function declaration, StmtNode[] body) {
+            this.globals = globals;
+            this.declaration = declaration;
+            this.body = body;
+        }
+
+        @Override
+        Completion execute(Enviroment env) {
+            define(env, globals, declaration.name, new CompiledFunction(declaration, body, env, false));
+            return Completion.NORMAL;
+        }
+    }
+
+    static class Class extends StmtNode {
+        private final Enviroment globals;
+        private final Stmt.Class declaration;
+        private final Map<Stmt.Function, StmtNode[]> bodies;
+
+        Class(Enviroment globals, Stmt.Class declaration, Map<Stmt.Function, StmtNode[]> bodies) {
+            this.globals = globals;
+            this.declaration = declaration;
+            this.bodies = bodies;
+        }
+
+        @Override
+        Completion execute(Enviroment env) {
+            Map<Symbol, LoxFunction> methods = new HashMap<>();
+            Map<Symbol, LoxFunction> staticMethods = new HashMap<>();
+            Map<Symbol, LoxFunction> privateMethods = new HashMap<>();
+            Map<Symbol, LoxField> fields = new HashMap<>();
+            Map<Symbol, LoxField> privateFields = new HashMap<>();
+
+            for (Stmt.Function method : declaration.methods) {
+                boolean isInitializer = method.name.symbol == Symbol.INIT;
+                methods.put(method.name.symbol, new CompiledFunction(method, bodies.get(method), env, isInitializer));
+            }
+
+            for (Stmt.Function method : declaration.staticMethods) {
+                staticMethods.put(method.name.symbol, new CompiledFunction(method, bodies.get(method), env, false));
+            }
+
+            for (Stmt.Function method : declaration.privateMethods) {
+                privateMethods.put(method.name.symbol, new CompiledFunction(method, bodies.get(method), env, false));
+            }
+
+            for (Expr.Variable field : declaration.fields) {
+                fields.put(field.name.symbol, new LoxField(field.name));
+            }
+
+            for (Expr.Variable field : declaration.privateFields) {
+                privateFields.put(field.name.symbol, new LoxField(field.name));
+            }
+
+            LoxClass klass = new LoxClass(
+                declaration.name.lexeme,
+                methods,
+                staticMethods,
+                privateMethods,
+                fields,
+                privateFields
+            );
+            define(env, globals, declaration.name, klass);
+            return Completion.NORMAL;
+        }
+    }
+}
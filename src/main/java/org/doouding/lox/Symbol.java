@@ -0,0 +1,50 @@
+package org.doouding.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An interned identifier. The Scanner gives every identifier token the one
+ * Symbol of its name, so tables keyed by Symbol (class members) compare
+ * names by identity and hash them with an id instead of the characters.
+ */
+final class Symbol {
+    /**
+     * 所有已经出现过的名字
+     */
+    private static final Map<String, Symbol> table = new HashMap<>();
+
+    static final Symbol INIT = intern("init");
+
+    final String name;
+    final int id;
+
+    private Symbol(String name, int id) {
+        this.name = name;
+        this.id = id;
+    }
+
+    /**
+     * @return the Symbol of a name, the same object every time
+     */
+    static synchronized Symbol intern(String name) {
+        Symbol symbol = table.get(name);
+
+        if (symbol == null) {
+            symbol = new Symbol(name, table.size());
+            table.put(name, symbol);
+        }
+
+        return symbol;
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -1,10 +0,0 @@
-package org.doouding.lox;
-
-public class Terminate extends RuntimeException {
-    final Token token;
-
-    Terminate(Token token) {
-        super(null, null, false, false);
-        this.token = token;
-    }
-}
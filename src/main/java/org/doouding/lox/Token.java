@@ -27,11 +27,21 @@ public class Token {
     final Object literal;
     final int line;
 
+    /**
+     * 标识符的 Symbol, 其它 token 为 null
+     */
+    final Symbol symbol;
+
     Token(TokenType type, String lexeme, Object literal, int line) {
+        this(type, lexeme, literal, line, null);
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int line, Symbol symbol) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.symbol = symbol;
     }
 
     public String toString() {
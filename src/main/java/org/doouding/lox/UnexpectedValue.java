@@ -0,0 +1,15 @@
+package org.doouding.lox;
+
+/**
+ * Thrown when an expression evaluated for an unboxed number produced
+ * something else, carrying the value so the caller can carry on with the
+ * generic path without evaluating the expression again.
+ */
+class UnexpectedValue extends RuntimeException {
+    final Object value;
+
+    UnexpectedValue(Object value) {
+        super(null, null, false, false);
+        this.value = value;
+    }
+}
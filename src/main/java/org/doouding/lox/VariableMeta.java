@@ -4,10 +4,12 @@ public class VariableMeta {
     public boolean hasAccessed;
     public boolean hasInitialized;
     public Token name;
+    public int slot;
 
-    VariableMeta(Token name, boolean hasAccessed, boolean hasInitialized) {
+    VariableMeta(Token name, boolean hasAccessed, boolean hasInitialized, int slot) {
         this.name = name;
         this.hasAccessed = hasAccessed;
         this.hasInitialized = hasInitialized;
+        this.slot = slot;
     }
 }
@@ -0,0 +1,716 @@
+package org.doouding.lox;
+
+import java.util.Arrays;
+
+/**
+ * Stack based virtual machine running the bytecode produced by VmCompiler.
+ */
+class Vm {
+    /**
+     * Frames allowed for each MB of --stack-size, the default 256 MB gives 65536
+     */
+    static final int FRAMES_PER_MB = 256;
+
+    /**
+     * Functions implemented in Java
+     */
+    abstract static class Native {
+        final int arity;
+
+        Native(int arity) {
+            this.arity = arity;
+        }
+
+        abstract Object call(Object[] arguments);
+
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    }
+
+    private static class CallFrame {
+        VmClosure closure;
+        int ip;
+
+        /**
+         * Stack slot of the callee, locals start right after it
+         */
+        int base;
+
+        /**
+         * Value returned instead of the initializer's result when this frame
+         * runs "init" for a class call
+         */
+        Object constructResult;
+    }
+
+    private final Enviroment globals = new Enviroment();
+
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+
+    /**
+     * 调用深度上限, 由 Lox 按 --stack-size 设置
+     */
+    int framesMax = 256 * FRAMES_PER_MB;
+
+    private VmUpvalue openUpvalues = null;
+
+    Vm() {
+        globals.define("clock", new Native(0) {
+            @Override
+            Object call(Object[] arguments) {
+                return (double)System.currentTimeMillis() / 1000.0;
+            }
+        });
+    }
+
+    void interprete(VmFunction script) {
+        try {
+            VmClosure closure = new VmClosure(script);
+            stack[sp++] = closure;
+            call(closure, 0, null);
+            run();
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        } finally {
+            // run() keeps the stack pointer to itself, an error leaves this.sp behind.
+            Arrays.fill(stack, null);
+            sp = 0;
+            frameCount = 0;
+            openUpvalues = null;
+        }
+    }
+
+    /**
+     * Double the stack, run() calls it when a push would not fit.
+     */
+    private Object[] grow() {
+        stack = Arrays.copyOf(stack, stack.length * 2);
+        return stack;
+    }
+
+    /**
+     * The stack and its pointer are kept in locals while instructions run
+     * and written back to the fields only around the calls that use them
+     * (callValue, closeUpvalues). Operands are checked inline, the token of
+     * an instruction is only read to report an error.
+     */
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        Token[] tokens = frame.closure.function.chunk.tokens;
+        int ip = frame.ip;
+        int base = frame.base;
+        Object[] stack = this.stack;
+        int sp = this.sp;
+
+        for (;;) {
+            int start = ip;
+            byte instruction = code[ip++];
+
+            switch (instruction) {
+                case Chunk.OP_CONSTANT: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (sp == stack.length) stack = grow();
+                    stack[sp++] = constants[index];
+                    break;
+                }
+                case Chunk.OP_NIL:
+                    if (sp == stack.length) stack = grow();
+                    stack[sp++] = null;
+                    break;
+                case Chunk.OP_TRUE:
+                    if (sp == stack.length) stack = grow();
+                    stack[sp++] = Boolean.TRUE;
+                    break;
+                case Chunk.OP_FALSE:
+                    if (sp == stack.length) stack = grow();
+                    stack[sp++] = Boolean.FALSE;
+                    break;
+                case Chunk.OP_POP:
+                    stack[--sp] = null;
+                    break;
+                case Chunk.OP_DUP:
+                    if (sp == stack.length) stack = grow();
+                    stack[sp] = stack[sp - 1];
+                    sp++;
+                    break;
+                case Chunk.OP_GET_LOCAL: {
+                    int slot = code[ip++] & 0xff;
+                    if (sp == stack.length) stack = grow();
+                    stack[sp++] = stack[base + slot];
+                    break;
+                }
+                case Chunk.OP_SET_LOCAL: {
+                    int slot = code[ip++] & 0xff;
+                    stack[base + slot] = stack[sp - 1];
+                    break;
+                }
+                case Chunk.OP_GET_UPVALUE: {
+                    VmUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if (sp == stack.length) stack = grow();
+                    stack[sp++] = upvalue.slot != -1 ? stack[upvalue.slot] : upvalue.closed;
+                    break;
+                }
+                case Chunk.OP_SET_UPVALUE: {
+                    VmUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if (upvalue.slot != -1) {
+                        stack[upvalue.slot] = stack[sp - 1];
+                    } else {
+                        upvalue.closed = stack[sp - 1];
+                    }
+                    break;
+                }
+                case Chunk.OP_GET_GLOBAL: {
+                    Enviroment.Global global = global(frame, ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    Object value = global.value;
+                    if (value == Enviroment.UNDEFINED) value = globals.get(global, tokens[start]);
+                    if (sp == stack.length) stack = grow();
+                    stack[sp++] = value;
+                    break;
+                }
+                case Chunk.OP_SET_GLOBAL: {
+                    Enviroment.Global global = global(frame, ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    if (global.value == Enviroment.UNDEFINED) globals.assign(global, tokens[start], null);
+                    global.value = stack[sp - 1];
+                    break;
+                }
+                case Chunk.OP_DEFINE_GLOBAL: {
+                    Enviroment.Global global = global(frame, ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    global.value = stack[--sp];
+                    stack[sp] = null;
+                    break;
+                }
+                case Chunk.OP_GET_PROPERTY: {
+                    VmPropertyCache cache = (VmPropertyCache)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    Object object = stack[sp - 1];
+
+                    if (object instanceof VmInstance) {
+                        stack[sp - 1] = cache.get((VmInstance)object, tokens[start]);
+                    } else if (object instanceof VmClass) {
+                        stack[sp - 1] = ((VmClass)object).getStatic(tokens[start]);
+                    } else {
+                        throw new RuntimeError(tokens[start], "Only instances have properties.");
+                    }
+                    break;
+                }
+                case Chunk.OP_SET_PROPERTY: {
+                    VmPropertyCache cache = (VmPropertyCache)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    Object value = stack[--sp];
+                    Object object = stack[sp - 1];
+
+                    if (!(object instanceof VmInstance)) {
+                        throw new RuntimeError(tokens[start], "Only instances have fields");
+                    }
+
+                    cache.set((VmInstance)object, tokens[start], value);
+                    stack[sp] = null;
+                    stack[sp - 1] = null;
+                    break;
+                }
+                case Chunk.OP_EQUAL: {
+                    Object b = stack[--sp];
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case Chunk.OP_NOT_EQUAL: {
+                    Object b = stack[--sp];
+                    stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case Chunk.OP_GREATER: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) Interpreter.checkNumberOperands(tokens[start], a, b);
+                    stack[sp - 1] = (double)a > (double)b;
+                    break;
+                }
+                case Chunk.OP_GREATER_EQUAL: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) Interpreter.checkNumberOperands(tokens[start], a, b);
+                    stack[sp - 1] = (double)a >= (double)b;
+                    break;
+                }
+                case Chunk.OP_LESS: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) Interpreter.checkNumberOperands(tokens[start], a, b);
+                    stack[sp - 1] = (double)a < (double)b;
+                    break;
+                }
+                case Chunk.OP_LESS_EQUAL: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) Interpreter.checkNumberOperands(tokens[start], a, b);
+                    stack[sp - 1] = (double)a <= (double)b;
+                    break;
+                }
+                case Chunk.OP_ADD: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+
+                    if (a instanceof Double && b instanceof Double) {
+                        stack[sp - 1] = (double)a + (double)b;
+                    } else if (Rope.isString(a) && Rope.isString(b)) {
+                        stack[sp - 1] = Rope.concat(a, b);
+                    } else {
+                        throw new RuntimeError(tokens[start], "Operands must be two numbers or two strings");
+                    }
+                    break;
+                }
+                case Chunk.OP_SUBTRACT: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) Interpreter.checkNumberOperands(tokens[start], a, b);
+                    stack[sp - 1] = (double)a - (double)b;
+                    break;
+                }
+                case Chunk.OP_ADD_CONSTANT: {
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double)) throw new RuntimeError(tokens[start], "Operands must be two numbers or two strings");
+                    stack[sp - 1] = (double)a + (double)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    break;
+                }
+                case Chunk.OP_SUBTRACT_CONSTANT: {
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double)) Interpreter.checkNumberOperands(tokens[start], a, 0.0);
+                    stack[sp - 1] = (double)a - (double)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    break;
+                }
+                case Chunk.OP_MULTIPLY: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) Interpreter.checkNumberOperands(tokens[start], a, b);
+                    stack[sp - 1] = (double)a * (double)b;
+                    break;
+                }
+                case Chunk.OP_DIVIDE: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) Interpreter.checkNumberOperands(tokens[start], a, b);
+                    stack[sp - 1] = (double)a / (double)b;
+                    break;
+                }
+                case Chunk.OP_NOT:
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                case Chunk.OP_NEGATE: {
+                    Object value = stack[sp - 1];
+                    if (!(value instanceof Double)) Interpreter.checkNumberOperand(tokens[start], value);
+                    stack[sp - 1] = -(double)value;
+                    break;
+                }
+                case Chunk.OP_INCREMENT: {
+                    Object value = stack[sp - 1];
+                    if (!(value instanceof Double)) Interpreter.checkNumberOperand(tokens[start], value);
+                    stack[sp - 1] = (double)value + 1;
+                    break;
+                }
+                case Chunk.OP_DECREMENT: {
+                    Object value = stack[sp - 1];
+                    if (!(value instanceof Double)) Interpreter.checkNumberOperand(tokens[start], value);
+                    stack[sp - 1] = (double)value - 1;
+                    break;
+                }
+                case Chunk.OP_PRINT:
+                    System.out.println(Interpreter.stringify(stack[--sp]));
+                    stack[sp] = null;
+                    break;
+                case Chunk.OP_JUMP: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2 + offset;
+                    break;
+                }
+                case Chunk.OP_JUMP_IF_FALSE: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (!Interpreter.isTruthy(stack[sp - 1])) ip += offset;
+                    break;
+                }
+                case Chunk.OP_POP_JUMP_IF_FALSE: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    Object condition = stack[--sp];
+                    stack[sp] = null;
+                    if (!Interpreter.isTruthy(condition)) ip += offset;
+                    break;
+                }
+                case Chunk.OP_JUMP_IF_NOT_GREATER: {
+                    Object b = stack[--sp];
+                    Object a = stack[--sp];
+                    stack[sp] = null;
+                    stack[sp + 1] = null;
+                    if (!(a instanceof Double && b instanceof Double)) Interpreter.checkNumberOperands(tokens[start], a, b);
+                    ip += (double)a > (double)b ? 2 : 2 + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    break;
+                }
+                case Chunk.OP_JUMP_IF_NOT_GREATER_EQUAL: {
+                    Object b = stack[--sp];
+                    Object a = stack[--sp];
+                    stack[sp] = null;
+                    stack[sp + 1] = null;
+                    if (!(a instanceof Double && b instanceof Double)) Interpreter.checkNumberOperands(tokens[start], a, b);
+                    ip += (double)a >= (double)b ? 2 : 2 + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    break;
+                }
+                case Chunk.OP_JUMP_IF_NOT_LESS: {
+                    Object b = stack[--sp];
+                    Object a = stack[--sp];
+                    stack[sp] = null;
+                    stack[sp + 1] = null;
+                    if (!(a instanceof Double && b instanceof Double)) Interpreter.checkNumberOperands(tokens[start], a, b);
+                    ip += (double)a < (double)b ? 2 : 2 + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    break;
+                }
+                case Chunk.OP_JUMP_IF_NOT_LESS_EQUAL: {
+                    Object b = stack[--sp];
+                    Object a = stack[--sp];
+                    stack[sp] = null;
+                    stack[sp + 1] = null;
+                    if (!(a instanceof Double && b instanceof Double)) Interpreter.checkNumberOperands(tokens[start], a, b);
+                    ip += (double)a <= (double)b ? 2 : 2 + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    break;
+                }
+                case Chunk.OP_LOOP: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2 - offset;
+                    break;
+                }
+                case Chunk.OP_CALL: {
+                    int count = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    this.sp = sp;
+
+                    Object callee = stack[sp - count - 1];
+                    boolean tail = code[ip] == Chunk.OP_RETURN && tailCall(callee, count, tokens[start]);
+                    if (tail || callValue(callee, count, tokens[start])) {
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        tokens = frame.closure.function.chunk.tokens;
+                        ip = frame.ip;
+                        base = frame.base;
+                    }
+
+                    stack = this.stack;
+                    sp = this.sp;
+                    break;
+                }
+                case Chunk.OP_INVOKE: {
+                    VmPropertyCache cache = (VmPropertyCache)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    int count = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    this.sp = sp;
+
+                    Object receiver = stack[sp - count - 1];
+                    VmClosure method = receiver instanceof VmInstance
+                        ? cache.method((VmInstance)receiver, tokens[start])
+                        : null;
+
+                    if (method != null) {
+                        stack[sp - count - 1] = ((VmInstance)receiver).self();
+                        if (code[ip] != Chunk.OP_RETURN || !tailCall(method, count, tokens[start + 3])) {
+                            call(method, count, tokens[start + 3]);
+                        }
+                    } else {
+                        // A field holding a callable, a static method or an error.
+                        Object callee;
+                        if (receiver instanceof VmInstance) {
+                            callee = cache.get((VmInstance)receiver, tokens[start]);
+                        } else if (receiver instanceof VmClass) {
+                            callee = ((VmClass)receiver).getStatic(tokens[start]);
+                        } else {
+                            throw new RuntimeError(tokens[start], "Only instances have properties.");
+                        }
+
+                        stack[sp - count - 1] = callee;
+                        boolean tail = code[ip] == Chunk.OP_RETURN && tailCall(callee, count, tokens[start + 3]);
+                        if (!tail && !callValue(callee, count, tokens[start + 3])) {
+                            stack = this.stack;
+                            sp = this.sp;
+                            break;
+                        }
+                    }
+
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    tokens = frame.closure.function.chunk.tokens;
+                    ip = frame.ip;
+                    base = frame.base;
+                    stack = this.stack;
+                    sp = this.sp;
+                    break;
+                }
+                case Chunk.OP_CLOSURE: {
+                    VmFunction function = (VmFunction)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+
+                    VmClosure closure = new VmClosure(function);
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = code[ip++] == 1;
+                        int index = code[ip++] & 0xff;
+
+                        closure.upvalues[i] = isLocal
+                            ? captureUpvalue(base + index)
+                            : frame.closure.upvalues[index];
+                    }
+
+                    if (sp == stack.length) stack = grow();
+                    stack[sp++] = closure;
+                    break;
+                }
+                case Chunk.OP_CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    stack[--sp] = null;
+                    break;
+                case Chunk.OP_RETURN: {
+                    Object result = stack[--sp];
+                    closeUpvalues(base);
+
+                    if (frame.constructResult != null) {
+                        result = frame.constructResult;
+                    }
+
+                    Arrays.fill(stack, base, sp + 1, null);
+                    sp = base;
+                    frame.closure = null;
+                    frameCount--;
+
+                    if (frameCount == 0) {
+                        this.sp = sp;
+                        return;
+                    }
+
+                    stack[sp++] = result;
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    tokens = frame.closure.function.chunk.tokens;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case Chunk.OP_CLASS: {
+                    String name = (String)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (sp == stack.length) stack = grow();
+                    stack[sp++] = new VmClass(name);
+                    break;
+                }
+                case Chunk.OP_FIELD: {
+                    String name = (String)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    byte kind = code[ip + 2];
+                    ip += 3;
+
+                    VmClass klass = (VmClass)stack[sp - 1];
+                    klass.addField(Symbol.intern(name), kind == Chunk.MEMBER_PRIVATE);
+                    break;
+                }
+                case Chunk.OP_METHOD: {
+                    String name = (String)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    byte kind = code[ip + 2];
+                    ip += 3;
+
+                    VmClosure method = (VmClosure)stack[--sp];
+                    stack[sp] = null;
+                    VmClass klass = (VmClass)stack[sp - 1];
+                    Symbol symbol = Symbol.intern(name);
+
+                    if (kind == Chunk.MEMBER_STATIC) {
+                        klass.staticMethods.put(symbol, method);
+                    } else if (kind == Chunk.MEMBER_PRIVATE) {
+                        klass.privateMethods.put(symbol, method);
+                    } else {
+                        klass.methods.put(symbol, method);
+                        if (symbol == Symbol.INIT) klass.initializer = method;
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + instruction);
+            }
+        }
+    }
+
+    /**
+     * The storage of the global named by a constant, cached in the chunk
+     * next to the constant the first time the instruction runs.
+     */
+    private Enviroment.Global global(CallFrame frame, int index) {
+        Chunk chunk = frame.closure.function.chunk;
+        if (chunk.globals == null) {
+            chunk.globals = new Enviroment.Global[chunk.constantCount()];
+        }
+
+        Enviroment.Global global = chunk.globals[index];
+        if (global == null) {
+            global = globals.global((String)chunk.constants[index]);
+            chunk.globals[index] = global;
+        }
+
+        return global;
+    }
+
+    /**
+     * Call the value sitting below its arguments on the stack.
+     * @return true when a new frame was pushed and the run loop has to switch to it
+     */
+    private boolean callValue(Object callee, int count, Token paren) {
+        if (callee instanceof VmClosure) {
+            call((VmClosure)callee, count, paren);
+            return true;
+        }
+
+        if (callee instanceof VmBoundMethod) {
+            VmBoundMethod bound = (VmBoundMethod)callee;
+            stack[sp - count - 1] = bound.receiver;
+            call(bound.method, count, paren);
+            return true;
+        }
+
+        if (callee instanceof VmClass) {
+            VmClass klass = (VmClass)callee;
+            checkArity(klass.arity(), count, paren);
+
+            VmInstance instance = new VmInstance(klass);
+            if (klass.initializer != null) {
+                stack[sp - count - 1] = instance.self();
+                call(klass.initializer, count, paren);
+                frames[frameCount - 1].constructResult = instance;
+                return true;
+            }
+
+            sp -= count;
+            stack[sp - 1] = instance;
+            return false;
+        }
+
+        if (callee instanceof Native) {
+            Native function = (Native)callee;
+            checkArity(function.arity, count, paren);
+
+            Object[] arguments = Arrays.copyOfRange(stack, sp - count, sp);
+            Object result = function.call(arguments);
+
+            Arrays.fill(stack, sp - count, sp, null);
+            sp -= count;
+            stack[sp - 1] = result;
+            return false;
+        }
+
+        throw new RuntimeError(paren, "Can only call functions and classes.");
+    }
+
+    /**
+     * Run a call that OP_RETURN follows in the frame of the returning
+     * function, so `return f(...)` doesn't take a frame as on the other
+     * engines. The callee and its arguments move down to the frame's base.
+     * @return false when the callee needs a frame of its own: it is not a
+     * function or bound method, or the frame runs "init" for a class call
+     */
+    private boolean tailCall(Object callee, int count, Token paren) {
+        CallFrame frame = frames[frameCount - 1];
+        if (frame.constructResult != null) return false;
+
+        VmClosure closure;
+        if (callee instanceof VmClosure) {
+            closure = (VmClosure)callee;
+        } else if (callee instanceof VmBoundMethod) {
+            closure = ((VmBoundMethod)callee).method;
+            stack[sp - count - 1] = ((VmBoundMethod)callee).receiver;
+        } else {
+            return false;
+        }
+
+        checkArity(closure.function.arity, count, paren);
+        closeUpvalues(frame.base);
+
+        int top = frame.base + count + 1;
+        System.arraycopy(stack, sp - count - 1, stack, frame.base, count + 1);
+        Arrays.fill(stack, top, sp, null);
+        sp = top;
+
+        frame.closure = closure;
+        frame.ip = 0;
+        return true;
+    }
+
+    private void call(VmClosure closure, int count, Token paren) {
+        checkArity(closure.function.arity, count, paren);
+
+        if (frameCount == framesMax) {
+            throw new RuntimeError(closure.function.name, "Stack overflow at call depth " + frameCount + ".");
+        }
+
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frames.length * 2);
+        }
+
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = sp - count - 1;
+        frame.constructResult = null;
+        frameCount++;
+    }
+
+    private static void checkArity(int arity, int count, Token paren) {
+        if (count != arity) {
+            throw new RuntimeError(paren, "Expected " +
+                arity + " arguments but got " +
+                count + ".");
+        }
+    }
+
+    private VmUpvalue captureUpvalue(int slot) {
+        VmUpvalue previous = null;
+        VmUpvalue upvalue = openUpvalues;
+
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+        VmUpvalue created = new VmUpvalue(slot, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            VmUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.slot = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.doouding.lox;
+
+/**
+ * A method read off an instance, remembering the receiver it was read from.
+ */
+class VmBoundMethod {
+    final VmInstance receiver;
+    final VmClosure method;
+
+    VmBoundMethod(VmInstance receiver, VmClosure method) {
+        this.receiver = receiver;
+        this.method = method;
+    }
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
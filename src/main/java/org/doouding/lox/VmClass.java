@@ -0,0 +1,70 @@
+package org.doouding.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runtime class of the Vm, filled in by OP_FIELD and OP_METHOD right
+ * after OP_CLASS creates it.
+ */
+class VmClass {
+    final String name;
+
+    /**
+     * 字段在实例 values 数组中的下标, 与 LoxClass 一样公有字段在前私有字段在后
+     */
+    private final Map<Symbol, Integer> fieldOffsets = new HashMap<>();
+    private final Map<Symbol, Integer> privateFieldOffsets = new HashMap<>();
+    int fieldCount = 0;
+
+    final Map<Symbol, VmClosure> methods = new HashMap<>();
+    final Map<Symbol, VmClosure> privateMethods = new HashMap<>();
+    final Map<Symbol, VmClosure> staticMethods = new HashMap<>();
+
+    VmClosure initializer = null;
+
+    VmClass(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Give a field the next offset. The compiler emits the public fields
+     * before the private ones.
+     */
+    void addField(Symbol name, boolean isPrivate) {
+        (isPrivate ? privateFieldOffsets : fieldOffsets).put(name, fieldCount++);
+    }
+
+    /**
+     * @return offset of a public field, -1 if there is none
+     */
+    int fieldOffset(Symbol name) {
+        Integer offset = fieldOffsets.get(name);
+        return offset == null ? -1 : offset;
+    }
+
+    /**
+     * @return offset of a private field, -1 if there is none
+     */
+    int privateFieldOffset(Symbol name) {
+        Integer offset = privateFieldOffsets.get(name);
+        return offset == null ? -1 : offset;
+    }
+
+    int arity() {
+        if (initializer == null) return 0;
+        return initializer.function.arity;
+    }
+
+    Object getStatic(Token name) {
+        VmClosure method = staticMethods.get(name.symbol);
+        if (method != null) return method;
+
+        throw new RuntimeError(name, "Cannot find static method " + name.lexeme);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,19 @@
+package org.doouding.lox;
+
+/**
+ * A VmFunction paired with the variables it captured.
+ */
+class VmClosure {
+    final VmFunction function;
+    final VmUpvalue[] upvalues;
+
+    VmClosure(VmFunction function) {
+        this.function = function;
+        this.upvalues = new VmUpvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
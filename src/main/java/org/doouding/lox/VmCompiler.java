@@ -0,0 +1,715 @@
+package org.doouding.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles a resolved Stmt/Expr tree into bytecode for the Vm.
+ *
+ * Locals live in stack slots of their function's frame, variables used by
+ * inner functions are captured as upvalues the way clox does it, and
+ * top-level declarations become globals looked up by name.
+ */
+class VmCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        METHOD,
+        INITIALIZER,
+        STATIC_METHOD
+    }
+
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private static class Loop {
+        final Loop enclosing;
+        final int start;
+        final int scopeDepth;
+        final List<Integer> breakJumps = new ArrayList<>();
+
+        Loop(Loop enclosing, int start, int scopeDepth) {
+            this.enclosing = enclosing;
+            this.start = start;
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    /**
+     * Compilation state of the function currently being compiled.
+     */
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VmFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        Loop loop = null;
+
+        FunctionState(FunctionState enclosing, VmFunction function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+
+            // Slot zero holds the receiver for methods and the callee otherwise.
+            boolean hasReceiver = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+            locals.add(new Local(hasReceiver ? "this" : "", 0));
+        }
+    }
+
+    private FunctionState current = null;
+
+    /**
+     * Compile top-level statements into a script function.
+     */
+    VmFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new VmFunction(null), FunctionType.SCRIPT);
+
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+
+        Token end = new Token(TokenType.EOF, "", null, 0);
+        emit(Chunk.OP_NIL, end);
+        emit(Chunk.OP_RETURN, end);
+
+        return current.function;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private Chunk chunk() {
+        return current.function.chunk;
+    }
+
+    private void emit(byte op, Token token) {
+        chunk().write(op, token);
+    }
+
+    private void emitByte(int value, Token token) {
+        chunk().write((byte)value, token);
+    }
+
+    private void emitShort(byte op, int value, Token token) {
+        emit(op, token);
+        chunk().writeShort(value, token);
+    }
+
+    private int constant(Object value, Token token) {
+        int index = chunk().addConstant(value);
+        if (index > 0xffff) {
+            Lox.error(token, "Too many constants in one chunk.");
+        }
+
+        return index;
+    }
+
+    private int emitJump(byte op, Token token) {
+        emit(op, token);
+        chunk().writeShort(0xffff, token);
+        return chunk().count - 2;
+    }
+
+    private void patchJump(int offset, Token token) {
+        int jump = chunk().count - offset - 2;
+        if (jump > 0xffff) {
+            Lox.error(token, "Too much code to jump over.");
+        }
+
+        chunk().code[offset] = (byte)((jump >> 8) & 0xff);
+        chunk().code[offset + 1] = (byte)(jump & 0xff);
+    }
+
+    private void emitLoop(int start, Token token) {
+        emit(Chunk.OP_LOOP, token);
+
+        int offset = chunk().count - start + 2;
+        if (offset > 0xffff) {
+            Lox.error(token, "Loop body too large.");
+        }
+
+        chunk().writeShort(offset, token);
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope(Token token) {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            Local local = locals.remove(locals.size() - 1);
+            emit(local.isCaptured ? Chunk.OP_CLOSE_UPVALUE : Chunk.OP_POP, token);
+        }
+    }
+
+    /**
+     * Pop the locals declared deeper than the given scope without forgetting
+     * them, used when break/continue jump out of nested blocks.
+     */
+    private void discardLocals(int depth, Token token) {
+        List<Local> locals = current.locals;
+        for (int i = locals.size() - 1; i >= 0 && locals.get(i).depth > depth; i--) {
+            emit(locals.get(i).isCaptured ? Chunk.OP_CLOSE_UPVALUE : Chunk.OP_POP, token);
+        }
+    }
+
+    private void addLocal(Token name) {
+        if (current.locals.size() == 256) {
+            Lox.error(name, "Too many local variables in function.");
+            return;
+        }
+
+        current.locals.add(new Local(name.lexeme, current.scopeDepth));
+    }
+
+    private static int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static int addUpvalue(FunctionState state, int index, boolean isLocal) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+
+        state.upvalues.add(new Upvalue(index, isLocal));
+        state.function.upvalueCount = state.upvalues.size();
+        return state.upvalues.size() - 1;
+    }
+
+    private static int resolveUpvalue(FunctionState state, String name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false);
+        }
+
+        return -1;
+    }
+
+    private void getVariable(Token name) {
+        int slot = resolveLocal(current, name.lexeme);
+        if (slot != -1) {
+            emit(Chunk.OP_GET_LOCAL, name);
+            emitByte(slot, name);
+            return;
+        }
+
+        slot = resolveUpvalue(current, name.lexeme);
+        if (slot != -1) {
+            emit(Chunk.OP_GET_UPVALUE, name);
+            emitByte(slot, name);
+            return;
+        }
+
+        emitShort(Chunk.OP_GET_GLOBAL, constant(name.lexeme, name), name);
+    }
+
+    private void setVariable(Token name) {
+        int slot = resolveLocal(current, name.lexeme);
+        if (slot != -1) {
+            emit(Chunk.OP_SET_LOCAL, name);
+            emitByte(slot, name);
+            return;
+        }
+
+        slot = resolveUpvalue(current, name.lexeme);
+        if (slot != -1) {
+            emit(Chunk.OP_SET_UPVALUE, name);
+            emitByte(slot, name);
+            return;
+        }
+
+        emitShort(Chunk.OP_SET_GLOBAL, constant(name.lexeme, name), name);
+    }
+
+    /**
+     * Bind the value on top of the stack to a declared name. Locals simply
+     * stay where they are, top-level names become globals.
+     */
+    private void defineVariable(Token name) {
+        if (current.scopeDepth > 0) {
+            addLocal(name);
+            return;
+        }
+
+        emitShort(Chunk.OP_DEFINE_GLOBAL, constant(name.lexeme, name), name);
+    }
+
+    private void function(Stmt.Function stmt, FunctionType type) {
+        VmFunction function = new VmFunction(stmt.name);
+        function.arity = stmt.params.size();
+
+        current = new FunctionState(current, function, type);
+        beginScope();
+
+        for (Token param : stmt.params) {
+            addLocal(param);
+        }
+
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+
+        emit(Chunk.OP_NIL, stmt.name);
+        emit(Chunk.OP_RETURN, stmt.name);
+
+        FunctionState state = current;
+        current = current.enclosing;
+
+        emitShort(Chunk.OP_CLOSURE, constant(function, stmt.name), stmt.name);
+        for (Upvalue upvalue : state.upvalues) {
+            emitByte(upvalue.isLocal ? 1 : 0, stmt.name);
+            emitByte(upvalue.index, stmt.name);
+        }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope(null);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(Chunk.OP_POP, null);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (current.type == FunctionType.INITIALIZER) {
+            // An initializer always hands back its instance.
+            if (stmt.value != null) {
+                compile(stmt.value);
+                emit(Chunk.OP_POP, stmt.keyword);
+            }
+
+            emit(Chunk.OP_GET_LOCAL, stmt.keyword);
+            emitByte(0, stmt.keyword);
+        } else if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(Chunk.OP_NIL, stmt.keyword);
+        }
+
+        emit(Chunk.OP_RETURN, stmt.keyword);
+        return null;
+    }
+
+    /**
+     * Compile the condition of an if or while and the jump taken when it
+     * is false. A comparison jumps on its operands without producing the
+     * boolean first.
+     * @return offset of the jump to patch
+     */
+    private int conditionJump(Expr condition) {
+        if (condition instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)condition;
+            byte op;
+
+            switch (binary.operator.type) {
+                case GREATER: op = Chunk.OP_JUMP_IF_NOT_GREATER; break;
+                case GREATER_EQUAL: op = Chunk.OP_JUMP_IF_NOT_GREATER_EQUAL; break;
+                case LESS: op = Chunk.OP_JUMP_IF_NOT_LESS; break;
+                case LESS_EQUAL: op = Chunk.OP_JUMP_IF_NOT_LESS_EQUAL; break;
+                default: op = -1;
+            }
+
+            if (op != -1) {
+                compile(binary.left);
+                compile(binary.right);
+                return emitJump(op, binary.operator);
+            }
+        }
+
+        compile(condition);
+        return emitJump(Chunk.OP_POP_JUMP_IF_FALSE, null);
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        int thenJump = conditionJump(stmt.condition);
+        compile(stmt.thenBranch);
+
+        if (stmt.elseBranch != null) {
+            int elseJump = emitJump(Chunk.OP_JUMP, null);
+            patchJump(thenJump, null);
+            compile(stmt.elseBranch);
+            patchJump(elseJump, null);
+        } else {
+            patchJump(thenJump, null);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(Chunk.OP_PRINT, null);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(Chunk.OP_NIL, stmt.name);
+        }
+
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int start = chunk().count;
+        int exitJump = conditionJump(stmt.condition);
+
+        current.loop = new Loop(current.loop, start, current.scopeDepth);
+        compile(stmt.loopStatement);
+        emitLoop(start, null);
+
+        patchJump(exitJump, null);
+
+        for (int jump : current.loop.breakJumps) {
+            patchJump(jump, null);
+        }
+
+        current.loop = current.loop.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitTerminateStmt(Stmt.Terminate stmt) {
+        Loop loop = current.loop;
+        if (loop == null) {
+            Lox.error(stmt.identifier, stmt.identifier.lexeme + " must used inside loop");
+            return null;
+        }
+
+        discardLocals(loop.scopeDepth, stmt.identifier);
+
+        if (stmt.identifier.type == TokenType.BREAK) {
+            loop.breakJumps.add(emitJump(Chunk.OP_JUMP, stmt.identifier));
+        } else {
+            emitLoop(loop.start, stmt.identifier);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        // Declare a local function first so its body can call itself.
+        if (current.scopeDepth > 0) {
+            addLocal(stmt.name);
+            function(stmt, FunctionType.FUNCTION);
+            return null;
+        }
+
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        Token name = stmt.name;
+        emitShort(Chunk.OP_CLASS, constant(name.lexeme, name), name);
+
+        boolean isLocal = current.scopeDepth > 0;
+        if (isLocal) addLocal(name);
+
+        // The class stays on top of the stack while its members are attached.
+        for (Expr.Variable field : stmt.fields) {
+            member(Chunk.OP_FIELD, Chunk.MEMBER_PUBLIC, field.name);
+        }
+
+        for (Expr.Variable field : stmt.privateFields) {
+            member(Chunk.OP_FIELD, Chunk.MEMBER_PRIVATE, field.name);
+        }
+
+        for (Stmt.Function method : stmt.methods) {
+            boolean isInitializer = method.name.lexeme.equals("init");
+            function(method, isInitializer ? FunctionType.INITIALIZER : FunctionType.METHOD);
+            member(Chunk.OP_METHOD, Chunk.MEMBER_PUBLIC, method.name);
+        }
+
+        for (Stmt.Function method : stmt.privateMethods) {
+            function(method, FunctionType.METHOD);
+            member(Chunk.OP_METHOD, Chunk.MEMBER_PRIVATE, method.name);
+        }
+
+        for (Stmt.Function method : stmt.staticMethods) {
+            function(method, FunctionType.STATIC_METHOD);
+            member(Chunk.OP_METHOD, Chunk.MEMBER_STATIC, method.name);
+        }
+
+        if (!isLocal) {
+            defineVariable(name);
+        }
+
+        return null;
+    }
+
+    private void member(byte op, byte kind, Token name) {
+        emitShort(op, constant(name.lexeme, name), name);
+        emitByte(kind, name);
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        setVariable(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+
+        // n + 1 and n - 1 take the number from the constant pool in the same instruction.
+        if ((expr.operator.type == TokenType.PLUS || expr.operator.type == TokenType.MINUS)
+            && expr.right instanceof Expr.Literal && ((Expr.Literal)expr.right).value instanceof Double) {
+            byte op = expr.operator.type == TokenType.PLUS ? Chunk.OP_ADD_CONSTANT : Chunk.OP_SUBTRACT_CONSTANT;
+            emitShort(op, constant(((Expr.Literal)expr.right).value, expr.operator), expr.operator);
+            return null;
+        }
+
+        compile(expr.right);
+
+        switch (expr.operator.type) {
+            case PLUS: emit(Chunk.OP_ADD, expr.operator); break;
+            case MINUS: emit(Chunk.OP_SUBTRACT, expr.operator); break;
+            case STAR: emit(Chunk.OP_MULTIPLY, expr.operator); break;
+            case SLASH: emit(Chunk.OP_DIVIDE, expr.operator); break;
+            case GREATER: emit(Chunk.OP_GREATER, expr.operator); break;
+            case GREATER_EQUAL: emit(Chunk.OP_GREATER_EQUAL, expr.operator); break;
+            case LESS: emit(Chunk.OP_LESS, expr.operator); break;
+            case LESS_EQUAL: emit(Chunk.OP_LESS_EQUAL, expr.operator); break;
+            case EQUAL_EQUAL: emit(Chunk.OP_EQUAL, expr.operator); break;
+            case BANG_EQUAL: emit(Chunk.OP_NOT_EQUAL, expr.operator); break;
+            default:
+                emit(Chunk.OP_POP, expr.operator);
+                emit(Chunk.OP_POP, expr.operator);
+                emit(Chunk.OP_NIL, expr.operator);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            invoke((Expr.Get)expr.callee, expr);
+            return null;
+        }
+
+        compile(expr.callee);
+
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+
+        emit(Chunk.OP_CALL, expr.paren);
+        emitByte(expr.arguments.size(), expr.paren);
+        return null;
+    }
+
+    /**
+     * OP_INVOKE keeps the name token at the opcode for property errors and
+     * the paren at the argument count for call errors.
+     */
+    private void invoke(Expr.Get callee, Expr.Call expr) {
+        compile(callee.object);
+
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+
+        emitShort(Chunk.OP_INVOKE, constant(new VmPropertyCache(), callee.name), callee.name);
+        emitByte(expr.arguments.size(), expr.paren);
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        emitShort(Chunk.OP_GET_PROPERTY, constant(new VmPropertyCache(), expr.name), expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        emitShort(Chunk.OP_SET_PROPERTY, constant(new VmPropertyCache(), expr.name), expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        getVariable(expr.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(Chunk.OP_NIL, null);
+        } else if (Boolean.TRUE.equals(expr.value)) {
+            emit(Chunk.OP_TRUE, null);
+        } else if (Boolean.FALSE.equals(expr.value)) {
+            emit(Chunk.OP_FALSE, null);
+        } else {
+            emitShort(Chunk.OP_CONSTANT, constant(expr.value, null), null);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        switch (expr.operator.type) {
+            case MINUS: emit(Chunk.OP_NEGATE, expr.operator); break;
+            case BANG: emit(Chunk.OP_NOT, expr.operator); break;
+            default:
+                emit(Chunk.OP_POP, expr.operator);
+                emit(Chunk.OP_NIL, expr.operator);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitConditionalExpr(Expr.Conditional expr) {
+        compile(expr.condition);
+
+        int elseJump = emitJump(Chunk.OP_POP_JUMP_IF_FALSE, null);
+        compile(expr.stat1);
+
+        int endJump = emitJump(Chunk.OP_JUMP, null);
+        patchJump(elseJump, null);
+        compile(expr.stat2);
+        patchJump(endJump, null);
+
+        return null;
+    }
+
+    @Override
+    public Void visitSelfOpExpr(Expr.SelfOp expr) {
+        byte op = expr.operator.type == TokenType.DECREMENT
+            ? Chunk.OP_DECREMENT
+            : Chunk.OP_INCREMENT;
+
+        getVariable(expr.name);
+
+        if (expr.left) {
+            emit(op, expr.operator);
+            setVariable(expr.name);
+        } else {
+            // Keep the old value below the updated one.
+            emit(Chunk.OP_DUP, expr.operator);
+            emit(op, expr.operator);
+            setVariable(expr.name);
+            emit(Chunk.OP_POP, expr.operator);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        getVariable(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        if (expr.operator.type == TokenType.AND) {
+            int endJump = emitJump(Chunk.OP_JUMP_IF_FALSE, expr.operator);
+            emit(Chunk.OP_POP, expr.operator);
+            compile(expr.right);
+            patchJump(endJump, expr.operator);
+        } else {
+            int elseJump = emitJump(Chunk.OP_JUMP_IF_FALSE, expr.operator);
+            int endJump = emitJump(Chunk.OP_JUMP, expr.operator);
+            patchJump(elseJump, expr.operator);
+            emit(Chunk.OP_POP, expr.operator);
+            compile(expr.right);
+            patchJump(endJump, expr.operator);
+        }
+
+        return null;
+    }
+
+    /**
+     * The VM calls the function, the inlined body is for the tree and
+     * closure engines.
+     */
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        compile(expr.call);
+        return null;
+    }
+}
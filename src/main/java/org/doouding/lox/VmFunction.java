@@ -0,0 +1,22 @@
+package org.doouding.lox;
+
+/**
+ * A compiled function: its bytecode and how many arguments and upvalues
+ * it takes. The top-level script is a VmFunction without a name.
+ */
+class VmFunction {
+    final Token name;
+    final Chunk chunk = new Chunk();
+    int arity = 0;
+    int upvalueCount = 0;
+
+    VmFunction(Token name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) return "<script>";
+        return "<fn" + name.lexeme + ">";
+    }
+}
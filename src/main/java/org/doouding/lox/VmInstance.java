@@ -0,0 +1,103 @@
+package org.doouding.lox;
+
+/**
+ * Instance of a VmClass. Like LoxInstanceProxy, the same field storage
+ * can be seen through a view that may touch private members ("this"
+ * inside methods) and one that may not (everything else).
+ */
+class VmInstance {
+    final VmClass klass;
+
+    /**
+     * 字段的值, 按 VmClass 计算好的下标存放, 两个视图共用
+     */
+    final Object[] values;
+    final boolean allowPrivate;
+
+    /**
+     * 可访问私有成员的视图, 方法的 this 都是它
+     */
+    private VmInstance self;
+
+    VmInstance(VmClass klass) {
+        this.klass = klass;
+        this.values = new Object[klass.fieldCount];
+        this.allowPrivate = false;
+    }
+
+    private VmInstance(VmInstance instance) {
+        this.klass = instance.klass;
+        this.values = instance.values;
+        this.allowPrivate = true;
+        this.self = this;
+    }
+
+    /**
+     * @return the view of this instance that can access private members,
+     * the same object every time
+     */
+    VmInstance self() {
+        if (self == null) {
+            self = new VmInstance(this);
+        }
+
+        return self;
+    }
+
+    Object get(Token name) {
+        int offset = klass.fieldOffset(name.symbol);
+        if (offset != -1) {
+            return values[offset];
+        }
+
+        offset = klass.privateFieldOffset(name.symbol);
+        if (offset != -1) {
+            if (allowPrivate) {
+                return values[offset];
+            }
+
+            throw new RuntimeError(name, "Cannot access the private field \"" + name.lexeme + "\" outside the class.");
+        }
+
+        VmClosure method = klass.methods.get(name.symbol);
+        if (method != null) {
+            return new VmBoundMethod(self(), method);
+        }
+
+        method = klass.privateMethods.get(name.symbol);
+        if (method != null) {
+            if (allowPrivate) {
+                return new VmBoundMethod(self(), method);
+            }
+
+            throw new RuntimeError(name, "Cannot access the private method \"" + name.lexeme + "\" outside the class.");
+        }
+
+        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+    }
+
+    void set(Token name, Object value) {
+        int offset = klass.privateFieldOffset(name.symbol);
+        if (offset != -1) {
+            if (allowPrivate) {
+                values[offset] = value;
+                return;
+            }
+
+            throw new RuntimeError(name, "Cannot set private property \"" + name.lexeme + " \" outside the class");
+        }
+
+        offset = klass.fieldOffset(name.symbol);
+        if (offset != -1) {
+            values[offset] = value;
+            return;
+        }
+
+        throw new RuntimeError(name, "Field \"" + name.lexeme + "\" is not defined in the class \"" + klass.name + "\"");
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
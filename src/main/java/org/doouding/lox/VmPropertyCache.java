@@ -0,0 +1,99 @@
+package org.doouding.lox;
+
+/**
+ * Property cache of a single OP_GET_PROPERTY, OP_SET_PROPERTY or
+ * OP_INVOKE site, what FieldCache and MethodCache are for the tree
+ * engine. It remembers the last class the site saw and the field offset
+ * or the method found in it, so while instances of that class keep coming
+ * the access is an array read or write and the call needs no bound method.
+ * Anything else takes the VmInstance path.
+ */
+class VmPropertyCache {
+    private VmClass klass;
+    private int offset;
+    private VmClosure method;
+    private boolean isPrivate;
+
+    Object get(VmInstance instance, Token name) {
+        if (instance.klass == klass && (!isPrivate || instance.allowPrivate)) {
+            return instance.values[offset];
+        }
+
+        // Public fields are looked up before private ones, as in VmInstance.get.
+        int found = instance.klass.fieldOffset(name.symbol);
+        boolean foundPrivate = false;
+        if (found == -1) {
+            found = instance.klass.privateFieldOffset(name.symbol);
+            foundPrivate = true;
+        }
+
+        if (found == -1 || (foundPrivate && !instance.allowPrivate)) {
+            return instance.get(name);
+        }
+
+        remember(instance.klass, found, null, foundPrivate);
+        return instance.values[found];
+    }
+
+    void set(VmInstance instance, Token name, Object value) {
+        if (instance.klass == klass && (!isPrivate || instance.allowPrivate)) {
+            instance.values[offset] = value;
+            return;
+        }
+
+        // Private fields are looked up before public ones, as in VmInstance.set.
+        int found = instance.klass.privateFieldOffset(name.symbol);
+        boolean foundPrivate = true;
+        if (found == -1) {
+            found = instance.klass.fieldOffset(name.symbol);
+            foundPrivate = false;
+        }
+
+        if (found == -1 || (foundPrivate && !instance.allowPrivate)) {
+            instance.set(name, value);
+            return;
+        }
+
+        remember(instance.klass, found, null, foundPrivate);
+        instance.values[found] = value;
+    }
+
+    /**
+     * @return the method an OP_INVOKE site calls, null when the property
+     * is not a method the instance may call (a field of that name, a
+     * missing or private method) and the site has to read it instead
+     */
+    VmClosure method(VmInstance instance, Token name) {
+        VmClass actual = instance.klass;
+
+        if (actual == klass && (!isPrivate || instance.allowPrivate)) {
+            return method;
+        }
+
+        // Fields shadow methods, as in VmInstance.get.
+        if (actual.fieldOffset(name.symbol) != -1 || actual.privateFieldOffset(name.symbol) != -1) {
+            return null;
+        }
+
+        VmClosure found = actual.methods.get(name.symbol);
+        boolean foundPrivate = false;
+        if (found == null) {
+            found = actual.privateMethods.get(name.symbol);
+            foundPrivate = true;
+        }
+
+        if (found == null || (foundPrivate && !instance.allowPrivate)) {
+            return null;
+        }
+
+        remember(actual, -1, found, foundPrivate);
+        return found;
+    }
+
+    private void remember(VmClass klass, int offset, VmClosure method, boolean isPrivate) {
+        this.klass = klass;
+        this.offset = offset;
+        this.method = method;
+        this.isPrivate = isPrivate;
+    }
+}
@@ -0,0 +1,24 @@
+package org.doouding.lox;
+
+/**
+ * A captured variable. While the variable is still on the Vm stack the
+ * upvalue points at its slot, once the slot goes away the value is moved
+ * into the upvalue itself.
+ */
+class VmUpvalue {
+    /**
+     * Stack slot of the variable, -1 once closed
+     */
+    int slot;
+    Object closed;
+
+    /**
+     * Next open upvalue, the Vm keeps them ordered by slot from top to bottom
+     */
+    VmUpvalue next;
+
+    VmUpvalue(int slot, VmUpvalue next) {
+        this.slot = slot;
+        this.next = next;
+    }
+}
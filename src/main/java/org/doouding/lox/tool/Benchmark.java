@@ -0,0 +1,217 @@
+package org.doouding.lox.tool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.doouding.lox.Lox;
+
+/**
+ * Runs benchmark scripts in this JVM and reports the time, the bytes
+ * allocated and the garbage collections per run:
+ *
+ *   benchmark [--engine=tree] [--warmup=3] [--iterations=5]
+ *             [--baseline=file] [--save-baseline=file] [--threshold=10] script...
+ *
+ * --save-baseline writes the results to a file, --baseline compares them
+ * with a file written before. A script that got slower or allocates more
+ * than threshold percent over its baseline is flagged as a regression and
+ * the runner exits with 1.
+ *
+ * Script output is discarded while measuring.
+ */
+public class Benchmark {
+    /**
+     * One script's numbers, per run
+     */
+    private static class Result {
+        final double millis;
+        final long bytes;
+        final double collections;
+
+        Result(double millis, long bytes, double collections) {
+            this.millis = millis;
+            this.bytes = bytes;
+            this.collections = collections;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String engine = "tree";
+        int warmup = 3;
+        int iterations = 5;
+        String baselineFile = null;
+        String saveBaseline = null;
+        double threshold = 10;
+        List<String> scripts = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(arg.substring("--warmup=".length()));
+            } else if (arg.startsWith("--iterations=")) {
+                iterations = Integer.parseInt(arg.substring("--iterations=".length()));
+            } else if (arg.startsWith("--baseline=")) {
+                baselineFile = arg.substring("--baseline=".length());
+            } else if (arg.startsWith("--save-baseline=")) {
+                saveBaseline = arg.substring("--save-baseline=".length());
+            } else if (arg.startsWith("--threshold=")) {
+                threshold = Double.parseDouble(arg.substring("--threshold=".length()));
+            } else {
+                scripts.add(arg);
+            }
+        }
+
+        if (scripts.isEmpty()) {
+            System.err.println("Usage: benchmark [--engine=name] [--warmup=n] [--iterations=n]"
+                + " [--baseline=file] [--save-baseline=file] [--threshold=percent] script...");
+            System.exit(64);
+        }
+
+        Map<String, Result> baseline = baselineFile == null ? null : readBaseline(baselineFile);
+        Map<String, Result> results = new LinkedHashMap<>();
+        int regressions = 0;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        PrintStream out = System.out;
+
+        out.printf("%-30s %-8s %12s %16s %8s%s%n", "script", "engine", "ms/run", "bytes/run", "gc/run",
+            baseline == null ? "" : String.format("  %9s %9s", "time", "alloc"));
+
+        for (String script : scripts) {
+            String source = new String(Files.readAllBytes(Paths.get(script)), StandardCharsets.UTF_8);
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {}
+            }));
+
+            boolean ok = true;
+            for (int i = 0; i < warmup; i++) {
+                ok &= Lox.runScript(source, engine);
+            }
+
+            long collections = collections();
+            long bytes = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                ok &= Lox.runScript(source, engine);
+            }
+            long elapsed = System.nanoTime() - start;
+            bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+            collections = collections() - collections;
+
+            System.setOut(out);
+            if (!ok) {
+                System.err.println(script + " failed.");
+                System.exit(70);
+            }
+
+            String key = Paths.get(script).getFileName() + " " + engine;
+            Result result = new Result(elapsed / 1e6 / iterations, bytes / iterations, (double)collections / iterations);
+            results.put(key, result);
+
+            out.printf(Locale.ROOT, "%-30s %-8s %12.2f %16d %8.2f",
+                Paths.get(script).getFileName(), engine, result.millis, result.bytes, result.collections);
+
+            if (baseline != null) {
+                Result before = baseline.get(key);
+                if (before == null) {
+                    out.print("  no baseline");
+                } else {
+                    double time = change(result.millis, before.millis);
+                    double alloc = change(result.bytes, before.bytes);
+                    out.printf(Locale.ROOT, "  %+8.1f%% %+8.1f%%", time, alloc);
+
+                    if (time > threshold || alloc > threshold) {
+                        out.print("  REGRESSION");
+                        regressions++;
+                    }
+                }
+            }
+            out.println();
+        }
+
+        if (saveBaseline != null) writeBaseline(saveBaseline, results);
+
+        if (regressions > 0) {
+            out.println(regressions + " regression(s) over " + threshold + "%.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return change from the baseline in percent
+     */
+    private static double change(double value, double baseline) {
+        if (baseline == 0) return value == 0 ? 0 : 100;
+        return (value - baseline) / baseline * 100;
+    }
+
+    /**
+     * @return collections of all collectors since the JVM started
+     */
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            // -1 when a collector doesn't count.
+            count += Math.max(0, collector.getCollectionCount());
+        }
+
+        return count;
+    }
+
+    /**
+     * A baseline has a line per script and engine:
+     *
+     *   # script engine ms/run bytes/run gc/run
+     *   fib.lox tree 123.45 4567890 0.40
+     */
+    private static Map<String, Result> readBaseline(String file) throws IOException {
+        Map<String, Result> baseline = new LinkedHashMap<>();
+
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            String[] fields = line.split("\\s+");
+            if (fields.length != 5) throw new IOException("Bad baseline line: " + line);
+
+            baseline.put(fields[0] + " " + fields[1], new Result(
+                Double.parseDouble(fields[2]), Long.parseLong(fields[3]), Double.parseDouble(fields[4])));
+        }
+
+        return baseline;
+    }
+
+    /**
+     * Update a baseline with the results, lines of other scripts and
+     * engines are kept so each engine can be saved by its own run.
+     */
+    private static void writeBaseline(String file, Map<String, Result> results) throws IOException {
+        Map<String, Result> baseline = Files.exists(Paths.get(file)) ? readBaseline(file) : new LinkedHashMap<String, Result>();
+        baseline.putAll(results);
+
+        List<String> lines = new ArrayList<>();
+        lines.add("# script engine ms/run bytes/run gc/run");
+
+        for (Map.Entry<String, Result> entry : baseline.entrySet()) {
+            Result result = entry.getValue();
+            lines.add(String.format(Locale.ROOT, "%s %.2f %d %.2f",
+                entry.getKey(), result.millis, result.bytes, result.collections));
+        }
+
+        Files.write(Paths.get(file), lines, StandardCharsets.UTF_8);
+    }
+}
@@ -14,23 +14,24 @@ public class GenerateAst {
 
         String outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
-            "Assign      : Token name, Expr value",
-            "Binary      : Expr left, Token operator, Expr right",
-            "Call        : Expr callee, Token paren, List<Expr> arguments",
-            "Get         : Expr object, Token name",
-            "Set         : Expr object, Token name, Expr value",
-            "This        : Token keyword",
+            "Assign      : Token name, Expr value | int depth = -1, int slot, Enviroment.Global global",
+            "Binary      : Expr left, Token operator, Expr right | boolean generic",
+            "Call        : Expr callee, Token paren, List<Expr> arguments | MethodCache methodCache = new MethodCache()",
+            "Get         : Expr object, Token name | FieldCache cache = new FieldCache()",
+            "Set         : Expr object, Token name, Expr value | FieldCache cache = new FieldCache()",
+            "This        : Token keyword | int depth = -1, int slot",
             "Grouping    : Expr expression",
             "Literal     : Object value",
             "Unary       : Token operator, Expr right",
             "Conditional : Expr condition, Expr stat1, Expr stat2",
-            "SelfOp      : Token name, Token operator, Boolean left",
-            "Variable    : Token name",
-            "Logical     : Expr left, Token operator, Expr right"
+            "SelfOp      : Token name, Token operator, Boolean left | int depth = -1, int slot, Enviroment.Global global",
+            "Variable    : Token name | int depth = -1, int slot, Enviroment.Global global",
+            "Logical     : Expr left, Token operator, Expr right",
+            "Inline      : Expr.Call call, Expr body, Token target"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-            "Block      : List<Stmt> statements",
+            "Block      : List<Stmt> statements | int locals",
             "Expression : Expr expression",
             "Return     : Token keyword, Expr value",
             "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
@@ -38,7 +39,7 @@ public class GenerateAst {
             "Var        : Token name, Expr initializer",
             "While      : Expr condition, Stmt loopStatement",
             "Terminate  : Token identifier",
-            "Function   : Token name, List<Token> params, List<Stmt> body",
+            "Function   : Token name, List<Token> params, List<Stmt> body | int locals, LazyBody lazy",
             "Class      : Token name, List<Stmt.Function> methods, List<Stmt.Function> staticMethods, List<Stmt.Function> privateMethods, List<Expr.Variable> fields, List<Expr.Variable> privateFields"
         ));
     }
@@ -60,8 +61,10 @@ public class GenerateAst {
         // The AST classes
         for (String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim(); 
-            defineType(writer, baseName, className, fields);
+            String members = type.split(":")[1];
+            String fields = members.split("\\|")[0].trim();
+            String state = members.contains("|") ? members.split("\\|")[1].trim() : null;
+            defineType(writer, baseName, className, fields, state);
         }
 
         // The base accept() method.
@@ -85,9 +88,14 @@ public class GenerateAst {
         writer.println("");
     }
 
+    /**
+     * Define an AST class.
+     * @param fieldList final fields passed to the constructor
+     * @param stateList mutable fields filled in after parsing (e.g. by the Resolver), may be null
+     */
     private static void defineType(
         PrintWriter writer, String baseName,
-        String className, String fieldList
+        String className, String fieldList, String stateList
     ) {
         writer.println(
             "  static class "
@@ -122,6 +130,12 @@ public class GenerateAst {
             writer.println("    final " + field + ";");
         }
 
+        if (stateList != null) {
+            for (String field : stateList.split(", ")) {
+                writer.println("    " + field + ";");
+            }
+        }
+
         writer.println("  }");
     }
 }
\ No newline at end of file
@@ -0,0 +1,362 @@
+package org.doouding.lox.tool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Runs every script of a corpus directory through each engine and checks
+ * the output against the expectations written in the script:
+ *
+ *   print 1 + 2; // expect: 3
+ *   // expect runtime error: Operands must be numbers
+ *   // expect calls: 12
+ *
+ * The number of Lox calls is checked on the tree and closure engines,
+ * which count them for --stats. A script uses it to show that calls it
+ * expects to be inlined are. Lazy runs are not checked: a body parsed on
+ * its first call is optimized alone and inlines nothing.
+ *
+ * Each script runs in its own JVM so engines start from a clean state.
+ *
+ * Besides running a script as it is, a run can load it the way a command
+ * line option does, written as engine:mode:
+ *
+ *   tree:lazy   parse function bodies on first call (--lazy-parse)
+ *   *:cached    run twice with a new --cache directory, the second run
+ *               has to load the AST the first one wrote
+ *   *:snapshot  run the lines before "// end of prelude" (the whole
+ *               script if there is none) with --save-snapshot and the
+ *               rest with --snapshot, not on the vm engine
+ *
+ * The engines and modes to run are given after the directory, all of
+ * them by default.
+ */
+public class TestCorpus {
+    private static final String EXPECT = "// expect: ";
+    private static final String EXPECT_RUNTIME_ERROR = "// expect runtime error: ";
+    private static final String EXPECT_CALLS = "// expect calls: ";
+    private static final String CALLS = "  calls: ";
+    private static final String END_OF_PRELUDE = "// end of prelude";
+
+    private static final List<String> ENGINES = Arrays.asList("tree", "closure", "vm", "jvm");
+    private static final List<String> COUNTING_ENGINES = Arrays.asList("tree", "closure");
+    private static final List<String> MODES = Arrays.asList("lazy", "cached", "snapshot");
+    private static final List<String> DEFAULT_RUNS = Arrays.asList(
+        "tree", "closure", "vm", "jvm",
+        "tree:lazy",
+        "tree:cached", "closure:cached", "vm:cached", "jvm:cached",
+        "tree:snapshot", "closure:snapshot", "jvm:snapshot"
+    );
+
+    /**
+     * What a script expects to print, the runtime error it ends with and
+     * how many calls it makes, null when it has none
+     */
+    private static class Expectations {
+        final List<String> output = new ArrayList<>();
+        String runtimeError;
+        Long calls;
+    }
+
+    /**
+     * What a run of the interpreter printed and how it exited
+     */
+    private static class Output {
+        final String out;
+        final String err;
+        final int exitCode;
+
+        /**
+         * 运行中的 Lox 调用次数, 没有用 --stats 运行时为 null
+         */
+        final Long calls;
+
+        Output(String out, String err, int exitCode, Long calls) {
+            this.out = out;
+            this.err = err;
+            this.exitCode = exitCode;
+            this.calls = calls;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) usage();
+
+        List<String> runs = args.length > 1
+            ? Arrays.asList(args).subList(1, args.length)
+            : DEFAULT_RUNS;
+
+        for (String run : runs) {
+            String[] parts = run.split(":", 2);
+            if (!ENGINES.contains(parts[0]) || (parts.length > 1 && !MODES.contains(parts[1]))) usage();
+
+            // The vm keeps globals of its own, it can't load snapshots.
+            if (run.equals("vm:snapshot")) usage();
+        }
+
+        File[] scripts = new File(args[0]).listFiles((dir, name) -> name.endsWith(".lox"));
+        if (scripts == null) {
+            System.err.println("Cannot read corpus directory " + args[0]);
+            System.exit(66);
+        }
+        Arrays.sort(scripts);
+
+        int failures = 0;
+        for (File script : scripts) {
+            for (String run : runs) {
+                String failure = check(script, run);
+                if (failure != null) {
+                    System.out.println("FAIL " + script.getName() + " [" + run + "]: " + failure);
+                    failures++;
+                }
+            }
+        }
+
+        System.out.println((scripts.length * runs.size() - failures) + " passed, " + failures + " failed.");
+        if (failures > 0) System.exit(1);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: test_corpus <corpus directory> [engine[:mode]...]");
+        System.err.println("  engines: " + String.join(", ", ENGINES) + "; modes: " + String.join(", ", MODES));
+        System.exit(64);
+    }
+
+    private static String check(File script, String run) throws IOException, InterruptedException {
+        Expectations expected = new Expectations();
+
+        for (String line : Files.readAllLines(script.toPath(), StandardCharsets.UTF_8)) {
+            int index = line.indexOf(EXPECT);
+            if (index != -1) {
+                expected.output.add(line.substring(index + EXPECT.length()));
+            }
+
+            index = line.indexOf(EXPECT_RUNTIME_ERROR);
+            if (index != -1) {
+                expected.runtimeError = line.substring(index + EXPECT_RUNTIME_ERROR.length());
+            }
+
+            index = line.indexOf(EXPECT_CALLS);
+            if (index != -1) {
+                expected.calls = Long.parseLong(line.substring(index + EXPECT_CALLS.length()).trim());
+            }
+        }
+
+        String[] parts = run.split(":", 2);
+        String mode = parts.length > 1 ? parts[1] : "";
+
+        switch (mode) {
+            case "lazy":
+                return compare(expected, lox(options(parts[0], null), "--lazy-parse", script.getPath()));
+            case "cached":
+                return cached(script, options(parts[0], expected), expected);
+            case "snapshot":
+                return snapshot(script, parts[0], expected);
+            default:
+                return compare(expected, lox(options(parts[0], expected), script.getPath()));
+        }
+    }
+
+    /**
+     * @param expected what the run is checked against, null if not its calls
+     * @return the options that run an engine, with --stats when the calls are checked
+     */
+    private static List<String> options(String engine, Expectations expected) {
+        List<String> options = new ArrayList<>();
+        options.add("--engine=" + engine);
+        if (expected != null && expected.calls != null && COUNTING_ENGINES.contains(engine)) options.add("--stats");
+
+        return options;
+    }
+
+    /**
+     * Run a script twice with a new cache directory. Both runs have to
+     * meet the expectations, the first one writes the AST and the second
+     * one loads it without writing it again.
+     */
+    private static String cached(File script, List<String> options, Expectations expected)
+        throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("lox-cache");
+
+        try {
+            String cache = "--cache=" + directory;
+            String failure = compare(expected, lox(options, cache, script.getPath()));
+            if (failure != null) return "first run: " + failure;
+
+            // The corpus has no scripts with compile errors, which are not cached.
+            Path file = cacheFile(directory);
+            if (file == null) return "first run wrote no cached AST";
+            FileTime written = Files.getLastModifiedTime(file);
+
+            failure = compare(expected, lox(options, cache, script.getPath()));
+            if (failure != null) return "second run: " + failure;
+
+            if (!Files.getLastModifiedTime(file).equals(written) || !file.equals(cacheFile(directory))) {
+                return "second run wrote the cached AST again instead of loading it";
+            }
+
+            return null;
+        } finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * Run the prelude of a script with --save-snapshot, then the rest of
+     * it with --snapshot. What they print and the calls they make together
+     * have to meet the script's expectations. The rest keeps its line numbers, the prelude
+     * is replaced by empty lines.
+     */
+    private static String snapshot(File script, String engine, Expectations expected)
+        throws IOException, InterruptedException {
+        List<String> lines = Files.readAllLines(script.toPath(), StandardCharsets.UTF_8);
+        int end = lines.size();
+        for (int i = 0; i < lines.size(); i++) {
+            if (lines.get(i).trim().equals(END_OF_PRELUDE)) {
+                end = i;
+                break;
+            }
+        }
+
+        List<String> rest = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            rest.add(i < end ? "" : lines.get(i));
+        }
+
+        Path directory = Files.createTempDirectory("lox-snapshot");
+
+        try {
+            Path prelude = directory.resolve("prelude.lox");
+            Path main = directory.resolve("main.lox");
+            Path file = directory.resolve("prelude.snap");
+            Files.write(prelude, lines.subList(0, end), StandardCharsets.UTF_8);
+            Files.write(main, rest, StandardCharsets.UTF_8);
+
+            // The jvm engine loads snapshots but can't write them.
+            String saving = engine.equals("jvm") ? "tree" : engine;
+            Output first = lox(options(saving, expected), "--save-snapshot=" + file, prelude.toString());
+
+            // A prelude that fails saves nothing, the script ends there.
+            if (first.exitCode != 0) return compare(expected, first);
+
+            Output second = lox(options(engine, expected), "--snapshot=" + file, main.toString());
+            Long calls = first.calls != null && second.calls != null ? first.calls + second.calls : null;
+            return compare(expected, new Output(first.out + second.out, second.err, second.exitCode, calls));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * @return the only AST file of a cache directory, null if there is not exactly one
+     */
+    private static Path cacheFile(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> list = Files.list(directory)) {
+            list.filter(file -> file.toString().endsWith(".ast")).forEach(files::add);
+        }
+
+        return files.size() == 1 ? files.get(0) : null;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> list = Files.list(directory)) {
+            for (Path file : (Iterable<Path>)list::iterator) {
+                Files.delete(file);
+            }
+        }
+
+        Files.delete(directory);
+    }
+
+    /**
+     * @return why the output doesn't meet the expectations, null if it does
+     */
+    private static String compare(Expectations expectations, Output output) {
+        List<String> expected = expectations.output;
+        String expectedError = expectations.runtimeError;
+        List<String> actual = output.out.isEmpty()
+            ? new ArrayList<String>()
+            : Arrays.asList(output.out.split("\r?\n"));
+
+        for (int i = 0; i < expected.size(); i++) {
+            if (i >= actual.size()) {
+                return "missing output '" + expected.get(i) + "'";
+            }
+
+            if (!actual.get(i).equals(expected.get(i))) {
+                return "expected '" + expected.get(i) + "' but got '" + actual.get(i) + "'";
+            }
+        }
+
+        if (actual.size() > expected.size()) {
+            return "unexpected output '" + actual.get(expected.size()) + "'";
+        }
+
+        if (expectedError != null) {
+            if (output.exitCode != 70 || !output.err.contains(expectedError)) {
+                return "expected runtime error '" + expectedError + "' but got '" + output.err.trim() + "'";
+            }
+        } else if (output.exitCode != 0) {
+            return "exit code " + output.exitCode + ": " + output.err.trim();
+        }
+
+        // Only runs of a counting engine have the counter.
+        if (expectations.calls != null && output.calls != null && !expectations.calls.equals(output.calls)) {
+            return "expected " + expectations.calls + " calls but made " + output.calls;
+        }
+
+        return null;
+    }
+
+    /**
+     * Run the interpreter in a new JVM with the classpath of this one.
+     */
+    private static Output lox(List<String> options, String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(Arrays.asList(
+            System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+            "-cp", System.getProperty("java.class.path"),
+            "org.doouding.lox.Lox"
+        ));
+        command.addAll(options);
+        command.addAll(Arrays.asList(args));
+
+        Process process = new ProcessBuilder(command).start();
+
+        String out = read(process.getInputStream());
+        String err = read(process.getErrorStream());
+        return new Output(out, err, process.waitFor(), calls(err));
+    }
+
+    /**
+     * @return the calls counter --stats printed, null if there is none
+     */
+    private static Long calls(String err) {
+        for (String line : err.split("\r?\n")) {
+            if (line.startsWith(CALLS)) return Long.parseLong(line.substring(CALLS.length()).trim());
+        }
+
+        return null;
+    }
+
+    private static String read(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+
+        for (int count; (count = input.read(buffer)) != -1; ) {
+            output.write(buffer, 0, count);
+        }
+
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+}